@@ -0,0 +1,204 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Chips simulated by Java code rather than gates. ROM32K, Screen and Keyboard have no HDL; the registers,
+ * memories and PC are fast models of chips that have one, swapped in for their HDL when asked for
+ * (ChipLibrary.useBuiltin), so a verified RAM16K costs one array access per cycle instead of a million gates.
+ *
+ * A behaviour sees its pins as ints, bit 0 of a bus in bit 0, in the order the definition lists them.
+ * Outputs may depend combinationally only on inputs that are not CLOCKED.
+ */
+public class BuiltinChips {
+
+  public interface Behaviour {
+    /**
+     * Computes the outputs from the inputs and the state.
+     */
+    void evaluate(int[] in, int[] out);
+
+    /**
+     * A clock edge: updates the state from the inputs.
+     */
+    void tick(int[] in);
+  }
+
+  /**
+   * A register of 1 or 16 bits: in, load; out.
+   */
+  public static class Register implements Behaviour {
+    private final int mask;
+    private int value;
+
+    public Register(int width) {
+      mask = (1 << width) - 1;
+    }
+
+    public int value() {
+      return value;
+    }
+
+    @Override
+    public void evaluate(int[] in, int[] out) {
+      out[0] = value;
+    }
+
+    @Override
+    public void tick(int[] in) {
+      if (in[1] != 0) {
+        value = in[0] & mask;
+      }
+    }
+  }
+
+  /**
+   * The program counter: in, load, inc, reset; out. Reset comes before load, load before inc.
+   */
+  public static class Counter implements Behaviour {
+    private int value;
+
+    @Override
+    public void evaluate(int[] in, int[] out) {
+      out[0] = value;
+    }
+
+    @Override
+    public void tick(int[] in) {
+      if (in[3] != 0) {
+        value = 0;
+      } else if (in[1] != 0) {
+        value = in[0];
+      } else if (in[2] != 0) {
+        value = (value + 1) & 0xFFFF;
+      }
+    }
+  }
+
+  /**
+   * RAM of 2^n words: in, load, address; out. Reading is combinational, writing happens on the clock edge.
+   */
+  public static class Ram implements Behaviour {
+    private final int[] words;
+
+    public Ram(int size) {
+      words = new int[size];
+    }
+
+    public int peek(int address) {
+      return words[address];
+    }
+
+    public void poke(int address, int value) {
+      words[address] = value & 0xFFFF;
+    }
+
+    @Override
+    public void evaluate(int[] in, int[] out) {
+      out[0] = words[in[2]];
+    }
+
+    @Override
+    public void tick(int[] in) {
+      if (in[1] != 0) {
+        words[in[2]] = in[0];
+      }
+    }
+  }
+
+  /**
+   * ROM32K: address; out. The program is loaded from outside.
+   */
+  public static class Rom implements Behaviour {
+    private final int[] words = new int[32768];
+
+    public void load(int[] program) {
+      Arrays.fill(words, 0);
+      System.arraycopy(program, 0, words, 0, Math.min(program.length, words.length));
+    }
+
+    @Override
+    public void evaluate(int[] in, int[] out) {
+      out[0] = words[in[0]];
+    }
+
+    @Override
+    public void tick(int[] in) {
+    }
+  }
+
+  /**
+   * Keyboard: out is the code of the key held down, set from outside.
+   */
+  public static class Keyboard implements Behaviour {
+    private int key;
+
+    public void press(int key) {
+      this.key = key & 0xFFFF;
+    }
+
+    @Override
+    public void evaluate(int[] in, int[] out) {
+      out[0] = key;
+    }
+
+    @Override
+    public void tick(int[] in) {
+    }
+  }
+
+  private static final Map<String, ChipDefinition> DEFINITIONS = new HashMap<String, ChipDefinition>();
+
+  static {
+    define("Bit", "IN in, load; OUT out; CLOCKED in, load;");
+    define("Register", "IN in[16], load; OUT out[16]; CLOCKED in, load;");
+    define("PC", "IN in[16], load, inc, reset; OUT out[16]; CLOCKED in, load, inc, reset;");
+    define("RAM8", "IN in[16], load, address[3]; OUT out[16]; CLOCKED in, load;");
+    define("RAM64", "IN in[16], load, address[6]; OUT out[16]; CLOCKED in, load;");
+    define("RAM512", "IN in[16], load, address[9]; OUT out[16]; CLOCKED in, load;");
+    define("RAM4K", "IN in[16], load, address[12]; OUT out[16]; CLOCKED in, load;");
+    define("RAM16K", "IN in[16], load, address[14]; OUT out[16]; CLOCKED in, load;");
+    define("Screen", "IN in[16], load, address[13]; OUT out[16]; CLOCKED in, load;");
+    define("ROM32K", "IN address[15]; OUT out[16];");
+    define("Keyboard", "OUT out[16];");
+  }
+
+  private BuiltinChips() {
+  }
+
+  private static void define(String name, String pins) {
+    ChipDefinition chip = new HdlParser("CHIP " + name + " { " + pins + " BUILTIN " + name + "; }", name).parse();
+    DEFINITIONS.put(name, chip);
+  }
+
+  /**
+   * Returns the built-in definition of a chip, null if there is none.
+   */
+  public static ChipDefinition definition(String name) {
+    return DEFINITIONS.get(name);
+  }
+
+  /**
+   * Returns a new instance, with its own state, of a built-in chip.
+   */
+  public static Behaviour behaviour(String name) {
+    switch (name) {
+      case "Bit":
+        return new Register(1);
+      case "Register":
+        return new Register(16);
+      case "PC":
+        return new Counter();
+      case "ROM32K":
+        return new Rom();
+      case "Keyboard":
+        return new Keyboard();
+      default:
+        ChipDefinition chip = DEFINITIONS.get(name);
+        if (chip == null || chip.pin("address") == null) {
+          return null;
+        }
+        return new Ram(1 << chip.pin("address").width);
+    }
+  }
+}
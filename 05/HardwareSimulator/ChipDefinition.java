@@ -0,0 +1,89 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A chip as written in HDL: its input and output pins and the parts it is built from,
+ * or the name of the built-in implementation for BUILTIN chips.
+ */
+public class ChipDefinition {
+
+  public static class Pin {
+    public final String name;
+    public final int width;
+
+    public Pin(String name, int width) {
+      this.name = name;
+      this.width = width;
+    }
+  }
+
+  /**
+   * One pin=signal assignment of a part; from and to are -1 when the whole pin or signal is meant.
+   */
+  public static class Connection {
+    public final String pin;
+    public final int pinFrom;
+    public final int pinTo;
+    public final String signal;
+    public final int signalFrom;
+    public final int signalTo;
+
+    public Connection(String pin, int pinFrom, int pinTo, String signal, int signalFrom, int signalTo) {
+      this.pin = pin;
+      this.pinFrom = pinFrom;
+      this.pinTo = pinTo;
+      this.signal = signal;
+      this.signalFrom = signalFrom;
+      this.signalTo = signalTo;
+    }
+  }
+
+  public static class Part {
+    public final String chip;
+    public final int line;
+    public final List<Connection> connections = new ArrayList<Connection>();
+
+    public Part(String chip, int line) {
+      this.chip = chip;
+      this.line = line;
+    }
+  }
+
+  public final String name;
+  public final List<Pin> inputs = new ArrayList<Pin>();
+  public final List<Pin> outputs = new ArrayList<Pin>();
+  public final List<Part> parts = new ArrayList<Part>();
+  // the BUILTIN name, null for a chip made of parts
+  public String builtin;
+  public final List<String> clocked = new ArrayList<String>();
+
+  public ChipDefinition(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Returns the input or output pin of that name, null if there is none.
+   */
+  public Pin pin(String name) {
+    for (Pin pin : inputs) {
+      if (pin.name.equals(name)) {
+        return pin;
+      }
+    }
+    for (Pin pin : outputs) {
+      if (pin.name.equals(name)) {
+        return pin;
+      }
+    }
+    return null;
+  }
+
+  public boolean isInput(String name) {
+    for (Pin pin : inputs) {
+      if (pin.name.equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
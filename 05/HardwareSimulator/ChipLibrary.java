@@ -0,0 +1,107 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds chips by name: Name.hdl in the first directory of the search path that has it, or a primitive.
+ *
+ * Nand and DFF are the primitives every chip is flattened to. ARegister and DRegister, which the course
+ * provides as built-ins, are the Register chip under another name. Chips without HDL that BuiltinChips knows
+ * (ROM32K, Screen, Keyboard) are built in, and so are chips swapped for their fast model with useBuiltin.
+ */
+public class ChipLibrary {
+  public static final String NAND = "Nand";
+  public static final String DFF = "DFF";
+
+  private final List<File> path = new ArrayList<File>();
+  private final Map<String, ChipDefinition> chips = new HashMap<String, ChipDefinition>();
+  private final Set<String> builtins = new HashSet<String>();
+
+  public ChipLibrary(List<File> path) {
+    this.path.addAll(path);
+
+    ChipDefinition nand = new ChipDefinition(NAND);
+    nand.inputs.add(new ChipDefinition.Pin("a", 1));
+    nand.inputs.add(new ChipDefinition.Pin("b", 1));
+    nand.outputs.add(new ChipDefinition.Pin("out", 1));
+    nand.builtin = NAND;
+    chips.put(NAND, nand);
+
+    ChipDefinition dff = new ChipDefinition(DFF);
+    dff.inputs.add(new ChipDefinition.Pin("in", 1));
+    dff.outputs.add(new ChipDefinition.Pin("out", 1));
+    dff.builtin = DFF;
+    dff.clocked.add("in");
+    chips.put(DFF, dff);
+  }
+
+  /**
+   * Uses the built-in fast model of a chip from now on, in place of its HDL.
+   */
+  public synchronized void useBuiltin(String name) {
+    if (BuiltinChips.definition(name) == null) {
+      throw new IllegalArgumentException("No built-in model of chip " + name);
+    }
+    builtins.add(name);
+    // chips already loaded may stand for it (ARegister)
+    chips.keySet().retainAll(Arrays.asList(NAND, DFF));
+  }
+
+  /**
+   * Returns the chip of that name; throws IllegalArgumentException if there is no HDL or built-in for it.
+   */
+  public synchronized ChipDefinition get(String name) {
+    ChipDefinition chip = chips.get(name);
+    if (chip != null) {
+      return chip;
+    }
+
+    File file = find(name);
+    if (builtins.contains(name) || file == null && BuiltinChips.definition(name) != null) {
+      chip = BuiltinChips.definition(name);
+    } else if (file == null && (name.equals("ARegister") || name.equals("DRegister"))) {
+      chip = get("Register");
+    } else {
+      chip = hdl(name);
+    }
+    chips.put(name, chip);
+    return chip;
+  }
+
+  /**
+   * Parses the HDL of a chip, even if it is replaced by a built-in.
+   */
+  public ChipDefinition hdl(String name) {
+    File file = find(name);
+    if (file == null) {
+      throw new IllegalArgumentException("No HDL for chip " + name + " in " + path);
+    }
+    ChipDefinition chip;
+    try {
+      chip = new HdlParser(file).parse();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    if (!chip.name.equals(name)) {
+      throw new IllegalArgumentException(file + " defines " + chip.name + ", not " + name);
+    }
+    return chip;
+  }
+
+  private File find(String name) {
+    for (File directory : path) {
+      File file = new File(directory, name + ".hdl");
+      if (file.isFile()) {
+        return file;
+      }
+    }
+    return null;
+  }
+}
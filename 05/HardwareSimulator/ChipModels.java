@@ -0,0 +1,210 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reference behaviour of the combinational chips of chapters 01 and 02, as specified in their HDL comments.
+ *
+ * The models are bit-sliced like the netlist: a pin is an array of longs, one per bit, with one vector per
+ * bit of the long. Adders ripple the carry through the bits, one lane per vector.
+ */
+public class ChipModels {
+
+  /**
+   * Computes the output pins of a chip from its input pins; out has an array of the right width for every
+   * output pin.
+   */
+  public interface Model {
+    void evaluate(Map<String, long[]> in, Map<String, long[]> out);
+  }
+
+  private static final Map<String, Model> MODELS = new HashMap<String, Model>();
+
+  static {
+    MODELS.put("Nand", new Model() {
+      @Override
+      public void evaluate(Map<String, long[]> in, Map<String, long[]> out) {
+        out.get("out")[0] = ~(in.get("a")[0] & in.get("b")[0]);
+      }
+    });
+    MODELS.put("Not", new Model() {
+      @Override
+      public void evaluate(Map<String, long[]> in, Map<String, long[]> out) {
+        out.get("out")[0] = ~in.get("in")[0];
+      }
+    });
+    MODELS.put("Not16", new Model() {
+      @Override
+      public void evaluate(Map<String, long[]> in, Map<String, long[]> out) {
+        long[] x = in.get("in");
+        long[] y = out.get("out");
+        for (int i = 0; i < 16; i++) {
+          y[i] = ~x[i];
+        }
+      }
+    });
+    MODELS.put("And", bitwise(0));
+    MODELS.put("Or", bitwise(1));
+    MODELS.put("Xor", bitwise(2));
+    MODELS.put("And16", bitwise(0));
+    MODELS.put("Or16", bitwise(1));
+    MODELS.put("Mux", mux(2));
+    MODELS.put("Mux16", mux(2));
+    MODELS.put("Mux4Way16", mux(4));
+    MODELS.put("Mux8Way16", mux(8));
+    MODELS.put("DMux", dmux(2));
+    MODELS.put("DMux4Way", dmux(4));
+    MODELS.put("DMux8Way", dmux(8));
+    MODELS.put("Or8Way", new Model() {
+      @Override
+      public void evaluate(Map<String, long[]> in, Map<String, long[]> out) {
+        long or = 0;
+        for (long bit : in.get("in")) {
+          or |= bit;
+        }
+        out.get("out")[0] = or;
+      }
+    });
+    MODELS.put("HalfAdder", new Model() {
+      @Override
+      public void evaluate(Map<String, long[]> in, Map<String, long[]> out) {
+        long a = in.get("a")[0];
+        long b = in.get("b")[0];
+        out.get("sum")[0] = a ^ b;
+        out.get("carry")[0] = a & b;
+      }
+    });
+    MODELS.put("FullAdder", new Model() {
+      @Override
+      public void evaluate(Map<String, long[]> in, Map<String, long[]> out) {
+        long a = in.get("a")[0];
+        long b = in.get("b")[0];
+        long c = in.get("c")[0];
+        out.get("sum")[0] = a ^ b ^ c;
+        out.get("carry")[0] = a & b | a & c | b & c;
+      }
+    });
+    MODELS.put("Add16", new Model() {
+      @Override
+      public void evaluate(Map<String, long[]> in, Map<String, long[]> out) {
+        add(in.get("a"), in.get("b"), 0, out.get("out"));
+      }
+    });
+    MODELS.put("Inc16", new Model() {
+      @Override
+      public void evaluate(Map<String, long[]> in, Map<String, long[]> out) {
+        add(in.get("in"), new long[16], -1L, out.get("out"));
+      }
+    });
+    MODELS.put("ALU", new Model() {
+      @Override
+      public void evaluate(Map<String, long[]> in, Map<String, long[]> out) {
+        long zx = in.get("zx")[0];
+        long nx = in.get("nx")[0];
+        long zy = in.get("zy")[0];
+        long ny = in.get("ny")[0];
+        long f = in.get("f")[0];
+        long no = in.get("no")[0];
+        long[] x = new long[16];
+        long[] y = new long[16];
+        for (int i = 0; i < 16; i++) {
+          x[i] = in.get("x")[i] & ~zx ^ nx;
+          y[i] = in.get("y")[i] & ~zy ^ ny;
+        }
+        long[] sum = new long[16];
+        add(x, y, 0, sum);
+        long[] result = out.get("out");
+        long nonzero = 0;
+        for (int i = 0; i < 16; i++) {
+          result[i] = (f & sum[i] | ~f & x[i] & y[i]) ^ no;
+          nonzero |= result[i];
+        }
+        out.get("zr")[0] = ~nonzero;
+        out.get("ng")[0] = result[15];
+      }
+    });
+  }
+
+  private ChipModels() {
+  }
+
+  /**
+   * Returns the model of a chip, null if there is none.
+   */
+  public static Model get(String chip) {
+    return MODELS.get(chip);
+  }
+
+  /**
+   * out = a and b, a or b or a xor b, bit by bit.
+   */
+  private static Model bitwise(final int operation) {
+    return new Model() {
+      @Override
+      public void evaluate(Map<String, long[]> in, Map<String, long[]> out) {
+        long[] a = in.get("a");
+        long[] b = in.get("b");
+        long[] result = out.get("out");
+        for (int i = 0; i < result.length; i++) {
+          result[i] = operation == 0 ? a[i] & b[i] : operation == 1 ? a[i] | b[i] : a[i] ^ b[i];
+        }
+      }
+    };
+  }
+
+  /**
+   * out = a, b, c, ... as sel is 0, 1, 2, ...
+   */
+  private static Model mux(final int ways) {
+    return new Model() {
+      @Override
+      public void evaluate(Map<String, long[]> in, Map<String, long[]> out) {
+        long[] sel = in.get("sel");
+        long[] result = out.get("out");
+        for (int i = 0; i < result.length; i++) {
+          result[i] = 0;
+        }
+        for (int way = 0; way < ways; way++) {
+          long selected = selected(sel, way);
+          long[] input = in.get(String.valueOf((char) ('a' + way)));
+          for (int i = 0; i < result.length; i++) {
+            result[i] |= input[i] & selected;
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * a, b, c, ... = in when sel is 0, 1, 2, ..., else 0.
+   */
+  private static Model dmux(final int ways) {
+    return new Model() {
+      @Override
+      public void evaluate(Map<String, long[]> in, Map<String, long[]> out) {
+        long[] sel = in.get("sel");
+        long input = in.get("in")[0];
+        for (int way = 0; way < ways; way++) {
+          out.get(String.valueOf((char) ('a' + way)))[0] = input & selected(sel, way);
+        }
+      }
+    };
+  }
+
+  /**
+   * Returns the lanes in which sel equals value.
+   */
+  private static long selected(long[] sel, int value) {
+    long lanes = -1L;
+    for (int i = 0; i < sel.length; i++) {
+      lanes &= (value >> i & 1) != 0 ? sel[i] : ~sel[i];
+    }
+    return lanes;
+  }
+
+  private static void add(long[] a, long[] b, long carry, long[] sum) {
+    for (int i = 0; i < sum.length; i++) {
+      sum[i] = a[i] ^ b[i] ^ carry;
+      carry = a[i] & b[i] | a[i] & carry | b[i] & carry;
+    }
+  }
+}
@@ -0,0 +1,422 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Checks combinational chips against their reference behaviour (ChipModels), 64 input vectors per pass of
+ * the compiled netlist. A chip with at most --exhaustive bits of input (default 32) is checked on every input;
+ * wider ones, such as Mux8Way16 or ALU, on -n random vectors (default 2^26). A chip without a model is
+ * checked against the interpreted netlist, which tests the compiler rather than the chip.
+ *
+ * Exhaustive passes put the 64 combinations of the six lowest input bits in the lanes and count through the
+ * other bits with the pass number. The passes are shared out among -j threads.
+ *
+ * Sequential chips with a fast model (Bit, Register, PC, RAMn) run on EventSimulator for --cycles random
+ * cycles next to the model. --fast swaps verified parts for their models, so RAM16K can be checked on top of
+ * a RAM4K model.
+ */
+public class ChipVerifier {
+  public static final String PASS = "PASS";
+  public static final String FAIL = "FAIL";
+  public static final String SKIP = "SKIP";
+  public static final String ERROR = "ERROR";
+
+  // bit i of lane l is bit i of l, for the six lowest input bits
+  private static final long[] LANES = { 0xAAAAAAAAAAAAAAAAL, 0xCCCCCCCCCCCCCCCCL, 0xF0F0F0F0F0F0F0F0L,
+      0xFF00FF00FF00FF00L, 0xFFFF0000FFFF0000L, 0xFFFFFFFF00000000L };
+
+  private final ChipLibrary library;
+  private final ForkJoinPool pool;
+  private final int exhaustiveBits;
+  private final long randomVectors;
+  private final boolean interpret;
+  private final long cycles;
+
+  public ChipVerifier(ChipLibrary library, ForkJoinPool pool, int exhaustiveBits, long randomVectors,
+      boolean interpret, long cycles) {
+    this.library = library;
+    this.pool = pool;
+    this.exhaustiveBits = exhaustiveBits;
+    this.randomVectors = randomVectors;
+    this.interpret = interpret;
+    this.cycles = cycles;
+  }
+
+  public static void main(String[] args) throws Exception {
+    List<File> path = new ArrayList<File>();
+    List<File> files = new ArrayList<File>();
+    int exhaustiveBits = 32;
+    long randomVectors = 1L << 26;
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean interpret = false;
+    long cycles = 10000;
+    List<String> fast = new ArrayList<String>();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if (args[i].equals("-p") && i + 1 < args.length) {
+          for (String directory : args[++i].split(File.pathSeparator)) {
+            path.add(new File(directory));
+          }
+        } else if (args[i].equals("-n") && i + 1 < args.length) {
+          randomVectors = Long.parseLong(args[++i]);
+        } else if (args[i].equals("--exhaustive") && i + 1 < args.length) {
+          exhaustiveBits = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("-j") && i + 1 < args.length) {
+          threads = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("--cycles") && i + 1 < args.length) {
+          cycles = Long.parseLong(args[++i]);
+        } else if (args[i].equals("--fast") && i + 1 < args.length) {
+          fast.addAll(Arrays.asList(args[++i].split(",")));
+        } else if (args[i].equals("--interpret")) {
+          interpret = true;
+        } else if (args[i].startsWith("-")) {
+          throw new IllegalArgumentException(args[i]);
+        } else {
+          files.add(new File(args[i]));
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      files.clear();
+    }
+    if (files.isEmpty()) {
+      System.out.println("use: java ChipVerifier [-p dir:dir...] [-n vectors] [--exhaustive bits] [-j threads] [--interpret] [--cycles n] [--fast RAM4K,...] chip.hdl|directory...");
+      return;
+    }
+
+    // a chip's own directory comes first, then -p
+    List<File> chips = new ArrayList<File>();
+    LinkedHashSet<File> directories = new LinkedHashSet<File>();
+    for (File file : files) {
+      if (file.isDirectory()) {
+        File[] children = file.listFiles();
+        Arrays.sort(children);
+        for (File child : children) {
+          if (child.getName().endsWith(".hdl")) {
+            chips.add(child);
+          }
+        }
+        directories.add(file);
+      } else {
+        chips.add(file);
+        directories.add(file.getAbsoluteFile().getParentFile());
+      }
+    }
+    directories.addAll(path);
+
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    ChipLibrary library = new ChipLibrary(new ArrayList<File>(directories));
+    for (String chip : fast) {
+      library.useBuiltin(chip);
+    }
+    ChipVerifier verifier = new ChipVerifier(library, pool, exhaustiveBits, randomVectors, interpret, cycles);
+    int failed = 0;
+    for (File chip : chips) {
+      String name = chip.getName().substring(0, chip.getName().length() - ".hdl".length());
+      String line = verifier.verify(name);
+      System.out.println(line);
+      if (line.startsWith(FAIL) || line.startsWith(ERROR)) {
+        failed++;
+      }
+    }
+    pool.shutdown();
+    if (failed > 0) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Verifies one chip; returns a line starting with PASS, FAIL, SKIP or ERROR.
+   */
+  public String verify(String name) {
+    final Netlist netlist;
+    try {
+      netlist = new Netlist(library, library.hdl(name));
+    } catch (RuntimeException e) {
+      return ERROR + " " + name + ": " + e.getMessage();
+    }
+    if (netlist.dffCount() > 0 || netlist.elementCount() > 0) {
+      return verifySequential(netlist);
+    }
+
+    final ChipModels.Model model = ChipModels.get(name);
+    if (model == null && interpret) {
+      return SKIP + " " + name + ": no model to check the interpreter against";
+    }
+    long compileStart = System.nanoTime();
+    final Netlist.Evaluator evaluator = interpret ? interpreter(netlist) : NetlistCompiler.compile(netlist);
+    long compileTime = System.nanoTime() - compileStart;
+
+    int bits = 0;
+    for (ChipDefinition.Pin pin : netlist.chip().inputs) {
+      bits += pin.width;
+    }
+    final boolean exhaustive = bits <= exhaustiveBits;
+    final long passes = exhaustive ? 1L << Math.max(0, bits - 6) : (randomVectors + 63) / 64;
+    long vectors = exhaustive ? 1L << bits : passes * 64;
+
+    long start = System.nanoTime();
+    int tasks = pool.getParallelism();
+    List<ForkJoinTask<String>> results = new ArrayList<ForkJoinTask<String>>();
+    for (int task = 0; task < tasks; task++) {
+      final long from = passes * task / tasks;
+      final long to = passes * (task + 1) / tasks;
+      final long seed = task;
+      results.add(pool.submit(new Callable<String>() {
+        public String call() {
+          return check(netlist, evaluator, model, exhaustive, from, to, seed);
+        }
+      }));
+    }
+    String failure = null;
+    for (ForkJoinTask<String> result : results) {
+      String line = result.join();
+      if (failure == null) {
+        failure = line;
+      }
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    if (failure != null) {
+      return FAIL + " " + name + ": " + failure + "; " + netlist.gateCount() + " gates";
+    }
+    String summary = String.format("%d vectors (%s), %d gates, depth %d, %s in %.0f ms, %.2f s, %.1fM vectors/s",
+        vectors, exhaustive ? "exhaustive" : "random", netlist.gateCount(), netlist.depth(),
+        interpret ? "interpreted, set up" : "compiled", compileTime / 1e6, seconds, vectors / seconds / 1e6);
+    return PASS + " " + name + ": " + summary + (model == null ? ", against the interpreter" : "");
+  }
+
+  /**
+   * Runs a sequential chip for --cycles random cycles next to its fast model (BuiltinChips), comparing the
+   * outputs before and after every clock edge. Addresses are drawn from a few values, so that reads find
+   * what was written.
+   */
+  private String verifySequential(Netlist netlist) {
+    String name = netlist.chip().name;
+    ChipDefinition modelChip = BuiltinChips.definition(name);
+    BuiltinChips.Behaviour model = BuiltinChips.behaviour(name);
+    if (model == null) {
+      return SKIP + " " + name + ": sequential, no model";
+    }
+    for (ChipDefinition.Pin pin : modelChip.inputs) {
+      if (netlist.input(pin.name) == null || netlist.input(pin.name).length != pin.width) {
+        return ERROR + " " + name + ": input " + pin.name + "[" + pin.width + "] expected";
+      }
+    }
+
+    long start = System.nanoTime();
+    EventSimulator simulator = new EventSimulator(netlist);
+    long built = System.nanoTime() - start;
+    SplittableRandom random = new SplittableRandom(cycles);
+    int[] addresses = new int[8];
+    for (int i = 0; i < addresses.length; i++) {
+      addresses[i] = random.nextInt(1 << Math.min(30, pinWidth(modelChip, "address")));
+    }
+    int[] in = new int[modelChip.inputs.size()];
+    int[] expected = new int[modelChip.outputs.size()];
+
+    start = System.nanoTime();
+    for (long cycle = 0; cycle < cycles; cycle++) {
+      for (int i = 0; i < in.length; i++) {
+        ChipDefinition.Pin pin = modelChip.inputs.get(i);
+        if (pin.name.equals("address")) {
+          in[i] = addresses[random.nextInt(addresses.length)];
+        } else if (pin.name.equals("reset")) {
+          in[i] = random.nextInt(16) == 0 ? 1 : 0;
+        } else {
+          in[i] = random.nextInt(1 << pin.width);
+        }
+        simulator.set(pin.name, in[i]);
+      }
+      for (int edge = 0; edge < 2; edge++) {
+        model.evaluate(in, expected);
+        for (int i = 0; i < expected.length; i++) {
+          ChipDefinition.Pin pin = modelChip.outputs.get(i);
+          int actual = simulator.get(pin.name);
+          if (actual != expected[i]) {
+            StringBuilder text = new StringBuilder(FAIL + " " + name + ": cycle " + cycle
+                + (edge == 0 ? ":" : ", after the edge:"));
+            for (int j = 0; j < in.length; j++) {
+              ChipDefinition.Pin input = modelChip.inputs.get(j);
+              text.append(' ').append(input.name).append('=').append(binary(in[j], input.width));
+            }
+            return text.append(" gives ").append(pin.name).append('=').append(binary(actual, pin.width))
+                .append(" (expected ").append(binary(expected[i], pin.width)).append(")").toString();
+          }
+        }
+        if (edge == 0) {
+          model.tick(in);
+          simulator.tick();
+        }
+      }
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    return PASS + " " + name + String.format(": %d cycles against the model, %d gates, %d DFFs, set up in %.0f ms,"
+        + " %.2f s, %.0f cycles/s, %.0f evaluations per cycle", cycles, netlist.gateCount(), netlist.dffCount(),
+        built / 1e6, seconds, cycles / seconds, simulator.evaluations() / (double) cycles);
+  }
+
+  private static int pinWidth(ChipDefinition chip, String name) {
+    ChipDefinition.Pin pin = chip.pin(name);
+    return pin == null ? 0 : pin.width;
+  }
+
+  /**
+   * Runs passes [from, to); returns a description of the first failing vector, null if there is none.
+   */
+  private String check(Netlist netlist, Netlist.Evaluator evaluator, ChipModels.Model model, boolean exhaustive,
+      long from, long to, long seed) {
+    ChipDefinition chip = netlist.chip();
+    long[] nets = netlist.newState();
+    long[] reference = model == null ? netlist.newState() : null;
+    Map<String, long[]> in = new HashMap<String, long[]>();
+    Map<String, long[]> expected = new HashMap<String, long[]>();
+
+    // every input bit with its net and its slot in the pin array the model reads
+    List<long[]> inputPins = new ArrayList<long[]>();
+    List<Integer> inputBits = new ArrayList<Integer>();
+    List<Integer> inputNets = new ArrayList<Integer>();
+    for (ChipDefinition.Pin pin : chip.inputs) {
+      long[] values = new long[pin.width];
+      in.put(pin.name, values);
+      for (int i = 0; i < pin.width; i++) {
+        inputPins.add(values);
+        inputBits.add(i);
+        inputNets.add(netlist.input(pin.name)[i]);
+      }
+    }
+    int outputCount = 0;
+    for (ChipDefinition.Pin pin : chip.outputs) {
+      expected.put(pin.name, new long[pin.width]);
+      outputCount += pin.width;
+    }
+    long[][] outputPins = new long[outputCount][];
+    int[] outputBits = new int[outputCount];
+    int[] outputNets = new int[outputCount];
+    int output = 0;
+    for (ChipDefinition.Pin pin : chip.outputs) {
+      for (int i = 0; i < pin.width; i++, output++) {
+        outputPins[output] = expected.get(pin.name);
+        outputBits[output] = i;
+        outputNets[output] = netlist.output(pin.name)[i];
+      }
+    }
+
+    // the lanes hold every combination of the lowest bits; in exhaustive passes only the others change
+    int first = 0;
+    if (exhaustive) {
+      for (; first < inputNets.size() && first < LANES.length; first++) {
+        inputPins.get(first)[inputBits.get(first)] = LANES[first];
+        nets[inputNets.get(first)] = LANES[first];
+      }
+    }
+    int count = inputNets.size() - first;
+    long[][] pins = inputPins.subList(first, inputNets.size()).toArray(new long[0][]);
+    int[] bits = new int[count];
+    int[] pinNets = new int[count];
+    for (int i = 0; i < count; i++) {
+      bits[i] = inputBits.get(first + i);
+      pinNets[i] = inputNets.get(first + i);
+    }
+    SplittableRandom random = new SplittableRandom(seed);
+
+    for (long pass = from; pass < to; pass++) {
+      if (exhaustive) {
+        // counting: only the bits that flip since the previous pass change
+        long changed = pass == from ? -1L >>> (64 - Math.max(count, 1)) : pass ^ (pass - 1);
+        for (int i = 0; i < count && changed >>> i != 0; i++) {
+          long value = -(pass >>> i & 1);
+          pins[i][bits[i]] = value;
+          nets[pinNets[i]] = value;
+        }
+      } else {
+        for (int i = 0; i < count; i++) {
+          long value = random.nextLong();
+          pins[i][bits[i]] = value;
+          nets[pinNets[i]] = value;
+        }
+      }
+      evaluator.evaluate(nets);
+
+      if (model != null) {
+        model.evaluate(in, expected);
+      } else {
+        System.arraycopy(nets, 0, reference, 0, nets.length);
+        netlist.evaluate(reference);
+        for (int i = 0; i < outputCount; i++) {
+          outputPins[i][outputBits[i]] = reference[outputNets[i]];
+        }
+      }
+
+      long wrong = 0;
+      for (int i = 0; i < outputCount; i++) {
+        wrong |= nets[outputNets[i]] ^ outputPins[i][outputBits[i]];
+      }
+      if (wrong != 0) {
+        return describe(netlist, nets, in, expected, Long.numberOfTrailingZeros(wrong));
+      }
+    }
+    return null;
+  }
+
+  private static String describe(Netlist netlist, long[] nets, Map<String, long[]> in,
+      Map<String, long[]> expected, int lane) {
+    StringBuilder text = new StringBuilder();
+    for (ChipDefinition.Pin pin : netlist.chip().inputs) {
+      text.append(pin.name).append('=').append(binary(in.get(pin.name), lane)).append(' ');
+    }
+    text.append("gives");
+    for (ChipDefinition.Pin pin : netlist.chip().outputs) {
+      int[] pinNets = netlist.output(pin.name);
+      long[] actual = new long[pin.width];
+      for (int i = 0; i < pin.width; i++) {
+        actual[i] = nets[pinNets[i]];
+      }
+      String value = binary(actual, lane);
+      String wanted = binary(expected.get(pin.name), lane);
+      text.append(' ').append(pin.name).append('=').append(value);
+      if (!value.equals(wanted)) {
+        text.append(" (expected ").append(wanted).append(')');
+      }
+    }
+    return text.toString();
+  }
+
+  /**
+   * Returns the value of a bus in one lane, most significant bit first, as in .cmp files.
+   */
+  private static String binary(long[] bits, int lane) {
+    StringBuilder text = new StringBuilder();
+    for (int i = bits.length - 1; i >= 0; i--) {
+      text.append((bits[i] >>> lane & 1) != 0 ? '1' : '0');
+    }
+    return text.toString();
+  }
+
+  /**
+   * Returns the low width bits of a value, most significant bit first.
+   */
+  private static String binary(int value, int width) {
+    StringBuilder text = new StringBuilder();
+    for (int i = width - 1; i >= 0; i--) {
+      text.append((value >>> i & 1) != 0 ? '1' : '0');
+    }
+    return text.toString();
+  }
+
+  private static Netlist.Evaluator interpreter(final Netlist netlist) {
+    return new Netlist.Evaluator() {
+      @Override
+      public void evaluate(long[] nets) {
+        netlist.evaluate(nets);
+      }
+    };
+  }
+}
@@ -0,0 +1,389 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Simulates a netlist one vector at a time, evaluating only what changes.
+ *
+ * A net that changes schedules the gates and elements reading it; scheduled nodes are evaluated level by level
+ * (the levels of Netlist), so each is evaluated at most once per settle and never before its inputs are final.
+ * A DFF whose input changed goes on the change queue, and only queued DFFs are looked at on a clock edge:
+ * a write to one register of a RAM16K latches 16 DFFs, not 262144. Built-in chips (BuiltinChips) are ticked
+ * on every edge and then re-evaluated.
+ *
+ * Nets are 0 or -1 (all lanes equal), so values read back the same in every lane.
+ */
+public class EventSimulator {
+  private final Netlist netlist;
+  private final long[] nets;
+
+  private final int gateCount;
+  private final int[] gateA;
+  private final int[] gateB;
+  private final int[] gateOut;
+  private final Netlist.Element[] elements;
+  private final int[] levels;
+
+  // net -> nodes reading it at once, and DFFs reading it
+  private final int[] fanoutStart;
+  private final int[] fanout;
+  private final int[] dffFanoutStart;
+  private final int[] dffFanout;
+  private final int[] dffIn;
+  private final int[] dffOut;
+
+  // nodes scheduled for evaluation, per level
+  private final boolean[] scheduled;
+  private final int[][] buckets;
+  private final int[] bucketSizes;
+  private int lowest;
+
+  // the change queue: DFFs whose input changed since the last edge
+  private final boolean[] queued;
+  private int[] queue = new int[16];
+  private int queueSize;
+  private int[] edge = new int[16];
+  private long[] latched = new long[16];
+
+  private final int[][] elementInputs;
+  private final int[][] elementOutputs;
+  private long evaluations;
+
+  public EventSimulator(Netlist netlist) {
+    this.netlist = netlist;
+    nets = new long[netlist.netCount()];
+    nets[Netlist.TRUE] = -1L;
+
+    gateCount = netlist.gateCount();
+    gateA = netlist.gateA();
+    gateB = netlist.gateB();
+    gateOut = netlist.gateOut();
+    elements = netlist.elements().toArray(new Netlist.Element[0]);
+    int nodeCount = gateCount + elements.length;
+    levels = Arrays.copyOf(netlist.gateLevels(), nodeCount);
+    System.arraycopy(netlist.elementLevels(), 0, levels, gateCount, elements.length);
+
+    int netCount = netlist.netCount();
+    fanoutStart = new int[netCount + 1];
+    for (int i = 0; i < gateCount; i++) {
+      fanoutStart[gateA[i] + 1]++;
+      if (gateB[i] != gateA[i]) {
+        fanoutStart[gateB[i] + 1]++;
+      }
+    }
+    for (Netlist.Element element : elements) {
+      for (int net : element.combinational) {
+        fanoutStart[net + 1]++;
+      }
+    }
+    for (int net = 0; net < netCount; net++) {
+      fanoutStart[net + 1] += fanoutStart[net];
+    }
+    fanout = new int[fanoutStart[netCount]];
+    int[] fill = Arrays.copyOf(fanoutStart, netCount);
+    for (int i = 0; i < gateCount; i++) {
+      fanout[fill[gateA[i]]++] = i;
+      if (gateB[i] != gateA[i]) {
+        fanout[fill[gateB[i]]++] = i;
+      }
+    }
+    for (int i = 0; i < elements.length; i++) {
+      for (int net : elements[i].combinational) {
+        fanout[fill[net]++] = gateCount + i;
+      }
+    }
+
+    int dffCount = netlist.dffCount();
+    dffIn = netlist.dffIn();
+    dffOut = netlist.dffOut();
+    dffFanoutStart = new int[netCount + 1];
+    for (int i = 0; i < dffCount; i++) {
+      dffFanoutStart[dffIn[i] + 1]++;
+    }
+    for (int net = 0; net < netCount; net++) {
+      dffFanoutStart[net + 1] += dffFanoutStart[net];
+    }
+    dffFanout = new int[dffCount];
+    fill = Arrays.copyOf(dffFanoutStart, netCount);
+    for (int i = 0; i < dffCount; i++) {
+      dffFanout[fill[dffIn[i]]++] = i;
+    }
+    queued = new boolean[dffCount];
+
+    scheduled = new boolean[nodeCount];
+    buckets = new int[netlist.depth() + 1][];
+    bucketSizes = new int[buckets.length];
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new int[8];
+    }
+    elementInputs = new int[elements.length][];
+    elementOutputs = new int[elements.length][];
+    for (int i = 0; i < elements.length; i++) {
+      elementInputs[i] = new int[elements[i].inputs.length];
+      elementOutputs[i] = new int[elements[i].outputs.length];
+    }
+
+    // everything is evaluated once to start with
+    for (int node = 0; node < nodeCount; node++) {
+      schedule(node);
+    }
+    settle();
+  }
+
+  public Netlist netlist() {
+    return netlist;
+  }
+
+  /**
+   * Returns the number of gate and element evaluations so far.
+   */
+  public long evaluations() {
+    return evaluations;
+  }
+
+  /**
+   * Sets an input pin of the chip; the outputs follow at the next settle, get or tick.
+   */
+  public void set(String pin, int value) {
+    int[] pinNets = netlist.input(pin);
+    if (pinNets == null) {
+      throw new IllegalArgumentException(netlist.chip().name + " has no input " + pin);
+    }
+    for (int i = 0; i < pinNets.length; i++) {
+      change(pinNets[i], (value >>> i & 1) != 0 ? -1L : 0);
+    }
+  }
+
+  /**
+   * Returns an output pin of the chip, settled.
+   */
+  public int get(String pin) {
+    int[] pinNets = netlist.output(pin);
+    if (pinNets == null) {
+      throw new IllegalArgumentException(netlist.chip().name + " has no output " + pin);
+    }
+    settle();
+    return value(pinNets);
+  }
+
+  /**
+   * A clock cycle: the logic settles, every queued DFF and built-in chip takes its input at once, and the
+   * logic settles again.
+   */
+  public void tick() {
+    settle();
+
+    // everything latches the values from before the edge
+    int count = queueSize;
+    if (latched.length < count) {
+      latched = new long[queue.length];
+    }
+    for (int i = 0; i < count; i++) {
+      latched[i] = nets[dffIn[queue[i]]];
+    }
+    for (int i = 0; i < elements.length; i++) {
+      inputs(i);
+      elements[i].behaviour.tick(elementInputs[i]);
+    }
+
+    // DFFs whose input changes from here on are queued for the next edge
+    int[] batch = queue;
+    queue = edge;
+    edge = batch;
+    queueSize = 0;
+    for (int i = 0; i < count; i++) {
+      queued[batch[i]] = false;
+    }
+    for (int i = 0; i < count; i++) {
+      change(dffOut[batch[i]], latched[i]);
+    }
+    for (int i = 0; i < elements.length; i++) {
+      schedule(gateCount + i);
+    }
+    settle();
+  }
+
+  /**
+   * Evaluates the scheduled gates and elements, lowest level first.
+   */
+  public void settle() {
+    for (int level = lowest; level < buckets.length; level++) {
+      int[] bucket = buckets[level];
+      int size = bucketSizes[level];
+      for (int i = 0; i < size; i++) {
+        int node = bucket[i];
+        scheduled[node] = false;
+        if (node < gateCount) {
+          change(gateOut[node], ~(nets[gateA[node]] & nets[gateB[node]]));
+        } else {
+          evaluateElement(node - gateCount);
+        }
+      }
+      evaluations += size;
+      bucketSizes[level] = 0;
+    }
+    lowest = buckets.length;
+  }
+
+  private void evaluateElement(int element) {
+    inputs(element);
+    int[] out = elementOutputs[element];
+    elements[element].behaviour.evaluate(elementInputs[element], out);
+    int[][] outputs = elements[element].outputs;
+    for (int pin = 0; pin < outputs.length; pin++) {
+      int[] pinNets = outputs[pin];
+      for (int i = 0; i < pinNets.length; i++) {
+        change(pinNets[i], (out[pin] >>> i & 1) != 0 ? -1L : 0);
+      }
+    }
+  }
+
+  private void inputs(int element) {
+    int[][] inputs = elements[element].inputs;
+    for (int pin = 0; pin < inputs.length; pin++) {
+      elementInputs[element][pin] = value(inputs[pin]);
+    }
+  }
+
+  private int value(int[] pinNets) {
+    int value = 0;
+    for (int i = 0; i < pinNets.length; i++) {
+      if (nets[pinNets[i]] != 0) {
+        value |= 1 << i;
+      }
+    }
+    return value;
+  }
+
+  private void change(int net, long value) {
+    if (nets[net] == value) {
+      return;
+    }
+    nets[net] = value;
+    for (int j = fanoutStart[net]; j < fanoutStart[net + 1]; j++) {
+      schedule(fanout[j]);
+    }
+    for (int j = dffFanoutStart[net]; j < dffFanoutStart[net + 1]; j++) {
+      int dff = dffFanout[j];
+      if (!queued[dff]) {
+        queued[dff] = true;
+        if (queueSize == queue.length) {
+          queue = Arrays.copyOf(queue, queueSize * 2);
+        }
+        queue[queueSize++] = dff;
+      }
+    }
+  }
+
+  private void schedule(int node) {
+    if (scheduled[node]) {
+      return;
+    }
+    scheduled[node] = true;
+    int level = levels[node];
+    if (bucketSizes[level] == buckets[level].length) {
+      buckets[level] = Arrays.copyOf(buckets[level], bucketSizes[level] * 2);
+    }
+    buckets[level][bucketSizes[level]++] = node;
+    lowest = Math.min(lowest, level);
+  }
+
+  /**
+   * Runs a chip with a ROM32K, normally Computer, on a .hack program: reset for one cycle, then -n cycles.
+   */
+  public static void main(String[] args) throws IOException {
+    List<File> path = new ArrayList<File>();
+    List<String> fast = new ArrayList<String>();
+    List<String> prints = new ArrayList<String>();
+    List<File> files = new ArrayList<File>();
+    long cycles = 1000000;
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if (args[i].equals("-p") && i + 1 < args.length) {
+          for (String directory : args[++i].split(File.pathSeparator)) {
+            path.add(new File(directory));
+          }
+        } else if (args[i].equals("--fast") && i + 1 < args.length) {
+          fast.addAll(Arrays.asList(args[++i].split(",")));
+        } else if (args[i].equals("-n") && i + 1 < args.length) {
+          cycles = Long.parseLong(args[++i]);
+        } else if (args[i].equals("--print") && i + 1 < args.length) {
+          prints.add(args[++i]);
+        } else if (args[i].startsWith("-")) {
+          throw new IllegalArgumentException(args[i]);
+        } else {
+          files.add(new File(args[i]));
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      files.clear();
+    }
+    if (files.size() != 2 || !files.get(1).getName().endsWith(".hack")) {
+      System.out.println("use: java EventSimulator [-p dir:dir...] [--fast RAM16K,Register,...] [-n cycles] [--print address[..address]] Computer.hdl program.hack");
+      return;
+    }
+
+    File chipFile = files.get(0);
+    path.add(0, chipFile.getAbsoluteFile().getParentFile());
+    ChipLibrary library = new ChipLibrary(path);
+    for (String chip : fast) {
+      library.useBuiltin(chip);
+    }
+    String name = chipFile.getName().replaceAll("\\.hdl$", "");
+
+    long start = System.nanoTime();
+    Netlist netlist = new Netlist(library, library.get(name));
+    EventSimulator simulator = new EventSimulator(netlist);
+    System.out.println(String.format("%s: %d gates, %d DFFs, %d built-in parts, depth %d, built in %.2f s", name,
+        netlist.gateCount(), netlist.dffCount(), netlist.elementCount(), netlist.depth(),
+        (System.nanoTime() - start) / 1e9));
+
+    BuiltinChips.Rom rom = (BuiltinChips.Rom) netlist.behaviour("ROM32K");
+    if (rom == null) {
+      throw new IllegalArgumentException(name + " has no ROM32K");
+    }
+    List<String> lines = Files.readAllLines(files.get(1).toPath(), StandardCharsets.UTF_8);
+    List<Integer> program = new ArrayList<Integer>();
+    for (String line : lines) {
+      if (!line.trim().isEmpty()) {
+        program.add(Integer.parseInt(line.trim(), 2));
+      }
+    }
+    int[] words = new int[program.size()];
+    for (int i = 0; i < words.length; i++) {
+      words[i] = program.get(i);
+    }
+    rom.load(words);
+
+    start = System.nanoTime();
+    long evaluations = simulator.evaluations();
+    simulator.set("reset", 1);
+    simulator.tick();
+    simulator.set("reset", 0);
+    for (long cycle = 0; cycle < cycles; cycle++) {
+      simulator.tick();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.println(String.format("%d cycles in %.2f s, %.0f cycles/s, %.0f evaluations per cycle", cycles,
+        seconds, cycles / seconds, (simulator.evaluations() - evaluations) / (double) (cycles + 1)));
+
+    if (!prints.isEmpty()) {
+      BuiltinChips.Ram ram = (BuiltinChips.Ram) netlist.behaviour("RAM16K");
+      if (ram == null) {
+        throw new IllegalArgumentException("--print reads the RAM16K built-in; use --fast RAM16K");
+      }
+      for (String range : prints) {
+        String[] bounds = range.split("\\.\\.");
+        int from = Integer.parseInt(bounds[0]);
+        int to = Integer.parseInt(bounds[bounds.length - 1]);
+        for (int address = from; address <= to; address++) {
+          System.out.println("RAM[" + address + "] = " + (short) ram.peek(address));
+        }
+      }
+    }
+  }
+}
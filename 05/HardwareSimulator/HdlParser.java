@@ -0,0 +1,212 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the HDL of one chip:
+ *   CHIP Name { IN a, b[16]; OUT out[16]; PARTS: Part(pin=signal, pin[0..7]=signal[8], ...); ... }
+ * with BUILTIN Name; and CLOCKED pins; in place of or next to PARTS.
+ */
+public class HdlParser {
+  private final String source;
+  private final List<String> tokens = new ArrayList<String>();
+  private final List<Integer> lines = new ArrayList<Integer>();
+  private int position;
+
+  public HdlParser(File file) throws IOException {
+    this(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8), file.getPath());
+  }
+
+  public HdlParser(String text, String source) {
+    this.source = source;
+    tokenize(text);
+  }
+
+  private void tokenize(String text) {
+    int line = 1;
+    int i = 0;
+    while (i < text.length()) {
+      char c = text.charAt(i);
+      if (c == '\n') {
+        line++;
+        i++;
+      } else if (Character.isWhitespace(c)) {
+        i++;
+      } else if (text.startsWith("//", i)) {
+        while (i < text.length() && text.charAt(i) != '\n') {
+          i++;
+        }
+      } else if (text.startsWith("/*", i)) {
+        int end = text.indexOf("*/", i + 2);
+        end = end == -1 ? text.length() : end + 2;
+        for (int j = i; j < end; j++) {
+          if (text.charAt(j) == '\n') {
+            line++;
+          }
+        }
+        i = end;
+      } else if (Character.isLetterOrDigit(c) || c == '_' || c == '.' && !text.startsWith("..", i)) {
+        int start = i;
+        while (i < text.length() && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '_'
+            || text.charAt(i) == '.' && !text.startsWith("..", i))) {
+          i++;
+        }
+        add(text.substring(start, i), line);
+      } else if (text.startsWith("..", i)) {
+        add("..", line);
+        i += 2;
+      } else {
+        add(String.valueOf(c), line);
+        i++;
+      }
+    }
+  }
+
+  private void add(String token, int line) {
+    tokens.add(token);
+    lines.add(line);
+  }
+
+  public ChipDefinition parse() {
+    expect("CHIP");
+    ChipDefinition chip = new ChipDefinition(next());
+    expect("{");
+
+    while (!peek().equals("}")) {
+      String keyword = next();
+      switch (keyword) {
+        case "IN":
+          pins(chip.inputs);
+          break;
+        case "OUT":
+          pins(chip.outputs);
+          break;
+        case "PARTS":
+          expect(":");
+          while (!peek().equals("}") && !peek().equals("BUILTIN") && !peek().equals("CLOCKED")) {
+            chip.parts.add(part());
+          }
+          break;
+        case "BUILTIN":
+          chip.builtin = next();
+          expect(";");
+          break;
+        case "CLOCKED":
+          while (true) {
+            chip.clocked.add(next());
+            if (next().equals(";")) {
+              break;
+            }
+          }
+          break;
+        default:
+          throw error("Unexpected " + keyword);
+      }
+    }
+    expect("}");
+    return chip;
+  }
+
+  private void pins(List<ChipDefinition.Pin> pins) {
+    while (true) {
+      String name = next();
+      int width = 1;
+      if (peek().equals("[")) {
+        next();
+        width = number();
+        expect("]");
+      }
+      pins.add(new ChipDefinition.Pin(name, width));
+      String separator = next();
+      if (separator.equals(";")) {
+        return;
+      }
+      if (!separator.equals(",")) {
+        throw error("Expected , or ; but found " + separator);
+      }
+    }
+  }
+
+  private ChipDefinition.Part part() {
+    int line = lines.get(position);
+    ChipDefinition.Part part = new ChipDefinition.Part(next(), line);
+    expect("(");
+    while (true) {
+      String pin = next();
+      int[] pinRange = range();
+      expect("=");
+      String signal = next();
+      int[] signalRange = range();
+      part.connections.add(new ChipDefinition.Connection(pin, pinRange[0], pinRange[1], signal, signalRange[0],
+          signalRange[1]));
+
+      String separator = next();
+      if (separator.equals(")")) {
+        break;
+      }
+      if (!separator.equals(",")) {
+        throw error("Expected , or ) but found " + separator);
+      }
+    }
+    expect(";");
+    return part;
+  }
+
+  /**
+   * Parses an optional [i] or [i..j]; returns {-1, -1} if there is none.
+   */
+  private int[] range() {
+    if (!peek().equals("[")) {
+      return new int[] { -1, -1 };
+    }
+    next();
+    int from = number();
+    int to = from;
+    if (peek().equals("..")) {
+      next();
+      to = number();
+    }
+    expect("]");
+    if (to < from) {
+      throw error("Invalid range [" + from + ".." + to + "]");
+    }
+    return new int[] { from, to };
+  }
+
+  private int number() {
+    String token = next();
+    try {
+      return Integer.parseInt(token);
+    } catch (NumberFormatException e) {
+      throw error("Expected a number but found " + token);
+    }
+  }
+
+  private String peek() {
+    if (position == tokens.size()) {
+      throw error("Unexpected end of file");
+    }
+    return tokens.get(position);
+  }
+
+  private String next() {
+    String token = peek();
+    position++;
+    return token;
+  }
+
+  private void expect(String token) {
+    String found = next();
+    if (!found.equals(token)) {
+      throw error("Expected " + token + " but found " + found);
+    }
+  }
+
+  private IllegalArgumentException error(String message) {
+    int line = lines.isEmpty() ? 0 : lines.get(Math.min(position, lines.size() - 1));
+    return new IllegalArgumentException(source + ":" + line + ": " + message);
+  }
+}
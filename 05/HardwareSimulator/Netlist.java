@@ -0,0 +1,683 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A chip flattened to Nand gates and DFFs over single-bit nets.
+ *
+ * Every bit of every signal is a net; net 0 is false and net 1 is true. Parts are expanded recursively down to
+ * the primitives, an output pin connected to several signals makes them one net, and unconnected input pins
+ * read false. Built-in chips other than Nand and DFF stay whole, as elements simulated by their BuiltinChips
+ * behaviour. The gates are then sorted into evaluation order (levelised): a gate comes after the gates driving
+ * its inputs, so one pass over the gates settles the combinational logic. Inputs of the chip, DFF outputs and
+ * the constants are the sources.
+ *
+ * Values are bit-parallel: a net holds a long, one bit per lane, so one pass evaluates 64 input vectors.
+ * Netlists with elements are simulated one vector at a time by EventSimulator.
+ *
+ * Net names, for messages only, are kept per signal and per part instance, not per net, so that a whole
+ * Computer with gate-level RAM fits in memory.
+ */
+public class Netlist {
+  public static final int FALSE = 0;
+  public static final int TRUE = 1;
+
+  /**
+   * Settles the combinational logic of a netlist over an array of net values.
+   */
+  public interface Evaluator {
+    void evaluate(long[] nets);
+  }
+
+  /**
+   * A built-in chip in the netlist: the nets of each pin, in the order of its definition.
+   */
+  static class Element {
+    final ChipDefinition chip;
+    final BuiltinChips.Behaviour behaviour;
+    final int[][] inputs;
+    final int[][] outputs;
+    // nets of the inputs that are not CLOCKED, which the outputs depend on at once
+    int[] combinational;
+
+    Element(ChipDefinition chip, BuiltinChips.Behaviour behaviour, int[][] inputs, int[][] outputs) {
+      this.chip = chip;
+      this.behaviour = behaviour;
+      this.inputs = inputs;
+      this.outputs = outputs;
+    }
+  }
+
+  private final ChipLibrary library;
+  private final ChipDefinition chip;
+
+  private int netCount = 2;
+  private int[] parents = new int[256];
+
+  // a group is the nets of one signal of one instance, from its start to the next group's start
+  private int groupCount;
+  private int[] groupStarts = new int[64];
+  private int[] groupInstances = new int[64];
+  private String[] groupSignals = new String[64];
+  private int instanceCount;
+  private int[] instanceParents = new int[64];
+  private String[] instanceChips = new String[64];
+
+  private int[] gateA = new int[256];
+  private int[] gateB = new int[256];
+  private int[] gateOut = new int[256];
+  private int gateCount;
+  private int[] dffIn = new int[16];
+  private int[] dffOut = new int[16];
+  private int dffCount;
+  private final List<Element> elements = new ArrayList<Element>();
+  private int[] gateLevels;
+  private int[] elementLevels;
+  private int depth;
+
+  private final Map<String, int[]> inputs = new LinkedHashMap<String, int[]>();
+  private final Map<String, int[]> outputs = new LinkedHashMap<String, int[]>();
+
+  public Netlist(ChipLibrary library, ChipDefinition chip) {
+    this.library = library;
+    this.chip = chip;
+    parents[FALSE] = FALSE;
+    parents[TRUE] = TRUE;
+
+    int top = newInstance(-1, chip.name);
+    Map<String, int[]> pins = new HashMap<String, int[]>();
+    for (ChipDefinition.Pin pin : chip.inputs) {
+      inputs.put(pin.name, newNets(top, pin.name, pin.width));
+      pins.put(pin.name, inputs.get(pin.name));
+    }
+    for (ChipDefinition.Pin pin : chip.outputs) {
+      outputs.put(pin.name, newNets(top, pin.name, pin.width));
+      pins.put(pin.name, outputs.get(pin.name));
+    }
+    if (chip.builtin != null) {
+      builtin(chip, pins, top);
+    } else {
+      instantiate(chip, pins, top);
+    }
+
+    resolveAliases();
+    levelise();
+  }
+
+  public ChipDefinition chip() {
+    return chip;
+  }
+
+  public int netCount() {
+    return netCount;
+  }
+
+  public int gateCount() {
+    return gateCount;
+  }
+
+  public int dffCount() {
+    return dffCount;
+  }
+
+  /**
+   * Returns the number of built-in chips simulated by their behaviour.
+   */
+  public int elementCount() {
+    return elements.size();
+  }
+
+  /**
+   * Returns the behaviour of the first built-in chip of that name, null if there is none.
+   */
+  public BuiltinChips.Behaviour behaviour(String chip) {
+    for (Element element : elements) {
+      if (element.chip.name.equals(chip)) {
+        return element.behaviour;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the number of gates on the longest path through the combinational logic.
+   */
+  public int depth() {
+    return depth;
+  }
+
+  /**
+   * Returns the nets of an input pin, bit 0 first.
+   */
+  public int[] input(String pin) {
+    return inputs.get(pin);
+  }
+
+  public int[] output(String pin) {
+    return outputs.get(pin);
+  }
+
+  public String netName(int net) {
+    if (net == FALSE || net == TRUE) {
+      return net == TRUE ? "true" : "false";
+    }
+    int low = 0;
+    int high = groupCount - 1;
+    while (low < high) {
+      int middle = (low + high + 1) >>> 1;
+      if (groupStarts[middle] <= net) {
+        low = middle;
+      } else {
+        high = middle - 1;
+      }
+    }
+    int end = low + 1 < groupCount ? groupStarts[low + 1] : netCount;
+    String path = instanceChips[groupInstances[low]];
+    for (int instance = instanceParents[groupInstances[low]]; instance != -1; instance = instanceParents[instance]) {
+      path = instanceChips[instance] + "/" + path;
+    }
+    String name = path + "." + groupSignals[low];
+    return end - groupStarts[low] == 1 ? name : name + "[" + (net - groupStarts[low]) + "]";
+  }
+
+  int[] gateA() {
+    return gateA;
+  }
+
+  int[] gateB() {
+    return gateB;
+  }
+
+  int[] gateOut() {
+    return gateOut;
+  }
+
+  int[] dffIn() {
+    return dffIn;
+  }
+
+  int[] dffOut() {
+    return dffOut;
+  }
+
+  int[] gateLevels() {
+    return gateLevels;
+  }
+
+  List<Element> elements() {
+    return elements;
+  }
+
+  int[] elementLevels() {
+    return elementLevels;
+  }
+
+  /**
+   * Returns net values for this netlist: all false, with the true net set in every lane.
+   */
+  public long[] newState() {
+    long[] nets = new long[netCount];
+    nets[TRUE] = -1L;
+    return nets;
+  }
+
+  /**
+   * Settles the combinational logic, gate by gate.
+   */
+  public void evaluate(long[] nets) {
+    checkGatesOnly();
+    final int[] a = gateA;
+    final int[] b = gateB;
+    final int[] out = gateOut;
+    for (int i = 0; i < gateCount; i++) {
+      nets[out[i]] = ~(nets[a[i]] & nets[b[i]]);
+    }
+  }
+
+  /**
+   * A clock edge: every DFF takes the value at its input, all at once.
+   */
+  public void tick(long[] nets) {
+    checkGatesOnly();
+    long[] next = new long[dffCount];
+    for (int i = 0; i < dffCount; i++) {
+      next[i] = nets[dffIn[i]];
+    }
+    for (int i = 0; i < dffCount; i++) {
+      nets[dffOut[i]] = next[i];
+    }
+  }
+
+  /**
+   * Throws IllegalStateException if some chips are simulated by their behaviour, which only EventSimulator does.
+   */
+  void checkGatesOnly() {
+    if (!elements.isEmpty()) {
+      throw new IllegalStateException(chip.name + " has built-in parts; use EventSimulator");
+    }
+  }
+
+  private int newInstance(int parent, String chip) {
+    if (instanceCount == instanceChips.length) {
+      instanceParents = Arrays.copyOf(instanceParents, instanceCount * 2);
+      instanceChips = Arrays.copyOf(instanceChips, instanceCount * 2);
+    }
+    instanceParents[instanceCount] = parent;
+    instanceChips[instanceCount] = chip;
+    return instanceCount++;
+  }
+
+  private int[] newNets(int instance, String signal, int width) {
+    if (groupCount == groupStarts.length) {
+      groupStarts = Arrays.copyOf(groupStarts, groupCount * 2);
+      groupInstances = Arrays.copyOf(groupInstances, groupCount * 2);
+      groupSignals = Arrays.copyOf(groupSignals, groupCount * 2);
+    }
+    groupStarts[groupCount] = netCount;
+    groupInstances[groupCount] = instance;
+    groupSignals[groupCount] = signal;
+    groupCount++;
+
+    int[] nets = new int[width];
+    for (int i = 0; i < width; i++) {
+      if (netCount == parents.length) {
+        parents = Arrays.copyOf(parents, netCount * 2);
+      }
+      parents[netCount] = netCount;
+      nets[i] = netCount++;
+    }
+    return nets;
+  }
+
+  private int find(int net) {
+    while (parents[net] != net) {
+      parents[net] = parents[parents[net]];
+      net = parents[net];
+    }
+    return net;
+  }
+
+  private void union(int net, int other) {
+    net = find(net);
+    other = find(other);
+    if (net != other) {
+      parents[Math.max(net, other)] = Math.min(net, other);
+    }
+  }
+
+  private void instantiate(ChipDefinition definition, Map<String, int[]> pins, int instance) {
+    if (definition.parts.isEmpty()) {
+      throw new IllegalArgumentException("Chip " + definition.name + " has no parts");
+    }
+
+    Map<String, int[]> signals = new HashMap<String, int[]>(pins);
+    for (ChipDefinition.Part part : definition.parts) {
+      ChipDefinition sub = library.get(part.chip);
+
+      Map<String, int[]> subPins = new HashMap<String, int[]>();
+      for (ChipDefinition.Pin pin : sub.inputs) {
+        subPins.put(pin.name, new int[pin.width]);
+      }
+      for (ChipDefinition.Pin pin : sub.outputs) {
+        int[] nets = new int[pin.width];
+        Arrays.fill(nets, -1);
+        subPins.put(pin.name, nets);
+      }
+
+      for (ChipDefinition.Connection connection : part.connections) {
+        ChipDefinition.Pin pin = sub.pin(connection.pin);
+        if (pin == null) {
+          throw new IllegalArgumentException(where(definition, part) + " has no pin " + connection.pin);
+        }
+        int from = connection.pinFrom == -1 ? 0 : connection.pinFrom;
+        int to = connection.pinFrom == -1 ? pin.width - 1 : connection.pinTo;
+        if (to >= pin.width) {
+          throw new IllegalArgumentException(where(definition, part) + ": " + connection.pin + "[" + to
+              + "] out of range");
+        }
+        boolean input = sub.isInput(connection.pin);
+        int[] nets = subPins.get(connection.pin);
+
+        if (connection.signal.equals("true") || connection.signal.equals("false")) {
+          if (!input) {
+            throw new IllegalArgumentException(where(definition, part) + ": output " + connection.pin
+                + " connected to a constant");
+          }
+          Arrays.fill(nets, from, to + 1, connection.signal.equals("true") ? TRUE : FALSE);
+          continue;
+        }
+
+        int[] signal = signal(definition, part, signals, connection, to - from + 1, input, instance);
+        for (int i = 0; i < signal.length; i++) {
+          if (input || nets[from + i] == -1) {
+            nets[from + i] = signal[i];
+          } else {
+            union(nets[from + i], signal[i]);
+          }
+        }
+      }
+
+      // unconnected outputs get nets of their own, named after the part's pin
+      int subInstance = sub.builtin == null ? newInstance(instance, part.chip) : instance;
+      for (ChipDefinition.Pin pin : sub.outputs) {
+        int[] nets = subPins.get(pin.name);
+        int[] unconnected = null;
+        for (int i = 0; i < nets.length; i++) {
+          if (nets[i] == -1) {
+            if (unconnected == null) {
+              unconnected = newNets(subInstance, sub.builtin == null ? pin.name : part.chip + "." + pin.name,
+                  nets.length);
+            }
+            nets[i] = unconnected[i];
+          }
+        }
+      }
+      if (sub.builtin != null) {
+        builtin(sub, subPins, instance);
+      } else {
+        instantiate(sub, subPins, subInstance);
+      }
+    }
+  }
+
+  private static String where(ChipDefinition definition, ChipDefinition.Part part) {
+    return definition.name + ".hdl:" + part.line + ": " + part.chip;
+  }
+
+  /**
+   * Returns the nets of the bits of a signal that a connection selects, creating internal signals on first use.
+   */
+  private int[] signal(ChipDefinition definition, ChipDefinition.Part part, Map<String, int[]> signals,
+      ChipDefinition.Connection connection, int width, boolean input, int instance) {
+    if (!input && definition.isInput(connection.signal)) {
+      throw new IllegalArgumentException(where(definition, part) + ": drives input pin " + connection.signal);
+    }
+
+    int[] nets = signals.get(connection.signal);
+    if (nets == null) {
+      if (connection.signalFrom != -1) {
+        throw new IllegalArgumentException(where(definition, part) + ": sub bus of internal signal "
+            + connection.signal);
+      }
+      nets = newNets(instance, connection.signal, width);
+      signals.put(connection.signal, nets);
+    }
+
+    int from = connection.signalFrom == -1 ? 0 : connection.signalFrom;
+    int to = connection.signalFrom == -1 ? nets.length - 1 : connection.signalTo;
+    if (to >= nets.length) {
+      throw new IllegalArgumentException(where(definition, part) + ": " + connection.signal + "[" + to
+          + "] out of range");
+    }
+    if (to - from + 1 != width) {
+      throw new IllegalArgumentException(where(definition, part) + ": " + connection.pin + " is " + width
+          + " bits wide, " + connection.signal + " " + (to - from + 1));
+    }
+    if (from == 0 && to == nets.length - 1) {
+      return nets;
+    }
+    return Arrays.copyOfRange(nets, from, to + 1);
+  }
+
+  private void builtin(ChipDefinition definition, Map<String, int[]> pins, int instance) {
+    switch (definition.builtin) {
+      case ChipLibrary.NAND:
+        if (gateCount == gateOut.length) {
+          gateA = Arrays.copyOf(gateA, gateCount * 2);
+          gateB = Arrays.copyOf(gateB, gateCount * 2);
+          gateOut = Arrays.copyOf(gateOut, gateCount * 2);
+        }
+        gateA[gateCount] = pins.get("a")[0];
+        gateB[gateCount] = pins.get("b")[0];
+        gateOut[gateCount] = pins.get("out")[0];
+        gateCount++;
+        break;
+      case ChipLibrary.DFF:
+        if (dffCount == dffOut.length) {
+          dffIn = Arrays.copyOf(dffIn, dffCount * 2);
+          dffOut = Arrays.copyOf(dffOut, dffCount * 2);
+        }
+        dffIn[dffCount] = pins.get("in")[0];
+        dffOut[dffCount] = pins.get("out")[0];
+        dffCount++;
+        break;
+      default:
+        BuiltinChips.Behaviour behaviour = BuiltinChips.behaviour(definition.builtin);
+        if (behaviour == null) {
+          throw new IllegalArgumentException("No implementation of built-in chip " + definition.builtin + " in "
+              + instanceChips[instance]);
+        }
+        int[][] in = new int[definition.inputs.size()][];
+        int[][] out = new int[definition.outputs.size()][];
+        for (int i = 0; i < in.length; i++) {
+          in[i] = pins.get(definition.inputs.get(i).name);
+        }
+        for (int i = 0; i < out.length; i++) {
+          out[i] = pins.get(definition.outputs.get(i).name);
+        }
+        elements.add(new Element(definition, behaviour, in, out));
+    }
+  }
+
+  private void resolveAliases() {
+    for (int i = 0; i < gateCount; i++) {
+      gateA[i] = find(gateA[i]);
+      gateB[i] = find(gateB[i]);
+      gateOut[i] = find(gateOut[i]);
+    }
+    for (int i = 0; i < dffCount; i++) {
+      dffIn[i] = find(dffIn[i]);
+      dffOut[i] = find(dffOut[i]);
+    }
+    List<int[]> buses = new ArrayList<int[]>(inputs.values());
+    buses.addAll(outputs.values());
+    for (Element element : elements) {
+      buses.addAll(Arrays.asList(element.inputs));
+      buses.addAll(Arrays.asList(element.outputs));
+    }
+    for (int[] nets : buses) {
+      for (int i = 0; i < nets.length; i++) {
+        nets[i] = find(nets[i]);
+      }
+    }
+
+    for (Element element : elements) {
+      int count = 0;
+      for (int i = 0; i < element.inputs.length; i++) {
+        if (!element.chip.clocked.contains(element.chip.inputs.get(i).name)) {
+          count += element.inputs[i].length;
+        }
+      }
+      element.combinational = new int[count];
+      count = 0;
+      for (int i = 0; i < element.inputs.length; i++) {
+        if (!element.chip.clocked.contains(element.chip.inputs.get(i).name)) {
+          for (int net : element.inputs[i]) {
+            element.combinational[count++] = net;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Sorts the gates so that every gate comes after the gates driving its inputs, and gives every gate and
+   * element its level: one more than the highest level among its sources, which are level 0.
+   * Nodes 0 to gateCount - 1 are the gates, the elements follow.
+   */
+  private void levelise() {
+    int nodeCount = gateCount + elements.size();
+
+    // driver of each net: -1 none, -2 a source, else the node
+    int[] drivers = new int[netCount];
+    Arrays.fill(drivers, -1);
+    drivers[FALSE] = -2;
+    drivers[TRUE] = -2;
+    for (int[] nets : inputs.values()) {
+      for (int net : nets) {
+        drivers[net] = -2;
+      }
+    }
+    for (int i = 0; i < dffCount; i++) {
+      drive(drivers, dffOut[i], -2);
+    }
+    for (int i = 0; i < gateCount; i++) {
+      drive(drivers, gateOut[i], i);
+    }
+    for (int i = 0; i < elements.size(); i++) {
+      for (int[] nets : elements.get(i).outputs) {
+        for (int net : nets) {
+          drive(drivers, net, gateCount + i);
+        }
+      }
+    }
+    for (int i = 0; i < gateCount; i++) {
+      checkDriven(drivers, gateA[i]);
+      checkDriven(drivers, gateB[i]);
+    }
+    for (int i = 0; i < dffCount; i++) {
+      checkDriven(drivers, dffIn[i]);
+    }
+    for (Element element : elements) {
+      for (int[] nets : element.inputs) {
+        for (int net : nets) {
+          checkDriven(drivers, net);
+        }
+      }
+    }
+    for (int[] nets : outputs.values()) {
+      for (int net : nets) {
+        checkDriven(drivers, net);
+      }
+    }
+
+    // fan-out of each net, as lists of nodes in one array
+    int[] fanoutStart = new int[netCount + 1];
+    for (int i = 0; i < gateCount; i++) {
+      fanoutStart[gateA[i] + 1]++;
+      fanoutStart[gateB[i] + 1]++;
+    }
+    for (Element element : elements) {
+      for (int net : element.combinational) {
+        fanoutStart[net + 1]++;
+      }
+    }
+    for (int net = 0; net < netCount; net++) {
+      fanoutStart[net + 1] += fanoutStart[net];
+    }
+    int[] fanout = new int[fanoutStart[netCount]];
+    int[] fill = Arrays.copyOf(fanoutStart, netCount);
+    for (int i = 0; i < gateCount; i++) {
+      fanout[fill[gateA[i]]++] = i;
+      fanout[fill[gateB[i]]++] = i;
+    }
+    for (int i = 0; i < elements.size(); i++) {
+      for (int net : elements.get(i).combinational) {
+        fanout[fill[net]++] = gateCount + i;
+      }
+    }
+    fill = null;
+
+    // Kahn's algorithm; waiting counts the inputs of a node that are driven by nodes not yet placed
+    int[] waiting = new int[nodeCount];
+    int[] order = new int[nodeCount];
+    int placed = 0;
+    for (int i = 0; i < nodeCount; i++) {
+      if (i < gateCount) {
+        waiting[i] = (drivers[gateA[i]] >= 0 ? 1 : 0) + (drivers[gateB[i]] >= 0 ? 1 : 0);
+      } else {
+        for (int net : elements.get(i - gateCount).combinational) {
+          waiting[i] += drivers[net] >= 0 ? 1 : 0;
+        }
+      }
+      if (waiting[i] == 0) {
+        order[placed++] = i;
+      }
+    }
+    drivers = null;
+
+    int[] levels = new int[netCount];
+    int[] nodeLevels = new int[nodeCount];
+    for (int next = 0; next < placed; next++) {
+      int node = order[next];
+      int level = 0;
+      if (node < gateCount) {
+        level = Math.max(levels[gateA[node]], levels[gateB[node]]) + 1;
+        levels[gateOut[node]] = level;
+        placed = settled(gateOut[node], fanoutStart, fanout, waiting, order, placed);
+      } else {
+        Element element = elements.get(node - gateCount);
+        for (int net : element.combinational) {
+          level = Math.max(level, levels[net]);
+        }
+        level++;
+        for (int[] nets : element.outputs) {
+          for (int net : nets) {
+            levels[net] = level;
+            placed = settled(net, fanoutStart, fanout, waiting, order, placed);
+          }
+        }
+      }
+      nodeLevels[node] = level;
+      depth = Math.max(depth, level);
+    }
+    if (placed < nodeCount) {
+      for (int i = 0; i < nodeCount; i++) {
+        if (waiting[i] > 0) {
+          throw new IllegalArgumentException("Combinational loop through "
+              + (i < gateCount ? netName(gateOut[i]) : elements.get(i - gateCount).chip.name));
+        }
+      }
+    }
+
+    int[] a = new int[gateCount];
+    int[] b = new int[gateCount];
+    int[] out = new int[gateCount];
+    gateLevels = new int[gateCount];
+    elementLevels = new int[elements.size()];
+    int sorted = 0;
+    for (int i = 0; i < nodeCount; i++) {
+      int node = order[i];
+      if (node < gateCount) {
+        a[sorted] = gateA[node];
+        b[sorted] = gateB[node];
+        out[sorted] = gateOut[node];
+        gateLevels[sorted++] = nodeLevels[node];
+      } else {
+        elementLevels[node - gateCount] = nodeLevels[node];
+      }
+    }
+    gateA = a;
+    gateB = b;
+    gateOut = out;
+  }
+
+  /**
+   * A net has its level: places the nodes reading it that now have all their inputs.
+   */
+  private static int settled(int net, int[] fanoutStart, int[] fanout, int[] waiting, int[] order,
+      int placed) {
+    for (int j = fanoutStart[net]; j < fanoutStart[net + 1]; j++) {
+      if (--waiting[fanout[j]] == 0) {
+        order[placed++] = fanout[j];
+      }
+    }
+    return placed;
+  }
+
+  private void drive(int[] drivers, int net, int node) {
+    if (drivers[net] != -1) {
+      throw new IllegalArgumentException(netName(net) + " has more than one source");
+    }
+    drivers[net] = node;
+  }
+
+  private void checkDriven(int[] drivers, int net) {
+    if (drivers[net] == -1) {
+      throw new IllegalArgumentException(netName(net) + " has no source");
+    }
+  }
+}
@@ -0,0 +1,206 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles the gates of a netlist to straight-line bytecode: for each gate, in evaluation order,
+ *   nets[out] = ~(nets[a] & nets[b]);
+ * with the net indexes as constants. The gates are split into chunks of CHUNK gates, each a hidden class, so
+ * that no method gets too big for the JVM's own JIT compiler (HugeMethodLimit is 8000 bytes and a gate takes 19).
+ * The class files are written by hand, like the blocks of HackJit.
+ */
+public class NetlistCompiler {
+  public static final int CHUNK = 400;
+
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+  // constant pool
+  private static final int THIS_CLASS = 2;
+  private static final int OBJECT_CLASS = 4;
+  private static final int EVALUATOR_INTERFACE = 6;
+  private static final int INIT_NAME = 7;
+  private static final int INIT_DESCRIPTOR = 8;
+  private static final int OBJECT_INIT = 10;
+  private static final int EVALUATE_NAME = 11;
+  private static final int EVALUATE_DESCRIPTOR = 12;
+  private static final int CODE_ATTRIBUTE = 13;
+  private static final int FIRST_INTEGER = 14;
+
+  private static final int ICONST_M1 = 0x02, SIPUSH = 0x11, LDC_W = 0x13, ALOAD_0 = 0x2A, ALOAD_1 = 0x2B;
+  private static final int LALOAD = 0x2F, LASTORE = 0x50, LAND = 0x7F, LXOR = 0x83, I2L = 0x85, RETURN = 0xB1;
+  private static final int INVOKESPECIAL = 0xB7;
+
+  private NetlistCompiler() {
+  }
+
+  /**
+   * Returns an evaluator that settles the netlist like Netlist.evaluate.
+   */
+  public static Netlist.Evaluator compile(Netlist netlist) {
+    netlist.checkGatesOnly();
+    final List<Netlist.Evaluator> chunks = new ArrayList<Netlist.Evaluator>();
+    for (int start = 0; start < netlist.gateCount(); start += CHUNK) {
+      int end = Math.min(start + CHUNK, netlist.gateCount());
+      byte[] classFile = new Chunk(netlist, start, end).classFile();
+      try {
+        Class<?> chunkClass = LOOKUP.defineHiddenClass(classFile, true).lookupClass();
+        chunks.add((Netlist.Evaluator) chunkClass.getDeclaredConstructor().newInstance());
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException("Cannot load compiled gates of " + netlist.chip().name, e);
+      }
+    }
+
+    if (chunks.size() == 1) {
+      return chunks.get(0);
+    }
+    final Netlist.Evaluator[] evaluators = chunks.toArray(new Netlist.Evaluator[0]);
+    return new Netlist.Evaluator() {
+      @Override
+      public void evaluate(long[] nets) {
+        for (Netlist.Evaluator evaluator : evaluators) {
+          evaluator.evaluate(nets);
+        }
+      }
+    };
+  }
+
+  /**
+   * Writes the class file of one chunk of gates.
+   */
+  private static class Chunk {
+    private final Netlist netlist;
+    private final int start;
+    private final int end;
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    // net indexes too big for sipush, with their constant pool entries
+    private final Map<Integer, Integer> integers = new HashMap<Integer, Integer>();
+    private final List<Integer> integerOrder = new ArrayList<Integer>();
+
+    Chunk(Netlist netlist, int start, int end) {
+      this.netlist = netlist;
+      this.start = start;
+      this.end = end;
+    }
+
+    byte[] classFile() {
+      int[] a = netlist.gateA();
+      int[] b = netlist.gateB();
+      int[] out = netlist.gateOut();
+      for (int i = start; i < end; i++) {
+        op(ALOAD_1);
+        index(out[i]);
+        op(ALOAD_1);
+        index(a[i]);
+        op(LALOAD);
+        op(ALOAD_1);
+        index(b[i]);
+        op(LALOAD);
+        op(LAND);
+        op(ICONST_M1);
+        op(I2L);
+        op(LXOR);
+        op(LASTORE);
+      }
+      op(RETURN);
+
+      try {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(0xCAFEBABE);
+        data.writeShort(0);
+        data.writeShort(52);
+        constantPool(data);
+        data.writeShort(0x0031); // public final super
+        data.writeShort(THIS_CLASS);
+        data.writeShort(OBJECT_CLASS);
+        data.writeShort(1);
+        data.writeShort(EVALUATOR_INTERFACE);
+        data.writeShort(0);
+        data.writeShort(2);
+
+        byte[] init = { (byte) ALOAD_0, (byte) INVOKESPECIAL, 0, OBJECT_INIT, (byte) RETURN };
+        method(data, INIT_NAME, INIT_DESCRIPTOR, 1, 1, init);
+        method(data, EVALUATE_NAME, EVALUATE_DESCRIPTOR, 6, 2, code.toByteArray());
+        data.writeShort(0);
+        return bytes.toByteArray();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private void constantPool(DataOutputStream out) throws IOException {
+      out.writeShort(FIRST_INTEGER + integerOrder.size());
+      utf8(out, "NetlistChunk");           // 1
+      reference(out, 7, 1);                // 2 class
+      utf8(out, "java/lang/Object");       // 3
+      reference(out, 7, 3);                // 4 class
+      utf8(out, "Netlist$Evaluator");      // 5
+      reference(out, 7, 5);                // 6 class
+      utf8(out, "<init>");                 // 7
+      utf8(out, "()V");                    // 8
+      reference(out, 12, 7, 8);            // 9 name and type
+      reference(out, 10, 4, 9);            // 10 method
+      utf8(out, "evaluate");               // 11
+      utf8(out, "([J)V");                  // 12
+      utf8(out, "Code");                   // 13
+      for (int value : integerOrder) {     // 14... integer
+        out.writeByte(3);
+        out.writeInt(value);
+      }
+    }
+
+    private static void utf8(DataOutputStream out, String text) throws IOException {
+      out.writeByte(1);
+      out.writeUTF(text);
+    }
+
+    private static void reference(DataOutputStream out, int tag, int... indexes) throws IOException {
+      out.writeByte(tag);
+      for (int index : indexes) {
+        out.writeShort(index);
+      }
+    }
+
+    private static void method(DataOutputStream out, int name, int descriptor, int maxStack, int maxLocals,
+        byte[] code) throws IOException {
+      out.writeShort(0x0001); // public
+      out.writeShort(name);
+      out.writeShort(descriptor);
+      out.writeShort(1);
+      out.writeShort(CODE_ATTRIBUTE);
+      out.writeInt(12 + code.length);
+      out.writeShort(maxStack);
+      out.writeShort(maxLocals);
+      out.writeInt(code.length);
+      out.write(code);
+      out.writeShort(0);
+      out.writeShort(0);
+    }
+
+    private void index(int net) {
+      if (net <= Short.MAX_VALUE) {
+        op(SIPUSH, net >> 8, net & 0xFF);
+        return;
+      }
+      Integer entry = integers.get(net);
+      if (entry == null) {
+        entry = FIRST_INTEGER + integerOrder.size();
+        integers.put(net, entry);
+        integerOrder.add(net);
+      }
+      op(LDC_W, entry >> 8, entry & 0xFF);
+    }
+
+    private void op(int... bytes) {
+      for (int b : bytes) {
+        code.write(b);
+      }
+    }
+  }
+}
@@ -0,0 +1,142 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Times HackAssembler against the C++ assembler of 06/hack-assembler on .asm files, and on sets of --copies copies
+ * of each, every copy its own file so that each stays a valid program for the 32K ROM. Java runs in this process
+ * from the mapped .asm to the written .hack, the first pass over a set and the median of -r passes after it; the C++
+ * assembler runs as a process per file, which is what calling it from the translator costs. Both outputs must be
+ * equal. A row that fails is printed with its error and the benchmark goes on.
+ */
+public class AssemblerBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    String command = null;
+    int runs = 5;
+    int[] copies = { 1, 10, 100 };
+    List<Path> files = new ArrayList<Path>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--native") && i + 1 < args.length) {
+        command = args[++i];
+      } else if (args[i].equals("-r") && i + 1 < args.length) {
+        runs = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--copies") && i + 1 < args.length) {
+        String[] counts = args[++i].split(",");
+        copies = new int[counts.length];
+        for (int j = 0; j < counts.length; j++) {
+          copies[j] = Integer.parseInt(counts[j]);
+        }
+      } else {
+        files.add(Paths.get(args[i]));
+      }
+    }
+    if (command == null || files.isEmpty()) {
+      System.out.println("use: java AssemblerBenchmark --native path/to/chasm [-r runs] [--copies 1,10,100] file.asm...");
+      return;
+    }
+
+    Path directory = Files.createTempDirectory("asm-benchmark");
+    try {
+      System.out.println(String.format("%-24s %10s %12s %12s %12s  %s", "input", "lines", "java first", "java median",
+          "native", "output"));
+      for (Path file : files) {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        for (int count : copies) {
+          String name = file.getFileName().toString().replace(".asm", count == 1 ? "" : "x" + count);
+          try {
+            System.out.println(row(name, lines, count, command, runs, directory));
+          } catch (IOException | RuntimeException e) {
+            System.out.println(String.format("%-24s %10d  error: %s", name, lines.size() * count, e));
+          }
+        }
+      }
+    } finally {
+      Files.delete(directory);
+    }
+  }
+
+  /**
+   * Times count copies of a program, each written to its own file in directory and deleted afterwards.
+   */
+  private static String row(String name, List<String> lines, int count, String command, int runs, Path directory)
+      throws IOException, InterruptedException {
+    List<Path> inputs = new ArrayList<Path>();
+    try {
+      for (int i = 0; i < count; i++) {
+        Path input = directory.resolve(name + "." + i + ".asm");
+        inputs.add(input);
+        write(input, lines);
+      }
+
+      long[] javaTimes = new long[runs + 1];
+      for (int run = 0; run <= runs; run++) {
+        long start = System.nanoTime();
+        for (Path input : inputs) {
+          short[] rom = HackAssembler.assembleFile(input);
+          try (BufferedWriter writer = Files.newBufferedWriter(output(input, "java"), StandardCharsets.US_ASCII)) {
+            HackAssembler.writeHack(rom, writer);
+          }
+        }
+        javaTimes[run] = System.nanoTime() - start;
+      }
+
+      long[] nativeTimes = new long[runs];
+      for (int run = 0; run < runs; run++) {
+        long start = System.nanoTime();
+        for (Path input : inputs) {
+          Process process = new ProcessBuilder(command, input.toString(), output(input, "native").toString())
+              .redirectErrorStream(true).redirectOutput(new File("/dev/null")).start();
+          if (process.waitFor() != 0) {
+            throw new IllegalStateException(command + " failed on " + input);
+          }
+        }
+        nativeTimes[run] = System.nanoTime() - start;
+      }
+
+      boolean same = true;
+      for (Path input : inputs) {
+        same &= Arrays.equals(Files.readAllBytes(output(input, "java")), Files.readAllBytes(output(input, "native")));
+      }
+      return String.format("%-24s %10d %10.1f ms %10.1f ms %10.1f ms  %s", name, lines.size() * count,
+          javaTimes[0] / 1e6, median(Arrays.copyOfRange(javaTimes, 1, runs + 1)) / 1e6, median(nativeTimes) / 1e6,
+          same ? "same" : "DIFFERENT");
+    } finally {
+      for (Path input : inputs) {
+        Files.deleteIfExists(input);
+        Files.deleteIfExists(output(input, "java"));
+        Files.deleteIfExists(output(input, "native"));
+      }
+    }
+  }
+
+  /**
+   * Returns where the .hack of an input copy goes, input.tool.hack.
+   */
+  private static Path output(Path input, String tool) {
+    String name = input.getFileName().toString();
+    return input.resolveSibling(name.substring(0, name.length() - ".asm".length()) + "." + tool + ".hack");
+  }
+
+  private static void write(Path file, List<String> lines) throws IOException {
+    try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+      for (String line : lines) {
+        writer.write(line);
+        writer.write('\n');
+      }
+    }
+  }
+
+  private static long median(long[] times) {
+    long[] sorted = times.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2];
+  }
+}
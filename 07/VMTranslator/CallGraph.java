@@ -0,0 +1,187 @@
+import java.io.StringWriter;
+import java.util.Arrays;
+
+/**
+ * Whole-program call graph of the functions of a VMProgram, used to drop the functions
+ * that can never run before the program is translated.
+ *
+ * A function spans from its function command to the next function command or the end of its file.
+ * Commands before the first function of a file belong to no function and are always kept.
+ * Calls of functions not defined in the program add no edge; the first definition of a name wins.
+ */
+public class CallGraph {
+  private final VMProgram program;
+
+  private int functionCount;
+  private int[] starts = new int[64];
+  private int[] ends = new int[64];
+  private int[] files = new int[64];
+
+  // function index per name id, -1 for names that are not functions
+  private final int[] functionOfName;
+  private final boolean[] reachable;
+
+  public CallGraph(VMProgram program) {
+    this.program = program;
+
+    for (int file = 0; file < program.fileCount(); file++) {
+      for (int i = program.fileStart(file); i < program.fileEnd(file); i++) {
+        if (VMProgram.opcode(program.get(i)) == Opcode.FUNCTION) {
+          if (functionCount > 0 && ends[functionCount - 1] == -1) {
+            ends[functionCount - 1] = i;
+          }
+          addFunction(i, file);
+        }
+      }
+      if (functionCount > 0 && ends[functionCount - 1] == -1) {
+        ends[functionCount - 1] = program.fileEnd(file);
+      }
+    }
+
+    functionOfName = new int[program.nameCount()];
+    Arrays.fill(functionOfName, -1);
+    for (int f = functionCount - 1; f >= 0; f--) {
+      functionOfName[VMProgram.nameId(program.get(starts[f]))] = f;
+    }
+    reachable = new boolean[functionCount];
+  }
+
+  private void addFunction(int start, int file) {
+    if (functionCount == starts.length) {
+      starts = Arrays.copyOf(starts, functionCount * 2);
+      ends = Arrays.copyOf(ends, functionCount * 2);
+      files = Arrays.copyOf(files, functionCount * 2);
+    }
+    starts[functionCount] = start;
+    ends[functionCount] = -1;
+    files[functionCount] = file;
+    functionCount++;
+  }
+
+  public int functionCount() {
+    return functionCount;
+  }
+
+  /**
+   * Returns the position of the function command of function f.
+   */
+  public int start(int f) {
+    return starts[f];
+  }
+
+  /**
+   * Returns the position after the last command of function f.
+   */
+  public int end(int f) {
+    return ends[f];
+  }
+
+  /**
+   * Returns the source file function f was declared in.
+   */
+  public int file(int f) {
+    return files[f];
+  }
+
+  /**
+   * Returns the function with the given name id, -1 if the program does not define it.
+   */
+  public int functionOf(int nameId) {
+    return nameId < functionOfName.length ? functionOfName[nameId] : -1;
+  }
+
+  /**
+   * Marks every function reachable from the root through calls; returns false if the root is not defined.
+   */
+  public boolean markReachable(String root) {
+    int rootFunction = program.findFunction(root);
+    if (rootFunction == -1) {
+      return false;
+    }
+
+    int[] stack = new int[functionCount];
+    int top = 0;
+    stack[top++] = functionOfName[VMProgram.nameId(program.get(rootFunction))];
+    reachable[stack[0]] = true;
+
+    while (top > 0) {
+      int f = stack[--top];
+      for (int i = starts[f]; i < ends[f]; i++) {
+        int command = program.get(i);
+        if (VMProgram.opcode(command) != Opcode.CALL) {
+          continue;
+        }
+        int callee = functionOfName[VMProgram.nameId(command)];
+        if (callee != -1 && !reachable[callee]) {
+          reachable[callee] = true;
+          stack[top++] = callee;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns a copy of the program without the functions that were not marked reachable.
+   */
+  public VMProgram prune() {
+    VMProgram pruned = new VMProgram();
+    int f = 0;
+
+    for (int file = 0; file < program.fileCount(); file++) {
+      pruned.beginFile(program.fileName(file));
+      int position = program.fileStart(file);
+
+      for (; f < functionCount && files[f] == file; f++) {
+        pruned.append(program, position, starts[f]);
+        if (reachable[f]) {
+          pruned.append(program, starts[f], ends[f]);
+        }
+        position = ends[f];
+      }
+      pruned.append(program, position, program.fileEnd(file));
+    }
+    return pruned;
+  }
+
+  /**
+   * Lists every function as kept or removed with its size in VM commands and in the ROM instructions
+   * a CodeWriter configured with the given options emits for it.
+   */
+  public String report(TranslatorOptions options) {
+    StringBuilder rows = new StringBuilder();
+    int keptFunctions = 0;
+    int keptInstructions = 0;
+    int totalInstructions = 0;
+
+    for (int f = 0; f < functionCount; f++) {
+      int instructions = countInstructions(f, options);
+      totalInstructions += instructions;
+      if (reachable[f]) {
+        keptFunctions++;
+        keptInstructions += instructions;
+      }
+      rows.append(String.format("  %-8s %-40s %6d commands %7d instructions%n", reachable[f] ? "kept" : "removed",
+          program.name(VMProgram.nameId(program.get(starts[f]))), ends[f] - starts[f], instructions));
+    }
+
+    return String.format("Dead functions: kept %d of %d functions, %d of %d instructions (%d removed)%n",
+        keptFunctions, functionCount, keptInstructions, totalInstructions, totalInstructions - keptInstructions) + rows;
+  }
+
+  private int countInstructions(int f, TranslatorOptions options) {
+    StringWriter out = new StringWriter();
+    CodeWriter codeWriter = options.configure(new CodeWriter(out));
+    codeWriter.setFileName(program.fileName(files[f]));
+    codeWriter.writeCommands(program, starts[f], ends[f]);
+    codeWriter.close();
+
+    int count = 0;
+    for (String line : out.toString().split("\\R")) {
+      if (!line.isEmpty() && !line.startsWith("//") && !line.startsWith("(")) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
@@ -2,219 +2,775 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.PrintWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.util.EnumSet;
+import java.util.Map;
 
 public class CodeWriter {
   private PrintWriter printWriter;
+  private PeepholeOptimizer optimizer;
   private String fileName;
+  private String staticPrefix;
+  private String currentFunction;
 
+  // generated labels are named function$$n, which no VM label can spell
   private int labelCount = 0;
+  private int returnCount = 0;
+  private boolean callUsed = false;
+  private boolean returnUsed = false;
+
+  // top-of-stack caching: when topInD is set the top of the VM stack lives in D, not yet stored at RAM[SP]
+  private boolean tosCaching = false;
+  private boolean topInD = false;
+
+  private boolean sharedComparisons = false;
+  private EnumSet<Opcode> comparisonsUsed = EnumSet.noneOf(Opcode.class);
 
   public CodeWriter(File file) {
     printWriter = null;
-    File outputFile = new File(file.getAbsolutePath().split(".vm")[0] + ".asm");
+    File outputFile = new File(VMTranslator.withoutVmExtension(file.getAbsolutePath()) + ".asm");
     try {
       printWriter = new PrintWriter(new FileWriter(outputFile));
-      fileName = file.getName();
+      setFileName(file.getName());
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
+  /**
+   * Writes the assembly to the given writer instead of a file.
+   */
+  public CodeWriter(Writer writer) {
+    printWriter = new PrintWriter(writer);
+    setFileName("");
+  }
+
+  /**
+   * Routes all further output through a PeepholeOptimizer.
+   */
+  public void enablePeephole() {
+    optimizer = new PeepholeOptimizer(printWriter);
+    optimizer.beginUnit(fileName);
+  }
+
+  /**
+   * Returns how many instructions the peephole optimizer removed, per file, or null if it is not enabled.
+   */
+  public Map<String, Integer> peepholeSavings() {
+    return optimizer == null ? null : optimizer.savedPerUnit();
+  }
+
+  /**
+   * Keeps the top of the stack in D across consecutive commands; it is only stored to RAM
+   * before labels, jumps, calls and returns.
+   */
+  public void enableTosCaching() {
+    tosCaching = true;
+  }
+
+  /**
+   * Compiles eq/gt/lt into a call of one shared routine per comparison instead of inlining it.
+   */
+  public void enableSharedComparisons() {
+    sharedComparisons = true;
+  }
+
   public void setFileName(String fName) {
+    spillTop();
     fileName = fName;
+    staticPrefix = fName.split("\\.")[0];
+    currentFunction = staticPrefix;
+    if (optimizer != null) {
+      optimizer.beginUnit(fName);
+    }
+  }
+
+  /**
+   * Translates every command of the program, file by file.
+   */
+  public void writeProgram(VMProgram program) {
+    if (program.findFunction("Sys.init") != -1) {
+      writeInit();
+    }
+    for (int file = 0; file < program.fileCount(); file++) {
+      writeFile(program, file);
+    }
+    writeSharedRoutines();
+  }
+
+  /**
+   * Translates the commands of one source file of the program.
+   * The output only depends on that file, so files can be translated by separate CodeWriters.
+   */
+  public void writeFile(VMProgram program, int file) {
+    setFileName(program.fileName(file));
+    writeCommands(program, program.fileStart(file), program.fileEnd(file));
+  }
+
+  /**
+   * Translates the commands from..to-1 of the program, in the current file.
+   */
+  public void writeCommands(VMProgram program, int from, int to) {
+    for (int i = from; i < to; i++) {
+      int command = program.get(i);
+      Opcode opcode = VMProgram.opcode(command);
+
+      switch (opcode.commandType()) {
+        case C_PUSH:
+        case C_POP:
+          writePushPop(opcode.commandType(), VMProgram.segment(command), VMProgram.index(command));
+          break;
+        case C_ARITHMETIC:
+          writeArithmetic(opcode);
+          break;
+        case C_LABEL:
+          writeLabel(program.name(VMProgram.nameId(command)));
+          break;
+        case C_GOTO:
+          writeGoto(program.name(VMProgram.nameId(command)));
+          break;
+        case C_IF:
+          writeIf(program.name(VMProgram.nameId(command)));
+          break;
+        case C_FUNCTION:
+          writeFunction(program.name(VMProgram.nameId(command)), program.count(i));
+          break;
+        case C_CALL:
+          writeCall(program.name(VMProgram.nameId(command)), program.count(i));
+          break;
+        case C_RETURN:
+          writeReturn();
+          break;
+      }
+    }
+    spillTop();
+  }
+
+  /**
+   * Copies assembly translated by another CodeWriter to the output as is.
+   */
+  public void append(CharSequence assembly) {
+    if (optimizer != null) {
+      optimizer.flush();
+    }
+    printWriter.print(assembly);
+  }
+
+  /**
+   * Returns the shared routines the output so far jumps to, as space-separated names
+   * (call, return, EQ, GT, LT) that includeSharedRoutines() accepts.
+   */
+  public String sharedRoutinesUsed() {
+    StringBuilder routines = new StringBuilder();
+    if (callUsed) {
+      routines.append("call ");
+    }
+    if (returnUsed) {
+      routines.append("return ");
+    }
+    for (Opcode comparison : comparisonsUsed) {
+      routines.append(comparison.name()).append(' ');
+    }
+    return routines.toString().trim();
+  }
+
+  /**
+   * Makes writeSharedRoutines() also write the given routines, used by output translated elsewhere.
+   */
+  public void includeSharedRoutines(String routines) {
+    for (String routine : routines.split(" ")) {
+      if (routine.equals("call")) {
+        callUsed = true;
+      } else if (routine.equals("return")) {
+        returnUsed = true;
+      } else if (!routine.isEmpty()) {
+        comparisonsUsed.add(Opcode.valueOf(routine));
+      }
+    }
+  }
+
+  /**
+   * Writes the bootstrap code: SP = 256, call Sys.init.
+   */
+  public void writeInit() {
+    emit("// bootstrap");
+    emit("@256");
+    emit("D=A");
+    emit("@SP");
+    emit("M=D");
+    currentFunction = "VM$bootstrap";
+    writeCall("Sys.init", 0);
+  }
+
+  public void writeLabel(String label) {
+    emit(String.format("// label %s", label));
+    spillTop();
+    emit("(" + currentFunction + "$" + label + ")");
+  }
+
+  public void writeGoto(String label) {
+    emit(String.format("// goto %s", label));
+    spillTop();
+    emit("@" + currentFunction + "$" + label);
+    emit("0;JMP");
+  }
+
+  public void writeIf(String label) {
+    emit(String.format("// if-goto %s", label));
+    popStackToD();
+    emit("@" + currentFunction + "$" + label);
+    emit("D;JNE");
+  }
+
+  /**
+   * Declares the function entry point and pushes nVars zeros for its locals.
+   */
+  public void writeFunction(String functionName, int nVars) {
+    emit(String.format("// function %s %d", functionName, nVars));
+    spillTop();
+    currentFunction = functionName;
+    emit("(" + functionName + ")");
+
+    if (nVars > 0) {
+      loadStackPointerToA();
+      emit("M=0");
+      for (int i = 1; i < nVars; i++) {
+        emit("A=A+1");
+        emit("M=0");
+      }
+      emit("D=A+1");
+      emit("@SP");
+      emit("M=D");
+    }
+  }
+
+  /**
+   * A call site only passes the callee address (R13), nArgs (R14) and the return address (D)
+   * and jumps into the shared VM$CALL routine, which saves the caller's frame.
+   */
+  public void writeCall(String functionName, int nArgs) {
+    emit(String.format("// call %s %d", functionName, nArgs));
+    spillTop();
+    String returnLabel = currentFunction + "$$ret." + returnCount++;
+    callUsed = true;
+
+    emit("@" + functionName);
+    emit("D=A");
+    emit("@R13");
+    emit("M=D");
+    if (nArgs <= 1) {
+      emit("@R14");
+      emit("M=" + nArgs);
+    } else {
+      emit("@" + nArgs);
+      emit("D=A");
+      emit("@R14");
+      emit("M=D");
+    }
+    emit("@" + returnLabel);
+    emit("D=A");
+    emit("@VM$CALL");
+    emit("0;JMP");
+    emit("(" + returnLabel + ")");
+  }
+
+  /**
+   * Every return jumps into the shared VM$RETURN routine, which restores the caller's frame.
+   */
+  public void writeReturn() {
+    emit("// return");
+    spillTop();
+    returnUsed = true;
+    emit("@VM$RETURN");
+    emit("0;JMP");
+  }
+
+  /**
+   * Writes the call/return routines shared by all call sites, once, after the program.
+   * Execution that falls off the end of the program is trapped in an endless loop before them.
+   */
+  public void writeSharedRoutines() {
+    spillTop();
+    if (!callUsed && !returnUsed && comparisonsUsed.isEmpty()) {
+      return;
+    }
+    if (optimizer != null) {
+      optimizer.beginUnit("(shared routines)");
+    }
+
+    emit("// end of program");
+    emit("(VM$END)");
+    emit("@VM$END");
+    emit("0;JMP");
+
+    if (callUsed) {
+      writeCallRoutine();
+    }
+    if (returnUsed) {
+      writeReturnRoutine();
+    }
+    for (Opcode comparison : comparisonsUsed) {
+      writeComparisonRoutine(comparison);
+    }
+  }
+
+  /**
+   * The call site passes its return address in R15 and leaves the operands on the stack.
+   */
+  private void writeComparisonCall(Opcode comparison) {
+    spillTop();
+    String returnLabel = currentFunction + "$$cmp." + labelCount++;
+    comparisonsUsed.add(comparison);
+
+    emit("@" + returnLabel);
+    emit("D=A");
+    emit("@R15");
+    emit("M=D");
+    emit("@VM$" + comparison.name());
+    emit("0;JMP");
+    emit("(" + returnLabel + ")");
+  }
+
+  /**
+   * Replaces x, y on the stack with -1 if x (op) y holds, else 0, and returns to the address in R15.
+   */
+  private void writeComparisonRoutine(Opcode comparison) {
+    String routine = "VM$" + comparison.name();
+    emit("// shared " + comparison.mnemonic() + " routine");
+    emit("(" + routine + ")");
+    emit("@SP");
+    emit("AM=M-1");
+    emit("D=M");
+    emit("A=A-1");
+    emit("D=M-D");
+    emit("M=-1");
+    emit("@" + routine + ".true");
+    emit("D;J" + comparison.name());
+    emit("@SP");
+    emit("A=M-1");
+    emit("M=0");
+    emit("(" + routine + ".true)");
+    emit("@R15");
+    emit("A=M");
+    emit("0;JMP");
+  }
+
+  /**
+   * On entry D = return address, R13 = callee address, R14 = nArgs.
+   * Pushes the return address, LCL, ARG, THIS and THAT, then sets ARG = SP - nArgs - 5, LCL = SP and jumps to the callee.
+   */
+  private void writeCallRoutine() {
+    emit("// shared call routine");
+    emit("(VM$CALL)");
+    loadStackPointerToA();
+    emit("M=D");
+    for (String pointer : new String[] { "LCL", "ARG", "THIS", "THAT" }) {
+      emit("@" + pointer);
+      emit("D=M");
+      emit("@SP");
+      emit("AM=M+1");
+      emit("M=D");
+    }
+    emit("@SP");
+    emit("MD=M+1");
+    emit("@LCL");
+    emit("M=D");
+    emit("@R14");
+    emit("D=D-M");
+    emit("@5");
+    emit("D=D-A");
+    emit("@ARG");
+    emit("M=D");
+    emit("@R13");
+    emit("A=M");
+    emit("0;JMP");
   }
 
-  public void writeArithmetic(String command) {
-    printWriter.printf("// %s\n", command);
+  /**
+   * Copies the return value to *ARG, sets SP = ARG + 1, restores THAT, THIS, ARG and LCL
+   * from the frame below LCL and jumps to the saved return address.
+   */
+  private void writeReturnRoutine() {
+    emit("// shared return routine");
+    emit("(VM$RETURN)");
+    // R13 = return address, read before *ARG may overwrite it
+    emit("@5");
+    emit("D=A");
+    emit("@LCL");
+    emit("A=M-D");
+    emit("D=M");
+    emit("@R13");
+    emit("M=D");
+    popStackToD();
+    emit("@ARG");
+    emit("A=M");
+    emit("M=D");
+    emit("@ARG");
+    emit("D=M+1");
+    emit("@SP");
+    emit("M=D");
+    // walk LCL down the saved frame
+    for (String pointer : new String[] { "THAT", "THIS", "ARG" }) {
+      emit("@LCL");
+      emit("AM=M-1");
+      emit("D=M");
+      emit("@" + pointer);
+      emit("M=D");
+    }
+    emit("@LCL");
+    emit("A=M-1");
+    emit("D=M");
+    emit("@LCL");
+    emit("M=D");
+    emit("@R13");
+    emit("A=M");
+    emit("0;JMP");
+  }
+
+  public void writeArithmetic(Opcode command) {
+    emit(String.format("// %s", command.mnemonic()));
+
+    if (sharedComparisons && (command == Opcode.EQ || command == Opcode.GT || command == Opcode.LT)) {
+      writeComparisonCall(command);
+      return;
+    }
+    if (tosCaching) {
+      writeArithmeticCached(command);
+      return;
+    }
 
     switch (command) {
-      case "add":
+      case ADD:
         popStackToD();
         decrementStackPointer();
         loadStackPointerToA();
-        printWriter.println("M=D+M");
+        emit("M=D+M");
         incrementStackPointer();
         break;
-      case "sub":
+      case SUB:
         popStackToD();
         decrementStackPointer();
         loadStackPointerToA();
-        printWriter.println("M=M-D");
+        emit("M=M-D");
         incrementStackPointer();
         break;
-      case "neg":
+      case NEG:
         decrementStackPointer();
         loadStackPointerToA();
-        printWriter.println("M=-M");
+        emit("M=-M");
         incrementStackPointer();
         break;
-      case "eq":
+      case EQ:
         writeCompareLogic("JEQ");
         break;
-      case "gt":
+      case GT:
         writeCompareLogic("JGT");
         break;
-      case "lt":
+      case LT:
         writeCompareLogic("JLT");
         break;
-      case "and":
+      case AND:
         popStackToD();
         decrementStackPointer();
         loadStackPointerToA();
-        printWriter.println("M=D&M");
+        emit("M=D&M");
         incrementStackPointer();
         break;
-      case "or":
+      case OR:
         popStackToD();
         decrementStackPointer();
         loadStackPointerToA();
-        printWriter.println("M=D|M");
+        emit("M=D|M");
         incrementStackPointer();
         break;
-      case "not":
+      case NOT:
         decrementStackPointer();
         loadStackPointerToA();
-        printWriter.println("M=!M");
+        emit("M=!M");
         incrementStackPointer();
         break;
+      default:
+        throw new IllegalArgumentException("Not an arithmetic command: " + command.mnemonic());
     }
 
   }
 
-  public void writePushPop(CommandType commandType, String segment, int index) {
+  public void writePushPop(CommandType commandType, Segment segment, int index) {
+    if (tosCaching && commandType == CommandType.C_POP && segment != Segment.CONSTANT) {
+      emit(String.format("// pop %s %d", segment.mnemonic(), index));
+      popStackToD();
+      storeD(segment, index);
+      return;
+    }
+
     switch (commandType) {
       case C_PUSH:
-        printWriter.printf("// push %s %d\n", segment, index);
+        emit(String.format("// push %s %d", segment.mnemonic(), index));
+        spillTop();
         switch (segment) {
-          case "constant":
+          case CONSTANT:
             // store value in D
-            printWriter.println("@" + index);
-            printWriter.println("D=A");
+            if (tosCaching && index <= 1) {
+              emit("D=" + index);
+            } else {
+              emit("@" + index);
+              emit("D=A");
+            }
             break;
-          case "local":
+          case LOCAL:
             loadSegment("LCL", index);
-            printWriter.println("D=M");
+            emit("D=M");
             break;
-          case "argument":
+          case ARGUMENT:
             loadSegment("ARG", index);
-            printWriter.println("D=M");
+            emit("D=M");
             break;
-          case "this":
+          case THIS:
             loadSegment("THIS", index);
-            printWriter.println("D=M");
+            emit("D=M");
             break;
-          case "that":
+          case THAT:
             loadSegment("THAT", index);
-            printWriter.println("D=M");
+            emit("D=M");
             break;
-          case "pointer":
-            printWriter.println("@R" + String.valueOf(3 + index));
-            printWriter.println("D=M");
+          case POINTER:
+            emit("@R" + String.valueOf(3 + index));
+            emit("D=M");
             break;
-          case "temp":
-            printWriter.println("@R" + String.valueOf(5 + index));
-            printWriter.println("D=M");
+          case TEMP:
+            emit("@R" + String.valueOf(5 + index));
+            emit("D=M");
             break;
-          case "static":
-            printWriter.println("@" + fileName.split("\\.")[0] + String.valueOf(index));
-            printWriter.println("D=M");
+          case STATIC:
+            emit("@" + staticPrefix + "." + String.valueOf(index));
+            emit("D=M");
         }
         pushDToStack();
         break;
       case C_POP:
-        printWriter.printf("// pop %s %d\n", segment, index);
+        emit(String.format("// pop %s %d", segment.mnemonic(), index));
+        spillTop();
         switch (segment) {
-          case "constant":
-            printWriter.println("@" + index);
+          case CONSTANT:
+            emit("@" + index);
             break;
-          case "local":
+          case LOCAL:
             loadSegment("LCL", index);
             break;
-          case "argument":
+          case ARGUMENT:
             loadSegment("ARG", index);
             break;
-          case "this":
+          case THIS:
             loadSegment("THIS", index);
             break;
-          case "that":
+          case THAT:
             loadSegment("THAT", index);
             break;
-          case "pointer":
-            printWriter.println("@R" + String.valueOf(3 + index));
+          case POINTER:
+            emit("@R" + String.valueOf(3 + index));
             break;
-          case "temp":
-            printWriter.println("@R" + String.valueOf(5 + index));
+          case TEMP:
+            emit("@R" + String.valueOf(5 + index));
             break;
-          case "static":
-            printWriter.println("@" + fileName.split("\\.")[0] + String.valueOf(index));
+          case STATIC:
+            emit("@" + staticPrefix + "." + String.valueOf(index));
             break;
 
         }
-        printWriter.println("D=A");
-        printWriter.println("@R13");
-        printWriter.println("M=D");
+        emit("D=A");
+        emit("@R13");
+        emit("M=D");
         popStackToD();
-        printWriter.println("@R13");
-        printWriter.println("A=M");
-        printWriter.println("M=D");
+        emit("@R13");
+        emit("A=M");
+        emit("M=D");
         break;
     }
   }
 
   public void close() {
+    if (optimizer != null) {
+      optimizer.flush();
+    }
     printWriter.close();
   }
 
+  private void emit(String line) {
+    if (optimizer != null) {
+      optimizer.add(line);
+    } else {
+      printWriter.println(line);
+    }
+  }
+
+  /**
+   * Arithmetic for the top-of-stack caching mode: y is brought into D, x is read straight from the stack
+   * and the result is left cached in D.
+   */
+  private void writeArithmeticCached(Opcode command) {
+    switch (command) {
+      case NEG:
+      case NOT:
+        String unary = command == Opcode.NEG ? "-" : "!";
+        if (topInD) {
+          emit("D=" + unary + "D");
+        } else {
+          emit("@SP");
+          emit("A=M-1");
+          emit("M=" + unary + "M");
+        }
+        return;
+      default:
+        break;
+    }
+
+    popStackToD();
+    emit("@SP");
+    emit("AM=M-1");
+
+    switch (command) {
+      case ADD:
+        emit("D=D+M");
+        break;
+      case SUB:
+        emit("D=M-D");
+        break;
+      case AND:
+        emit("D=D&M");
+        break;
+      case OR:
+        emit("D=D|M");
+        break;
+      case EQ:
+      case GT:
+      case LT:
+        String label = currentFunction + "$$" + labelCount++;
+        emit("D=M-D");
+        emit("@" + label);
+        emit("D;J" + command.name());
+        emit("D=0");
+        emit("@" + label + ".end");
+        emit("0;JMP");
+        emit("(" + label + ")");
+        emit("D=-1");
+        emit("(" + label + ".end)");
+        break;
+      default:
+        throw new IllegalArgumentException("Not an arithmetic command: " + command.mnemonic());
+    }
+    topInD = true;
+  }
+
+  /**
+   * Stores D into segment[index] without going through the stack.
+   */
+  private void storeD(Segment segment, int index) {
+    switch (segment) {
+      case POINTER:
+        emit("@R" + String.valueOf(3 + index));
+        break;
+      case TEMP:
+        emit("@R" + String.valueOf(5 + index));
+        break;
+      case STATIC:
+        emit("@" + staticPrefix + "." + String.valueOf(index));
+        break;
+      default:
+        if (index <= 3) {
+          emit("@" + segment.basePointer());
+          emit("A=M");
+          for (int i = 0; i < index; i++) {
+            emit("A=A+1");
+          }
+        } else {
+          emit("@R13");
+          emit("M=D");
+          emit("@" + segment.basePointer());
+          emit("D=M");
+          emit("@" + index);
+          emit("D=D+A");
+          emit("@R14");
+          emit("M=D");
+          emit("@R13");
+          emit("D=M");
+          emit("@R14");
+          emit("A=M");
+        }
+    }
+    emit("M=D");
+  }
+
+  /**
+   * Stores a top of stack cached in D to RAM[SP] and increments SP.
+   */
+  private void spillTop() {
+    if (topInD) {
+      topInD = false;
+      emit("@SP");
+      emit("AM=M+1");
+      emit("A=A-1");
+      emit("M=D");
+    }
+  }
+
   private void incrementStackPointer() {
-    printWriter.println("@SP");
-    printWriter.println("M=M+1");
+    emit("@SP");
+    emit("M=M+1");
   }
 
   private void decrementStackPointer() {
-    printWriter.println("@SP");
-    printWriter.println("M=M-1");
+    emit("@SP");
+    emit("M=M-1");
   }
 
   private void popStackToD() {
+    if (topInD) {
+      topInD = false;
+      return;
+    }
     decrementStackPointer();
-    printWriter.println("A=M");
-    printWriter.println("D=M");
+    emit("A=M");
+    emit("D=M");
   }
 
   private void pushDToStack() {
+    if (tosCaching) {
+      topInD = true;
+      return;
+    }
     loadStackPointerToA();
-    printWriter.println("M=D");
+    emit("M=D");
     incrementStackPointer();
   }
 
   private void loadStackPointerToA() {
-    printWriter.println("@SP");
-    printWriter.println("A=M");
+    emit("@SP");
+    emit("A=M");
   }
 
   private void writeCompareLogic(String jumpCommand) {
+    String label = currentFunction + "$$" + labelCount++;
     popStackToD();
     decrementStackPointer();
     loadStackPointerToA();
-    printWriter.println("D=M-D");
-    printWriter.println("@LABEL" + labelCount);
-    printWriter.println("D;" + jumpCommand);
+    emit("D=M-D");
+    emit("@" + label);
+    emit("D;" + jumpCommand);
     loadStackPointerToA();
-    printWriter.println("M=0");
-    printWriter.println("@ENDLABEL" + labelCount);
-    printWriter.println("0;JMP");
-    printWriter.println("(LABEL" + labelCount + ")");
+    emit("M=0");
+    emit("@" + label + ".end");
+    emit("0;JMP");
+    emit("(" + label + ")");
     loadStackPointerToA();
-    printWriter.println("M=-1");
-    printWriter.println("(ENDLABEL" + labelCount + ")");
+    emit("M=-1");
+    emit("(" + label + ".end)");
     incrementStackPointer();
-    labelCount++;
   }
 
   private void loadSegment(String segment, int index) {
-    printWriter.println("@" + segment);
-    printWriter.println("D=M");
-    printWriter.println("@" + String.valueOf(index));
-    printWriter.println("A=D+A");
+    emit("@" + segment);
+    emit("D=M");
+    emit("@" + String.valueOf(index));
+    emit("A=D+A");
   }
 }
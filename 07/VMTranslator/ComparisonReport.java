@@ -0,0 +1,143 @@
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Size/speed report of the two ways the CodeWriter can compile eq, gt and lt for a program:
+ * inlined at every site, or as a short call into one shared routine per comparison.
+ *
+ * The cost of one comparison is measured by letting a scratch CodeWriter, with the same modes
+ * as the real one, translate a single comparison. Size is in ROM instructions, speed is the number
+ * of instructions executed for one comparison (false path / true path).
+ */
+public class ComparisonReport {
+
+  public static String build(VMProgram program, boolean peephole, boolean tosCaching) {
+    int sites = 0;
+    EnumSet<Opcode> kinds = EnumSet.noneOf(Opcode.class);
+
+    for (int i = 0; i < program.size(); i++) {
+      Opcode opcode = VMProgram.opcode(program.get(i));
+      if (opcode == Opcode.EQ || opcode == Opcode.GT || opcode == Opcode.LT) {
+        sites++;
+        kinds.add(opcode);
+      }
+    }
+
+    List<String> inline = translate(peephole, tosCaching, false);
+    List<String> shared = translate(peephole, tosCaching, true);
+
+    int inlineSite = countInstructions(inline, 0, inline.size());
+    int routineStart = shared.indexOf("// shared eq routine");
+    int sharedSite = countInstructions(shared, 0, routineStart);
+    int routine = countInstructions(shared, routineStart, shared.size());
+    int[] inlinePaths = pathLengths(inline);
+    int[] sharedPaths = pathLengths(shared);
+
+    StringBuilder report = new StringBuilder();
+    report.append("Comparisons: ").append(sites).append(" sites (eq/gt/lt)\n");
+    report.append(String.format("  inline: %d instructions per site, %d in total, %d/%d executed per comparison%n",
+        inlineSite, inlineSite * sites, inlinePaths[0], inlinePaths[1]));
+    report.append(String.format("  shared: %d instructions per site + %d per routine, %d in total, %d/%d executed per comparison%n",
+        sharedSite, routine, sharedSite * sites + routine * kinds.size(), sharedPaths[0], sharedPaths[1]));
+    return report.toString();
+  }
+
+  private static List<String> translate(boolean peephole, boolean tosCaching, boolean sharedComparisons) {
+    StringWriter out = new StringWriter();
+    CodeWriter codeWriter = new CodeWriter(out);
+    if (peephole) {
+      codeWriter.enablePeephole();
+    }
+    if (tosCaching) {
+      codeWriter.enableTosCaching();
+    }
+    if (sharedComparisons) {
+      codeWriter.enableSharedComparisons();
+    }
+    codeWriter.writeArithmetic(Opcode.EQ);
+    codeWriter.writeSharedRoutines();
+    codeWriter.close();
+
+    // keep the comparison site and its routine, drop the end-of-program trap between them
+    List<String> lines = new ArrayList<String>();
+    boolean trap = false;
+    for (String line : out.toString().split("\\R")) {
+      if (line.startsWith("//")) {
+        trap = line.equals("// end of program");
+      }
+      if (!trap) {
+        lines.add(line);
+      }
+    }
+    return lines;
+  }
+
+  private static int countInstructions(List<String> lines, int from, int to) {
+    int count = 0;
+    for (int i = Math.max(from, 0); i < to; i++) {
+      if (isInstruction(lines.get(i))) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns the shortest and longest number of instructions executed from the first line to the end
+   * of the snippet, following jumps to labels inside the snippet and ending at jumps leaving it.
+   */
+  private static int[] pathLengths(List<String> lines) {
+    Map<String, Integer> labels = new HashMap<String, Integer>();
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i);
+      if (line.startsWith("(")) {
+        labels.put(line.substring(1, line.length() - 1), i);
+      }
+    }
+    int[] result = { Integer.MAX_VALUE, 0 };
+    walk(lines, labels, 0, null, 0, result);
+    return result;
+  }
+
+  private static void walk(List<String> lines, Map<String, Integer> labels, int pc, String target, int executed, int[] result) {
+    while (pc < lines.size()) {
+      String line = lines.get(pc);
+      pc++;
+      if (!isInstruction(line)) {
+        continue;
+      }
+      executed++;
+
+      if (line.startsWith("@")) {
+        target = line.substring(1);
+        continue;
+      }
+      if (line.indexOf(';') == -1) {
+        if (line.substring(0, line.indexOf('=')).indexOf('A') != -1) {
+          target = null;
+        }
+        continue;
+      }
+
+      Integer destination = target == null ? null : labels.get(target);
+      if (line.endsWith(";JMP")) {
+        if (destination == null) {
+          break;
+        }
+        pc = destination;
+      } else if (destination != null) {
+        walk(lines, labels, destination, target, executed, result);
+      }
+    }
+    result[0] = Math.min(result[0], executed);
+    result[1] = Math.max(result[1], executed);
+  }
+
+  private static boolean isInstruction(String line) {
+    return !line.isEmpty() && !line.startsWith("//") && !line.startsWith("(");
+  }
+}
@@ -0,0 +1,257 @@
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ROM cost of a program: how many Hack instructions are emitted per file, per function, per kind of
+ * VM command (push local, eq, call...) and per VM command, side by side for the code generation modes, as CSV or JSON.
+ * A command is named by its function, its position in the function (0 is the function command) and its text,
+ * e.g. "Main.main#3 push local 0"; commands before the first function of a file are under "(File)". Columns whose
+ * program differs (base and --inline/--dce) share the rows of the functions they have in common, except where
+ * inlining changed the body.
+ *
+ * The program is translated once per column by scratch CodeWriters whose output is tallied instead of stored.
+ * Every instruction is charged to the VM command whose comment the CodeWriter wrote before it; the peephole
+ * optimizer keeps comments in place, so instructions it removes or fuses are taken from the commands around them.
+ * Bootstrap and shared routines are charged to the file "(runtime)".
+ *
+ * Columns: base (no option), the program after --inline/--dce if they are selected, -O, --tos and
+ * --shared-compare each on their own, and all selected options together.
+ */
+public class CostReport {
+  private static final String RUNTIME = "(runtime)";
+
+  private final List<String> columns = new ArrayList<String>();
+  private final Map<String, int[]> files = new LinkedHashMap<String, int[]>();
+  private final Map<String, int[]> functions = new LinkedHashMap<String, int[]>();
+  private final Map<String, int[]> kinds = new LinkedHashMap<String, int[]>();
+  private final Map<String, int[]> commands = new LinkedHashMap<String, int[]>();
+  private final int[] total;
+
+  /**
+   * @param source the program as parsed
+   * @param program the program after the whole-program passes selected by options
+   */
+  public CostReport(VMProgram source, VMProgram program, TranslatorOptions options) {
+    List<VMProgram> programs = new ArrayList<VMProgram>();
+    List<TranslatorOptions> modes = new ArrayList<TranslatorOptions>();
+
+    add("base", source, new TranslatorOptions(), programs, modes);
+    if (program != source) {
+      add(((options.inlineThreshold > 0 ? "--inline " : "") + (options.deadFunctions ? "--dce" : "")).trim(),
+          program, new TranslatorOptions(), programs, modes);
+    }
+    TranslatorOptions peephole = new TranslatorOptions();
+    peephole.peephole = true;
+    add("-O", program, peephole, programs, modes);
+    TranslatorOptions tosCaching = new TranslatorOptions();
+    tosCaching.tosCaching = true;
+    add("--tos", program, tosCaching, programs, modes);
+    TranslatorOptions sharedComparisons = new TranslatorOptions();
+    sharedComparisons.sharedComparisons = true;
+    add("--shared-compare", program, sharedComparisons, programs, modes);
+    add("selected", program, options, programs, modes);
+
+    // slot 0 counts the VM commands (of the first column), then one slot per column
+    total = new int[columns.size() + 1];
+    for (int column = 0; column < columns.size(); column++) {
+      tally(programs.get(column), modes.get(column), column);
+    }
+  }
+
+  private void add(String column, VMProgram program, TranslatorOptions mode, List<VMProgram> programs,
+      List<TranslatorOptions> modes) {
+    columns.add(column);
+    programs.add(program);
+    modes.add(mode);
+  }
+
+  private void tally(VMProgram program, TranslatorOptions mode, int column) {
+    Tally runtime = new Tally(RUNTIME, column);
+    CodeWriter main = mode.configure(new CodeWriter(runtime));
+    if (program.findFunction("Sys.init") != -1) {
+      runtime.function = "(bootstrap)";
+      main.writeInit();
+    }
+
+    for (int file = 0; file < program.fileCount(); file++) {
+      Tally tally = new Tally(program.fileName(file), column);
+      CodeWriter codeWriter = mode.configure(new CodeWriter(tally));
+      codeWriter.writeFile(program, file);
+      codeWriter.close();
+      main.includeSharedRoutines(codeWriter.sharedRoutinesUsed());
+    }
+
+    // flush the bootstrap out of the peephole window before charging the shared routines
+    main.append("");
+    runtime.function = "(shared routines)";
+    main.writeSharedRoutines();
+    main.close();
+  }
+
+  /**
+   * Receives the assembly of one file and charges its instructions.
+   */
+  private class Tally extends Writer {
+    private final String file;
+    private final int column;
+    private final StringBuilder line = new StringBuilder();
+    String function;
+    private String kind;
+    private String command;
+    private int commandIndex;
+
+    Tally(String file, int column) {
+      this.file = file;
+      this.column = column;
+      this.function = "(" + file + ")";
+      this.kind = "(none)";
+      this.command = function;
+    }
+
+    @Override
+    public void write(char[] buffer, int offset, int length) {
+      for (int i = offset; i < offset + length; i++) {
+        if (buffer[i] == '\n') {
+          endLine(line.toString().trim());
+          line.setLength(0);
+        } else {
+          line.append(buffer[i]);
+        }
+      }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+      if (line.length() > 0) {
+        endLine(line.toString().trim());
+        line.setLength(0);
+      }
+    }
+
+    private void endLine(String text) {
+      if (text.isEmpty() || text.startsWith("(")) {
+        return;
+      }
+      if (text.startsWith("//")) {
+        command(text.substring(2).trim());
+        return;
+      }
+      charge(column + 1, 1);
+    }
+
+    private void command(String comment) {
+      String[] words = comment.split(" ");
+      Opcode opcode = null;
+      for (Opcode candidate : Opcode.values()) {
+        if (candidate.mnemonic().equals(words[0])) {
+          opcode = candidate;
+        }
+      }
+
+      if (opcode == null) {
+        kind = comment;
+        command = function + " " + comment;
+        return;
+      }
+      if (opcode == Opcode.FUNCTION) {
+        function = words[1];
+        commandIndex = 0;
+      }
+      command = function + "#" + commandIndex++ + " " + comment;
+      kind = opcode == Opcode.PUSH || opcode == Opcode.POP ? words[0] + " " + words[1] : words[0];
+      if (column == 0) {
+        charge(0, 1);
+      }
+    }
+
+    private void charge(int slot, int amount) {
+      row(files, file)[slot] += amount;
+      row(functions, function)[slot] += amount;
+      row(kinds, kind)[slot] += amount;
+      row(commands, command)[slot] += amount;
+      total[slot] += amount;
+    }
+  }
+
+  private int[] row(Map<String, int[]> rows, String name) {
+    int[] row = rows.get(name);
+    if (row == null) {
+      row = new int[columns.size() + 1];
+      rows.put(name, row);
+    }
+    return row;
+  }
+
+  public String csv() {
+    StringBuilder csv = new StringBuilder("level,name,commands");
+    for (String column : columns) {
+      csv.append(',').append(column);
+    }
+    csv.append('\n');
+
+    csvRow(csv, "total", "", total);
+    csvRows(csv, "file", files);
+    csvRows(csv, "function", functions);
+    csvRows(csv, "kind", kinds);
+    csvRows(csv, "command", commands);
+    return csv.toString();
+  }
+
+  private void csvRows(StringBuilder csv, String level, Map<String, int[]> rows) {
+    for (Map.Entry<String, int[]> row : rows.entrySet()) {
+      csvRow(csv, level, row.getKey(), row.getValue());
+    }
+  }
+
+  private void csvRow(StringBuilder csv, String level, String name, int[] row) {
+    csv.append(level).append(',').append(name.indexOf(',') == -1 ? name : '"' + name + '"');
+    for (int count : row) {
+      csv.append(',').append(count);
+    }
+    csv.append('\n');
+  }
+
+  public String json() {
+    StringBuilder json = new StringBuilder("{\n  \"columns\": [");
+    for (int i = 0; i < columns.size(); i++) {
+      json.append(i == 0 ? "" : ", ").append('"').append(columns.get(i)).append('"');
+    }
+    json.append("],\n  \"total\": ");
+    jsonRow(json, null, total);
+    jsonRows(json, "files", files);
+    jsonRows(json, "functions", functions);
+    jsonRows(json, "kinds", kinds);
+    jsonRows(json, "commands", commands);
+    return json.append("\n}\n").toString();
+  }
+
+  private void jsonRows(StringBuilder json, String level, Map<String, int[]> rows) {
+    json.append(",\n  \"").append(level).append("\": [");
+    String separator = "\n    ";
+    for (Map.Entry<String, int[]> row : rows.entrySet()) {
+      json.append(separator);
+      jsonRow(json, row.getKey(), row.getValue());
+      separator = ",\n    ";
+    }
+    json.append("\n  ]");
+  }
+
+  private void jsonRow(StringBuilder json, String name, int[] row) {
+    json.append('{');
+    if (name != null) {
+      json.append("\"name\": \"").append(name.replace("\\", "\\\\").replace("\"", "\\\"")).append("\", ");
+    }
+    json.append("\"commands\": ").append(row[0]).append(", \"instructions\": {");
+    for (int column = 0; column < columns.size(); column++) {
+      json.append(column == 0 ? "" : ", ").append('"').append(columns.get(column)).append("\": ").append(row[column + 1]);
+    }
+    json.append("}}");
+  }
+}
@@ -0,0 +1,129 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long-running server for a command line tool, listening on a Unix-domain socket, so that jobs run in a JVM
+ * whose classes are loaded and JIT-compiled already; and the client side of its protocol.
+ *
+ * A request is the client's working directory and the command line arguments; the reply is everything the job
+ * printed and an exit status (1 if the job threw, with the message printed). Jobs run concurrently, one thread
+ * per connection. The single argument --stop shuts the server down.
+ */
+public class Daemon {
+
+  /**
+   * One run of the tool, as its main method would do it.
+   */
+  public interface Job {
+    void run(String[] args, File workingDirectory, PrintStream out) throws Exception;
+  }
+
+  public static final String STOP = "--stop";
+
+  /**
+   * Serves jobs until a client sends --stop.
+   */
+  public static void serve(Path socket, Job job) throws IOException {
+    Files.deleteIfExists(socket);
+    ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    server.bind(UnixDomainSocketAddress.of(socket));
+    ExecutorService workers = Executors.newCachedThreadPool();
+
+    try {
+      while (true) {
+        SocketChannel client = server.accept();
+        workers.execute(new Runnable() {
+          public void run() {
+            handle(client, server, job);
+          }
+        });
+      }
+    } catch (ClosedChannelException e) {
+      // stopped by a client
+    } finally {
+      workers.shutdown();
+      Files.deleteIfExists(socket);
+    }
+  }
+
+  private static void handle(SocketChannel client, ServerSocketChannel server, Job job) {
+    try (SocketChannel channel = client) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+      File workingDirectory = new File(in.readUTF());
+      String[] args = new String[in.readInt()];
+      for (int i = 0; i < args.length; i++) {
+        args[i] = in.readUTF();
+      }
+
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(output, true, StandardCharsets.UTF_8);
+      int status = 0;
+      boolean stop = args.length == 1 && args[0].equals(STOP);
+
+      if (stop) {
+        out.println("Daemon stopped");
+      } else {
+        try {
+          job.run(args, workingDirectory, out);
+        } catch (Throwable e) {
+          // a StackOverflowError or OutOfMemoryError ends the job, not the connection: the client still gets a status
+          out.println("Error: " + (e.getMessage() != null ? e.getMessage() : e.toString()));
+          status = 1;
+        }
+      }
+      out.flush();
+
+      DataOutputStream reply = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+      reply.writeInt(output.size());
+      output.writeTo(reply);
+      reply.writeInt(status);
+      reply.flush();
+
+      if (stop) {
+        server.close();
+      }
+    } catch (IOException e) {
+      // the client went away, nothing to reply to
+    }
+  }
+
+  /**
+   * Runs the arguments as a job of the server on the socket, from the current directory;
+   * prints the job's output and returns its exit status.
+   */
+  public static int request(Path socket, String[] args) throws IOException {
+    try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+      DataOutputStream request = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+      request.writeUTF(System.getProperty("user.dir"));
+      request.writeInt(args.length);
+      for (String arg : args) {
+        request.writeUTF(arg);
+      }
+      request.flush();
+
+      DataInputStream reply = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+      byte[] output = new byte[reply.readInt()];
+      reply.readFully(output);
+      System.out.write(output);
+      System.out.flush();
+      return reply.readInt();
+    }
+  }
+}
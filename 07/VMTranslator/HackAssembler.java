@@ -0,0 +1,294 @@
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Assembler backend for the CodeWriter: a Writer that encodes each line of Hack assembly as it is written
+ * into a 16-bit ROM image, so that no .asm text is stored or read back and no separate assembler runs.
+ *
+ * Labels are defined as the lines arrive; an A-instruction naming a symbol gets a 0 placeholder and a
+ * fixup entry. assemble() resolves the fixups in source order (labels, then predefined symbols, then
+ * new variables from address 16), which is the same result as the usual two-pass assembler.
+ *
+ * Symbols live in SymbolTables and are looked up straight from the line buffer, so a symbol becomes a String
+ * only the first time it appears. Every C-instruction (dest in any order, comp, jump) is encoded in advance,
+ * and a C-instruction line is a single lookup. assembleFile reads a .asm file through a memory mapping, and
+ * main makes the assembler a replacement for the C++ one in 06/hack-assembler.
+ */
+public class HackAssembler extends Writer {
+  public static final int ROM_SIZE = 32768;
+
+  // every C-instruction as written, dest=comp;jump, to its encoding
+  private static final SymbolTable INSTRUCTIONS = new SymbolTable(4096);
+  private static final SymbolTable PREDEFINED = new SymbolTable(32);
+  private static final String[] JUMPS = { "", "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP" };
+
+  static {
+    String[] comps = { "0", "0101010", "1", "0111111", "-1", "0111010", "D", "0001100", "A", "0110000",
+        "!D", "0001101", "!A", "0110001", "-D", "0001111", "-A", "0110011", "D+1", "0011111", "A+1", "0110111",
+        "D-1", "0001110", "A-1", "0110010", "D+A", "0000010", "D-A", "0010011", "A-D", "0000111",
+        "D&A", "0000000", "D|A", "0010101", "M", "1110000", "!M", "1110001", "-M", "1110011",
+        "M+1", "1110111", "M-1", "1110010", "D+M", "1000010", "D-M", "1010011", "M-D", "1000111",
+        "D&M", "1000000", "D|M", "1010101" };
+    String[] dests = { "", "M", "D", "MD", "DM", "A", "AM", "MA", "AD", "DA", "AMD", "ADM", "MAD", "MDA", "DAM",
+        "DMA" };
+    for (String dest : dests) {
+      int destBits = (dest.indexOf('A') >= 0 ? 4 : 0) | (dest.indexOf('D') >= 0 ? 2 : 0)
+          | (dest.indexOf('M') >= 0 ? 1 : 0);
+      for (int i = 0; i < comps.length; i += 2) {
+        for (int jump = 0; jump < JUMPS.length; jump++) {
+          String instruction = (dest.isEmpty() ? "" : dest + "=") + comps[i]
+              + (jump == 0 ? "" : ";" + JUMPS[jump]);
+          int comp = Integer.parseInt(comps[i + 1], 2);
+          INSTRUCTIONS.putIfAbsent(instruction, 0xE000 | comp << 6 | destBits << 3 | jump);
+        }
+      }
+    }
+
+    String[] pointers = { "SP", "LCL", "ARG", "THIS", "THAT" };
+    for (int i = 0; i < pointers.length; i++) {
+      PREDEFINED.putIfAbsent(pointers[i], i);
+    }
+    for (int i = 0; i < 16; i++) {
+      PREDEFINED.putIfAbsent("R" + i, i);
+    }
+    PREDEFINED.putIfAbsent("SCREEN", 16384);
+    PREDEFINED.putIfAbsent("KBD", 24576);
+  }
+
+  private short[] rom = new short[1024];
+  private int size;
+
+  private final SymbolTable labels = new SymbolTable(256);
+  // every symbol of an A-instruction, numbered in the order of first use
+  private final SymbolTable symbols = new SymbolTable(256);
+  private String[] symbolNames = new String[256];
+  private int[] fixupAddresses = new int[256];
+  private int[] fixupSymbols = new int[256];
+  private int fixupCount;
+
+  private char[] line = new char[128];
+  private int lineLength;
+  private int lineNumber;
+
+  @Override
+  public void write(char[] buffer, int offset, int length) {
+    for (int i = offset; i < offset + length; i++) {
+      take(buffer[i]);
+    }
+  }
+
+  /**
+   * Takes assembly as ASCII bytes, such as a mapped file.
+   */
+  public void write(ByteBuffer bytes) {
+    while (bytes.hasRemaining()) {
+      take((char) (bytes.get() & 0xFF));
+    }
+  }
+
+  @Override
+  public void flush() {
+  }
+
+  @Override
+  public void close() {
+    if (lineLength > 0) {
+      endLine();
+    }
+  }
+
+  /**
+   * Resolves the symbols and returns the ROM image.
+   */
+  public short[] assemble() {
+    close();
+    if (size > ROM_SIZE) {
+      throw new IllegalArgumentException("Program does not fit into ROM: " + size + " instructions");
+    }
+    int[] addresses = new int[symbols.size()];
+    int variable = 16;
+    for (int symbol = 0; symbol < addresses.length; symbol++) {
+      int address = labels.get(symbolNames[symbol]);
+      if (address == SymbolTable.MISSING) {
+        address = PREDEFINED.get(symbolNames[symbol]);
+      }
+      if (address == SymbolTable.MISSING) {
+        address = variable++;
+      }
+      // an A-instruction holds 15 bits: a label at the very end of a full ROM, or too many variables
+      if (address > 0x7FFF) {
+        throw new IllegalArgumentException("Address of @" + symbolNames[symbol] + " does not fit into 15 bits: " + address);
+      }
+      addresses[symbol] = address;
+    }
+
+    for (int i = 0; i < fixupCount; i++) {
+      rom[fixupAddresses[i]] = (short) addresses[fixupSymbols[i]];
+    }
+    fixupCount = 0;
+    return Arrays.copyOf(rom, size);
+  }
+
+  /**
+   * Assembles a .asm file, read through a memory mapping.
+   */
+  public static short[] assembleFile(Path file) throws IOException {
+    HackAssembler assembler = new HackAssembler();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      assembler.write(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+    return assembler.assemble();
+  }
+
+  /**
+   * Returns the ROM address of every label defined so far.
+   */
+  public Map<String, Integer> labels() {
+    return labels.toMap();
+  }
+
+  /**
+   * Writes the ROM as .hack text, one 16-digit binary word per line.
+   */
+  public static void writeHack(short[] rom, Writer writer) throws IOException {
+    char[] word = new char[17];
+    word[16] = '\n';
+    for (short instruction : rom) {
+      for (int bit = 0; bit < 16; bit++) {
+        word[bit] = (instruction & (0x8000 >>> bit)) != 0 ? '1' : '0';
+      }
+      writer.write(word);
+    }
+    writer.flush();
+  }
+
+  /**
+   * Writes the ROM as a raw image, two bytes per word, big-endian.
+   */
+  public static void writeBinary(short[] rom, OutputStream out) throws IOException {
+    DataOutputStream data = new DataOutputStream(out);
+    for (short instruction : rom) {
+      data.writeShort(instruction);
+    }
+    data.flush();
+  }
+
+  /**
+   * Assembles Prog.asm into Prog.hack, or into the file given second.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1 || args.length > 2 || !args[0].endsWith(".asm")) {
+      System.out.println("use: java HackAssembler Prog.asm [Prog.hack]");
+      return;
+    }
+    short[] rom = assembleFile(Paths.get(args[0]));
+    Path output = Paths.get(args.length == 2 ? args[1] : args[0].substring(0, args[0].length() - 4) + ".hack");
+    try (BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.US_ASCII)) {
+      writeHack(rom, writer);
+    }
+  }
+
+  private void take(char c) {
+    if (c == '\n') {
+      endLine();
+    } else if (c != '\r' && c != ' ' && c != '\t') {
+      if (lineLength == line.length) {
+        line = Arrays.copyOf(line, lineLength * 2);
+      }
+      line[lineLength++] = c;
+    }
+  }
+
+  private void endLine() {
+    lineNumber++;
+    int length = lineLength;
+    lineLength = 0;
+
+    for (int i = 0; i + 1 < length; i++) {
+      if (line[i] == '/' && line[i + 1] == '/') {
+        length = i;
+        break;
+      }
+    }
+    if (length == 0) {
+      return;
+    }
+
+    if (line[0] == '(') {
+      if (line[length - 1] != ')' || length < 3) {
+        throw error(length);
+      }
+      if (labels.putIfAbsent(line, 1, length - 2, size) != SymbolTable.MISSING) {
+        throw new IllegalArgumentException("Duplicate label at line " + lineNumber + ": " + new String(line, 0, length));
+      }
+    } else if (line[0] == '@') {
+      encodeAddress(length);
+    } else {
+      encodeCompute(length);
+    }
+  }
+
+  private void encodeAddress(int length) {
+    if (length < 2) {
+      throw error(length);
+    }
+    if (Character.isDigit(line[1])) {
+      int value = 0;
+      for (int i = 1; i < length; i++) {
+        if (!Character.isDigit(line[i]) || (value = value * 10 + line[i] - '0') > 0x7FFF) {
+          throw error(length);
+        }
+      }
+      add(value);
+      return;
+    }
+
+    int symbol = symbols.putIfAbsent(line, 1, length - 1, symbols.size());
+    if (symbol == SymbolTable.MISSING) {
+      symbol = symbols.size() - 1;
+      if (symbol == symbolNames.length) {
+        symbolNames = Arrays.copyOf(symbolNames, symbol * 2);
+      }
+      symbolNames[symbol] = new String(line, 1, length - 1);
+    }
+    if (fixupCount == fixupAddresses.length) {
+      fixupAddresses = Arrays.copyOf(fixupAddresses, fixupCount * 2);
+      fixupSymbols = Arrays.copyOf(fixupSymbols, fixupCount * 2);
+    }
+    fixupAddresses[fixupCount] = size;
+    fixupSymbols[fixupCount] = symbol;
+    fixupCount++;
+    add(0);
+  }
+
+  private void encodeCompute(int length) {
+    int instruction = INSTRUCTIONS.get(line, 0, length);
+    if (instruction == SymbolTable.MISSING) {
+      throw error(length);
+    }
+    add(instruction);
+  }
+
+  private void add(int instruction) {
+    if (size == rom.length) {
+      rom = Arrays.copyOf(rom, size * 2);
+    }
+    rom[size++] = (short) instruction;
+  }
+
+  private IllegalArgumentException error(int length) {
+    return new IllegalArgumentException("Invalid instruction at line " + lineNumber + ": " + new String(line, 0, length));
+  }
+}
@@ -0,0 +1,327 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Headless emulator of the Hack computer: 32K words of ROM and RAM, the A, D and PC registers.
+ *
+ * The ROM is decoded once into an int per instruction: an A-instruction is its non-negative value,
+ * a C-instruction has the sign bit set and keeps comp, dest and jump in its low 13 bits, so the
+ * run loop is one array load and one switch per instruction.
+ * A halt loop, "(L) @L 0;JMP" as written by the VM translator and the course's programs, is decoded
+ * into a halt instruction that stops the run instead of spinning until the cycle limit.
+ */
+public class HackEmulator {
+  public static final int RAM_SIZE = 32768;
+  public static final int KBD = 24576;
+
+  private static final int C_INSTRUCTION = 0x80000000;
+  private static final int HALT = C_INSTRUCTION | 0x7F << 6;
+  private static final int UNCONDITIONAL_JUMP = 0xEA87; // 0;JMP
+
+  private final int[] code;
+  private final short[] ram = new short[RAM_SIZE];
+
+  private int pc;
+  private int a;
+  private int d;
+  private boolean halted;
+
+  public HackEmulator(short[] rom) {
+    if (rom.length > RAM_SIZE) {
+      throw new IllegalArgumentException("Program does not fit into ROM: " + rom.length + " instructions");
+    }
+    code = new int[rom.length];
+
+    for (int i = 0; i < rom.length; i++) {
+      int word = rom[i] & 0xFFFF;
+      if ((word & 0x8000) == 0) {
+        code[i] = word == i && i + 1 < rom.length && (rom[i + 1] & 0xFFFF) == UNCONDITIONAL_JUMP ? HALT : word;
+      } else if ((word & 0xE000) != 0xE000 || !validComp((word >>> 6) & 0x7F)) {
+        throw new IllegalArgumentException("Invalid instruction at ROM[" + i + "]: " + Integer.toBinaryString(word));
+      } else {
+        code[i] = C_INSTRUCTION | (word & 0x1FFF);
+      }
+    }
+  }
+
+  private static boolean validComp(int comp) {
+    switch (comp) {
+      case 0b0101010: case 0b0111111: case 0b0111010: case 0b0001100: case 0b0110000: case 0b1110000:
+      case 0b0001101: case 0b0110001: case 0b1110001: case 0b0001111: case 0b0110011: case 0b1110011:
+      case 0b0011111: case 0b0110111: case 0b1110111: case 0b0001110: case 0b0110010: case 0b1110010:
+      case 0b0000010: case 0b1000010: case 0b0010011: case 0b1010011: case 0b0000111: case 0b1000111:
+      case 0b0000000: case 0b1000000: case 0b0010101: case 0b1010101:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Sets PC, A and D to 0 and clears the halt; RAM keeps its contents.
+   */
+  public void reset() {
+    pc = 0;
+    a = 0;
+    d = 0;
+    halted = false;
+  }
+
+  public short[] ram() {
+    return ram;
+  }
+
+  public int pc() {
+    return pc;
+  }
+
+  /**
+   * Returns true if the last run stopped at a halt loop or by running past the end of the program.
+   */
+  public boolean halted() {
+    return halted;
+  }
+
+  /**
+   * Returns the decoded program, for subclasses that execute it their own way.
+   */
+  int[] code() {
+    return code;
+  }
+
+  int a() {
+    return a;
+  }
+
+  int d() {
+    return d;
+  }
+
+  void setRegisters(int pc, int a, int d) {
+    this.pc = pc;
+    this.a = a;
+    this.d = d;
+  }
+
+  void halt() {
+    halted = true;
+  }
+
+  /**
+   * Executes at most maxCycles instructions; returns the number executed.
+   */
+  public long run(long maxCycles) {
+    final int[] code = this.code;
+    final short[] ram = this.ram;
+    int pc = this.pc;
+    int a = this.a;
+    int d = this.d;
+    long cycles = 0;
+
+    while (cycles < maxCycles) {
+      if (pc >= code.length) {
+        halted = true;
+        break;
+      }
+      int instruction = code[pc];
+      if (instruction >= 0) {
+        a = instruction;
+        pc++;
+        cycles++;
+        continue;
+      }
+
+      int x;
+      switch ((instruction >>> 6) & 0x7F) {
+        case 0b0101010: x = 0; break;
+        case 0b0111111: x = 1; break;
+        case 0b0111010: x = -1; break;
+        case 0b0001100: x = d; break;
+        case 0b0110000: x = a; break;
+        case 0b1110000: x = ram[a & 0x7FFF]; break;
+        case 0b0001101: x = ~d; break;
+        case 0b0110001: x = ~a; break;
+        case 0b1110001: x = ~ram[a & 0x7FFF]; break;
+        case 0b0001111: x = -d; break;
+        case 0b0110011: x = -a; break;
+        case 0b1110011: x = -ram[a & 0x7FFF]; break;
+        case 0b0011111: x = d + 1; break;
+        case 0b0110111: x = a + 1; break;
+        case 0b1110111: x = ram[a & 0x7FFF] + 1; break;
+        case 0b0001110: x = d - 1; break;
+        case 0b0110010: x = a - 1; break;
+        case 0b1110010: x = ram[a & 0x7FFF] - 1; break;
+        case 0b0000010: x = d + a; break;
+        case 0b1000010: x = d + ram[a & 0x7FFF]; break;
+        case 0b0010011: x = d - a; break;
+        case 0b1010011: x = d - ram[a & 0x7FFF]; break;
+        case 0b0000111: x = a - d; break;
+        case 0b1000111: x = ram[a & 0x7FFF] - d; break;
+        case 0b0000000: x = d & a; break;
+        case 0b1000000: x = d & ram[a & 0x7FFF]; break;
+        case 0b0010101: x = d | a; break;
+        case 0b1010101: x = d | ram[a & 0x7FFF]; break;
+        default:
+          // HALT
+          this.halted = true;
+          this.pc = pc;
+          this.a = a;
+          this.d = d;
+          return cycles;
+      }
+      x = (short) x;
+      cycles++;
+
+      // M and the jump target use A as it was before this instruction
+      int address = a;
+      if ((instruction & 0x08) != 0) {
+        ram[address & 0x7FFF] = (short) x;
+      }
+      if ((instruction & 0x10) != 0) {
+        d = x;
+      }
+      if ((instruction & 0x20) != 0) {
+        a = x;
+      }
+
+      boolean jump;
+      switch (instruction & 7) {
+        case 0: jump = false; break;
+        case 1: jump = x > 0; break;
+        case 2: jump = x == 0; break;
+        case 3: jump = x >= 0; break;
+        case 4: jump = x < 0; break;
+        case 5: jump = x != 0; break;
+        case 6: jump = x <= 0; break;
+        default: jump = true; break;
+      }
+      pc = jump ? address & 0x7FFF : pc + 1;
+    }
+
+    this.pc = pc;
+    this.a = a;
+    this.d = d;
+    return cycles;
+  }
+
+  /**
+   * Loads a program: .hack text, a .bin image (big-endian words), .asm source,
+   * or a .vm file or directory, which is translated with the default options.
+   */
+  public static short[] load(File file) throws IOException {
+    String name = file.getName();
+
+    HackAssembler assembler = assembler(file);
+    if (assembler != null) {
+      return assembler.assemble();
+    }
+    if (name.endsWith(".bin")) {
+      short[] rom = new short[(int) (file.length() / 2)];
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+        for (int i = 0; i < rom.length; i++) {
+          rom[i] = in.readShort();
+        }
+      }
+      return rom;
+    }
+
+    List<String> lines = Files.readAllLines(file.toPath());
+    short[] rom = new short[lines.size()];
+    int size = 0;
+    for (String line : lines) {
+      line = line.trim();
+      if (!line.isEmpty()) {
+        rom[size++] = (short) Integer.parseInt(line, 2);
+      }
+    }
+    return Arrays.copyOf(rom, size);
+  }
+
+  /**
+   * Returns an assembler holding the program of a .asm or .vm file or a directory, null for other files.
+   */
+  static HackAssembler assembler(File file) throws IOException {
+    HackAssembler assembler = new HackAssembler();
+    if (file.isDirectory() || file.getName().endsWith(".vm")) {
+      Map<String, String> sources = new LinkedHashMap<String, String>();
+      for (File source : VMTranslator.sourceFiles(file)) {
+        sources.put(VMTranslator.withoutVmExtension(source.getName()),
+            new String(Files.readAllBytes(source.toPath()), StandardCharsets.UTF_8));
+      }
+      VMTranslator.translate(sources, new TranslatorOptions(), assembler, null);
+      return assembler;
+    }
+    if (file.getName().endsWith(".asm")) {
+      assembler.write(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+      return assembler;
+    }
+    return null;
+  }
+
+  public static void main(String[] args) throws IOException {
+    long maxCycles = 100_000_000L;
+    boolean jit = false;
+    List<int[]> settings = new ArrayList<int[]>();
+    List<int[]> prints = new ArrayList<int[]>();
+    List<File> programs = new ArrayList<File>();
+
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("-n") && i + 1 < args.length) {
+        maxCycles = Long.parseLong(args[++i]);
+      } else if (arg.equals("-s") && i + 1 < args.length) {
+        String[] setting = args[++i].split("=");
+        settings.add(new int[] { Integer.parseInt(setting[0]), Integer.parseInt(setting[1]) });
+      } else if (arg.equals("-p") && i + 1 < args.length) {
+        String[] range = args[++i].split("\\.\\.");
+        int from = Integer.parseInt(range[0]);
+        prints.add(new int[] { from, range.length > 1 ? Integer.parseInt(range[1]) : from });
+      } else if (arg.equals("--jit")) {
+        jit = true;
+      } else if (arg.startsWith("-")) {
+        programs.clear();
+        break;
+      } else {
+        programs.add(new File(arg));
+      }
+    }
+
+    if (programs.isEmpty()) {
+      System.out.println("use: java HackEmulator [--jit] [-n cycles] [-s address=value]... [-p address[..address]]... program...");
+      System.out.println("program: .hack, .bin, .asm, .vm or a directory of .vm files");
+      return;
+    }
+
+    for (File program : programs) {
+      short[] rom = load(program);
+      HackEmulator emulator = jit ? new HackJit(rom) : new HackEmulator(rom);
+      for (int[] setting : settings) {
+        emulator.ram()[setting[0]] = (short) setting[1];
+      }
+
+      long start = System.nanoTime();
+      long cycles = emulator.run(maxCycles);
+      double seconds = (System.nanoTime() - start) / 1e9;
+
+      System.out.println(String.format("%s: %d cycles, %s, %.3f s, %.0f M instructions/s", program.getPath(), cycles,
+          emulator.halted() ? "halted" : "cycle limit reached", seconds, cycles / seconds / 1e6));
+      for (int[] range : prints) {
+        StringBuilder line = new StringBuilder();
+        for (int address = range[0]; address <= range[1]; address++) {
+          line.append(String.format("RAM[%d]=%d ", address, emulator.ram()[address]));
+        }
+        System.out.println("  " + line.toString().trim());
+      }
+    }
+  }
+}
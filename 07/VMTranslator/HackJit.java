@@ -0,0 +1,427 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+
+/**
+ * Hack emulator with a second tier: hot basic blocks are compiled to JVM bytecode.
+ *
+ * A basic block runs from an entry address up to and including the first jump instruction. Blocks are
+ * interpreted until they have been entered THRESHOLD times, then compiled into a hidden class: A and D are
+ * JVM locals for the length of the block, addresses known at compile time ("@SP M=M+1") are constants, and
+ * the block returns the address it jumps to. The JVM's own JIT compiles these classes to machine code.
+ * The class files are written by hand; the generated code has no branches (a conditional jump calls branch),
+ * so it needs no stack map frames.
+ *
+ * The ROM is not writable, so a compiled block never goes stale. Blocks containing a halt loop, blocks that
+ * would run into the end of the address space and cold code stay with the interpreter, as does the tail of a
+ * run whose cycle limit would fall inside a block, so runs stop after exactly the same instruction.
+ */
+public class HackJit extends HackEmulator {
+  public static final int THRESHOLD = 1000;
+  private static final int MAX_BLOCK = 256;
+
+  /**
+   * A compiled basic block: runs it with A and D in registers[0] and registers[1]; returns the next PC.
+   */
+  public interface Block {
+    int run(short[] ram, int[] registers);
+  }
+
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+  private final Block[] blocks;
+  private final int[] lengths;
+  // entries of each block while it is interpreted; -1 once it is compiled or found not compilable
+  private final int[] counts;
+  private int compiled;
+
+  public HackJit(short[] rom) {
+    super(rom);
+    int[] code = code();
+    blocks = new Block[code.length];
+    lengths = new int[code.length];
+    counts = new int[code.length];
+
+    for (int i = code.length - 1; i >= 0; i--) {
+      boolean jump = code[i] < 0 && (code[i] & 7) != 0;
+      lengths[i] = jump || i == code.length - 1 ? 1 : Math.min(lengths[i + 1] + 1, MAX_BLOCK);
+    }
+  }
+
+  /**
+   * Returns the number of blocks compiled so far.
+   */
+  public int compiledBlocks() {
+    return compiled;
+  }
+
+  @Override
+  public long run(long maxCycles) {
+    final Block[] blocks = this.blocks;
+    final int[] lengths = this.lengths;
+    final short[] ram = ram();
+    int[] registers = { a(), d() };
+    int pc = pc();
+    long cycles = 0;
+
+    while (cycles < maxCycles) {
+      if (pc >= blocks.length) {
+        setRegisters(pc, registers[0], registers[1]);
+        cycles += super.run(maxCycles - cycles);
+        return cycles;
+      }
+
+      Block block = blocks[pc];
+      if (block != null && cycles + lengths[pc] <= maxCycles) {
+        cycles += lengths[pc];
+        pc = block.run(ram, registers);
+        continue;
+      }
+      if (block == null && counts[pc] >= 0 && ++counts[pc] == THRESHOLD) {
+        counts[pc] = -1;
+        blocks[pc] = compile(pc);
+        if (blocks[pc] != null) {
+          compiled++;
+          continue;
+        }
+      }
+
+      setRegisters(pc, registers[0], registers[1]);
+      cycles += super.run(Math.min(lengths[pc], maxCycles - cycles));
+      if (halted()) {
+        return cycles;
+      }
+      pc = pc();
+      registers[0] = a();
+      registers[1] = d();
+    }
+
+    setRegisters(pc, registers[0], registers[1]);
+    return cycles;
+  }
+
+  /**
+   * The jump of a compiled block: returns target if x satisfies the jump condition, fallthrough otherwise.
+   */
+  public static int branch(int x, int condition, int target, int fallthrough) {
+    boolean jump;
+    switch (condition) {
+      case 1: jump = x > 0; break;
+      case 2: jump = x == 0; break;
+      case 3: jump = x >= 0; break;
+      case 4: jump = x < 0; break;
+      case 5: jump = x != 0; break;
+      case 6: jump = x <= 0; break;
+      default: jump = condition == 7; break;
+    }
+    return jump ? target : fallthrough;
+  }
+
+  /**
+   * Compiles the block at start; returns null if it has to stay with the interpreter.
+   */
+  private Block compile(int start) {
+    byte[] classFile;
+    try {
+      classFile = new BlockCompiler(code(), start, lengths[start]).classFile();
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    if (classFile == null) {
+      return null;
+    }
+
+    try {
+      Class<?> blockClass = LOOKUP.defineHiddenClass(classFile, true).lookupClass();
+      return (Block) blockClass.getConstructor().newInstance();
+    } catch (ReflectiveOperationException | LinkageError e) {
+      return null;
+    }
+  }
+
+  /**
+   * Writes the class file of one block.
+   */
+  private static class BlockCompiler {
+    // constant pool
+    private static final int THIS_CLASS = 2;
+    private static final int OBJECT_CLASS = 4;
+    private static final int BLOCK_INTERFACE = 6;
+    private static final int OBJECT_INIT = 10;
+    private static final int RUN_NAME = 11;
+    private static final int RUN_DESCRIPTOR = 12;
+    private static final int CODE_ATTRIBUTE = 13;
+    private static final int BRANCH_METHOD = 19;
+    private static final int INIT_NAME = 7;
+    private static final int INIT_DESCRIPTOR = 8;
+
+    // locals of run
+    private static final int RAM = 1;
+    private static final int REGISTERS = 2;
+    private static final int A = 3;
+    private static final int D = 4;
+    private static final int X = 5;
+    private static final int TARGET = 6;
+
+    private static final int ICONST_M1 = 0x02, ICONST_0 = 0x03, ICONST_1 = 0x04, BIPUSH = 0x10, SIPUSH = 0x11;
+    private static final int ILOAD = 0x15, ALOAD = 0x19, ISTORE = 0x36, IALOAD = 0x2E, SALOAD = 0x35;
+    private static final int IASTORE = 0x4F, SASTORE = 0x56, POP = 0x57, IADD = 0x60, ISUB = 0x64, INEG = 0x74;
+    private static final int IAND = 0x7E, IOR = 0x80, IXOR = 0x82, I2S = 0x93, IRETURN = 0xAC, RETURN = 0xB1;
+    private static final int INVOKESPECIAL = 0xB7, INVOKESTATIC = 0xB8, ALOAD_0 = 0x2A;
+
+    private final int[] program;
+    private final int start;
+    private final int length;
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    // value of A if it is known at this point of the block, -1 if not
+    private int knownA = -1;
+    // jump target of the last instruction if known at compile time, else -1 and it is in local TARGET
+    private int target = -1;
+
+    BlockCompiler(int[] program, int start, int length) {
+      this.program = program;
+      this.start = start;
+      this.length = length;
+    }
+
+    byte[] classFile() throws IOException {
+      if (start + length >= RAM_SIZE) {
+        return null;
+      }
+      for (int i = start; i < start + length; i++) {
+        if (program[i] < 0 && ((program[i] >>> 6) & 0x7F) == 0x7F) {
+          // halt loop
+          return null;
+        }
+      }
+
+      op(ALOAD, REGISTERS);
+      op(ICONST_0);
+      op(IALOAD);
+      op(ISTORE, A);
+      op(ALOAD, REGISTERS);
+      op(ICONST_1);
+      op(IALOAD);
+      op(ISTORE, D);
+
+      for (int i = start; i < start + length; i++) {
+        int instruction = program[i];
+        if (instruction >= 0) {
+          sipush(instruction);
+          op(ISTORE, A);
+          knownA = instruction;
+        } else {
+          instruction(instruction);
+        }
+      }
+
+      storeRegisters();
+      int last = program[start + length - 1];
+      int jump = last < 0 ? last & 7 : 0;
+      if (jump == 7) {
+        pushTarget();
+      } else if (jump != 0) {
+        op(ILOAD, X);
+        op(BIPUSH, jump);
+        pushTarget();
+        sipush(start + length);
+        op(INVOKESTATIC, BRANCH_METHOD >> 8, BRANCH_METHOD & 0xFF);
+      } else {
+        sipush(start + length);
+      }
+      op(IRETURN);
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(52);
+      constantPool(out);
+      out.writeShort(0x0031); // public final super
+      out.writeShort(THIS_CLASS);
+      out.writeShort(OBJECT_CLASS);
+      out.writeShort(1);
+      out.writeShort(BLOCK_INTERFACE);
+      out.writeShort(0);
+      out.writeShort(2);
+
+      byte[] init = { (byte) ALOAD_0, (byte) INVOKESPECIAL, 0, OBJECT_INIT, (byte) RETURN };
+      method(out, INIT_NAME, INIT_DESCRIPTOR, 1, 1, init);
+      method(out, RUN_NAME, RUN_DESCRIPTOR, 6, 7, code.toByteArray());
+      out.writeShort(0);
+      return bytes.toByteArray();
+    }
+
+    private void constantPool(DataOutputStream out) throws IOException {
+      out.writeShort(20);
+      utf8(out, "HackJitBlock");           // 1
+      reference(out, 7, 1);                // 2 class
+      utf8(out, "java/lang/Object");       // 3
+      reference(out, 7, 3);                // 4 class
+      utf8(out, "HackJit$Block");          // 5
+      reference(out, 7, 5);                // 6 class
+      utf8(out, "<init>");                 // 7
+      utf8(out, "()V");                    // 8
+      reference(out, 12, 7, 8);            // 9 name and type
+      reference(out, 10, 4, 9);            // 10 method
+      utf8(out, "run");                    // 11
+      utf8(out, "([S[I)I");                // 12
+      utf8(out, "Code");                   // 13
+      utf8(out, "HackJit");                // 14
+      reference(out, 7, 14);               // 15 class
+      utf8(out, "branch");                 // 16
+      utf8(out, "(IIII)I");                // 17
+      reference(out, 12, 16, 17);          // 18 name and type
+      reference(out, 10, 15, 18);          // 19 method
+    }
+
+    private static void utf8(DataOutputStream out, String text) throws IOException {
+      out.writeByte(1);
+      out.writeUTF(text);
+    }
+
+    private static void reference(DataOutputStream out, int tag, int... indexes) throws IOException {
+      out.writeByte(tag);
+      for (int index : indexes) {
+        out.writeShort(index);
+      }
+    }
+
+    private static void method(DataOutputStream out, int name, int descriptor, int maxStack, int maxLocals,
+        byte[] code) throws IOException {
+      out.writeShort(0x0001); // public
+      out.writeShort(name);
+      out.writeShort(descriptor);
+      out.writeShort(1);
+      out.writeShort(CODE_ATTRIBUTE);
+      out.writeInt(12 + code.length);
+      out.writeShort(maxStack);
+      out.writeShort(maxLocals);
+      out.writeInt(code.length);
+      out.write(code);
+      out.writeShort(0);
+      out.writeShort(0);
+    }
+
+    private void instruction(int instruction) {
+      int comp = (instruction >>> 6) & 0x7F;
+      switch (comp) {
+        case 0b0101010: op(ICONST_0); break;
+        case 0b0111111: op(ICONST_1); break;
+        case 0b0111010: op(ICONST_M1); break;
+        case 0b0001100: op(ILOAD, D); break;
+        case 0b0110000: loadA(); break;
+        case 0b1110000: loadM(); break;
+        case 0b0001101: op(ILOAD, D); op(ICONST_M1); op(IXOR); break;
+        case 0b0110001: loadA(); op(ICONST_M1); op(IXOR); break;
+        case 0b1110001: loadM(); op(ICONST_M1); op(IXOR); break;
+        case 0b0001111: op(ILOAD, D); op(INEG); break;
+        case 0b0110011: loadA(); op(INEG); break;
+        case 0b1110011: loadM(); op(INEG); break;
+        case 0b0011111: op(ILOAD, D); op(ICONST_1); op(IADD); break;
+        case 0b0110111: loadA(); op(ICONST_1); op(IADD); break;
+        case 0b1110111: loadM(); op(ICONST_1); op(IADD); break;
+        case 0b0001110: op(ILOAD, D); op(ICONST_1); op(ISUB); break;
+        case 0b0110010: loadA(); op(ICONST_1); op(ISUB); break;
+        case 0b1110010: loadM(); op(ICONST_1); op(ISUB); break;
+        case 0b0000010: op(ILOAD, D); loadA(); op(IADD); break;
+        case 0b1000010: op(ILOAD, D); loadM(); op(IADD); break;
+        case 0b0010011: op(ILOAD, D); loadA(); op(ISUB); break;
+        case 0b1010011: op(ILOAD, D); loadM(); op(ISUB); break;
+        case 0b0000111: loadA(); op(ILOAD, D); op(ISUB); break;
+        case 0b1000111: loadM(); op(ILOAD, D); op(ISUB); break;
+        case 0b0000000: op(ILOAD, D); loadA(); op(IAND); break;
+        case 0b1000000: op(ILOAD, D); loadM(); op(IAND); break;
+        case 0b0010101: op(ILOAD, D); loadA(); op(IOR); break;
+        case 0b1010101: op(ILOAD, D); loadM(); op(IOR); break;
+        default: throw new IllegalStateException("Invalid comp " + comp);
+      }
+      op(I2S);
+
+      int jump = instruction & 7;
+      if ((instruction & 0x38) == 0 && jump == 0) {
+        op(POP);
+        return;
+      }
+      op(ISTORE, X);
+
+      // M and the jump target use A as it was before this instruction
+      target = knownA;
+      if (jump != 0 && target == -1) {
+        address();
+        op(ISTORE, TARGET);
+      }
+      if ((instruction & 0x08) != 0) {
+        op(ALOAD, RAM);
+        address();
+        op(ILOAD, X);
+        op(SASTORE);
+      }
+      if ((instruction & 0x10) != 0) {
+        op(ILOAD, X);
+        op(ISTORE, D);
+      }
+      if ((instruction & 0x20) != 0) {
+        op(ILOAD, X);
+        op(ISTORE, A);
+        knownA = -1;
+      }
+    }
+
+    private void storeRegisters() {
+      op(ALOAD, REGISTERS);
+      op(ICONST_0);
+      op(ILOAD, A);
+      op(IASTORE);
+      op(ALOAD, REGISTERS);
+      op(ICONST_1);
+      op(ILOAD, D);
+      op(IASTORE);
+    }
+
+    private void pushTarget() {
+      if (target == -1) {
+        op(ILOAD, TARGET);
+      } else {
+        sipush(target & 0x7FFF);
+      }
+    }
+
+    private void loadA() {
+      if (knownA == -1) {
+        op(ILOAD, A);
+      } else {
+        sipush(knownA);
+      }
+    }
+
+    private void loadM() {
+      op(ALOAD, RAM);
+      address();
+      op(SALOAD);
+    }
+
+    private void address() {
+      if (knownA == -1) {
+        op(ILOAD, A);
+        sipush(0x7FFF);
+        op(IAND);
+      } else {
+        sipush(knownA & 0x7FFF);
+      }
+    }
+
+    private void sipush(int value) {
+      op(SIPUSH);
+      op(value >> 8 & 0xFF);
+      op(value & 0xFF);
+    }
+
+    private void op(int... bytes) {
+      for (int b : bytes) {
+        code.write(b);
+      }
+    }
+  }
+}
@@ -0,0 +1,369 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hack emulator that charges every executed instruction to the VM function, and the chain of calls, it ran in.
+ *
+ * The functions are found by the labels of the translated program: a function label "(Main.main)" marks an
+ * entry, the jump at the end of the shared VM$CALL routine is a call to the function it lands on, and a jump to
+ * a return label "f$$ret.k" is a return. The profiler keeps a calling context tree, one node per chain of calls,
+ * and its run loop is a copy of the emulator's with one counter increment per instruction and the call and return
+ * checks on taken jumps only; HackEmulator itself is not slowed down.
+ *
+ * Instructions of the call routine are charged to the caller, those of the return routine to the callee.
+ * Results: collapsed stacks ("Sys.init;Main.main;Math.multiply 1234", the input of flamegraph.pl and similar
+ * tools) and tables of the functions and call edges with the most instructions.
+ */
+public class HackProfiler extends HackEmulator {
+  private final List<String> functions = new ArrayList<String>();
+  // function id of the function entered at each ROM address, -1 if none
+  private final int[] entries;
+  private final boolean[] callSites;
+  private final boolean[] returnTargets;
+
+  // calling context tree; node 0 is the root, a parent's id is below its children's
+  private int[] parents = new int[64];
+  private int[] nodeFunctions = new int[64];
+  private long[] self = new long[64];
+  private long[] calls = new long[64];
+  private int nodeCount = 1;
+  private final Map<Long, Integer> children = new HashMap<Long, Integer>();
+
+  private int[] stack = new int[64];
+  private int depth;
+  private int node;
+
+  public HackProfiler(short[] rom, Map<String, Integer> labels) {
+    super(rom);
+    entries = new int[rom.length + 1];
+    callSites = new boolean[rom.length + 1];
+    returnTargets = new boolean[rom.length + 1];
+    Arrays.fill(entries, -1);
+
+    int[] addresses = new int[labels.size()];
+    int count = 0;
+    for (Map.Entry<String, Integer> label : labels.entrySet()) {
+      String name = label.getKey();
+      int address = label.getValue();
+      addresses[count++] = address;
+      if (address > rom.length) {
+        continue;
+      }
+      if (name.indexOf('$') == -1) {
+        entries[address] = functions.size();
+        functions.add(name);
+      } else if (name.contains("$$ret.")) {
+        returnTargets[address] = true;
+      }
+    }
+
+    Integer call = labels.get("VM$CALL");
+    if (call != null) {
+      // the routine runs up to the next label
+      int end = rom.length;
+      for (int address : addresses) {
+        if (address > call && address < end) {
+          end = address;
+        }
+      }
+      for (int address = call; address < end; address++) {
+        callSites[address] = true;
+      }
+    }
+    nodeFunctions[0] = -1;
+  }
+
+  @Override
+  public long run(long maxCycles) {
+    final int[] code = code();
+    final short[] ram = ram();
+    int pc = pc();
+    int a = a();
+    int d = d();
+    int node = this.node;
+    long cycles = 0;
+    long[] counts = self;
+
+    while (cycles < maxCycles) {
+      if (pc >= code.length) {
+        halt();
+        break;
+      }
+      int instruction = code[pc];
+      counts[node]++;
+      if (instruction >= 0) {
+        a = instruction;
+        pc++;
+        cycles++;
+        continue;
+      }
+
+      int comp = (instruction >>> 6) & 0x7F;
+      if (comp == 0x7F) {
+        // halt, which is not an instruction
+        counts[node]--;
+        halt();
+        break;
+      }
+      int x = (short) alu(comp, a, d, ram);
+      cycles++;
+
+      int address = a;
+      if ((instruction & 0x08) != 0) {
+        ram[address & 0x7FFF] = (short) x;
+      }
+      if ((instruction & 0x10) != 0) {
+        d = x;
+      }
+      if ((instruction & 0x20) != 0) {
+        a = x;
+      }
+
+      boolean jump;
+      switch (instruction & 7) {
+        case 0: jump = false; break;
+        case 1: jump = x > 0; break;
+        case 2: jump = x == 0; break;
+        case 3: jump = x >= 0; break;
+        case 4: jump = x < 0; break;
+        case 5: jump = x != 0; break;
+        case 6: jump = x <= 0; break;
+        default: jump = true; break;
+      }
+      if (!jump) {
+        pc++;
+        continue;
+      }
+
+      int target = address & 0x7FFF;
+      if (callSites[pc] && target < entries.length && entries[target] != -1) {
+        node = enter(node, entries[target]);
+        counts = this.self;
+      } else if (target < returnTargets.length && returnTargets[target] && depth > 0) {
+        node = stack[--depth];
+      }
+      pc = target;
+    }
+
+    this.node = node;
+    setRegisters(pc, a, d);
+    return cycles;
+  }
+
+  private static int alu(int comp, int a, int d, short[] ram) {
+    switch (comp) {
+      case 0b0101010: return 0;
+      case 0b0111111: return 1;
+      case 0b0111010: return -1;
+      case 0b0001100: return d;
+      case 0b0110000: return a;
+      case 0b1110000: return ram[a & 0x7FFF];
+      case 0b0001101: return ~d;
+      case 0b0110001: return ~a;
+      case 0b1110001: return ~ram[a & 0x7FFF];
+      case 0b0001111: return -d;
+      case 0b0110011: return -a;
+      case 0b1110011: return -ram[a & 0x7FFF];
+      case 0b0011111: return d + 1;
+      case 0b0110111: return a + 1;
+      case 0b1110111: return ram[a & 0x7FFF] + 1;
+      case 0b0001110: return d - 1;
+      case 0b0110010: return a - 1;
+      case 0b1110010: return ram[a & 0x7FFF] - 1;
+      case 0b0000010: return d + a;
+      case 0b1000010: return d + ram[a & 0x7FFF];
+      case 0b0010011: return d - a;
+      case 0b1010011: return d - ram[a & 0x7FFF];
+      case 0b0000111: return a - d;
+      case 0b1000111: return ram[a & 0x7FFF] - d;
+      case 0b0000000: return d & a;
+      case 0b1000000: return d & ram[a & 0x7FFF];
+      case 0b0010101: return d | a;
+      default: return d | ram[a & 0x7FFF];
+    }
+  }
+
+  /**
+   * Pushes the caller's node and returns the node of the callee under it.
+   */
+  private int enter(int caller, int function) {
+    if (depth == stack.length) {
+      stack = Arrays.copyOf(stack, depth * 2);
+    }
+    stack[depth++] = caller;
+
+    long key = (long) caller << 32 | function;
+    Integer callee = children.get(key);
+    if (callee == null) {
+      if (nodeCount == parents.length) {
+        parents = Arrays.copyOf(parents, nodeCount * 2);
+        nodeFunctions = Arrays.copyOf(nodeFunctions, nodeCount * 2);
+        self = Arrays.copyOf(self, nodeCount * 2);
+        calls = Arrays.copyOf(calls, nodeCount * 2);
+      }
+      callee = nodeCount++;
+      parents[callee] = caller;
+      nodeFunctions[callee] = function;
+      children.put(key, callee);
+    }
+    calls[callee]++;
+    return callee;
+  }
+
+  private String name(int node) {
+    return nodeFunctions[node] == -1 ? "(root)" : functions.get(nodeFunctions[node]);
+  }
+
+  /**
+   * Returns the profile in collapsed stack format, one line per chain of calls that executed instructions.
+   */
+  public String collapsedStacks() {
+    StringBuilder out = new StringBuilder();
+    for (int node = 0; node < nodeCount; node++) {
+      if (self[node] == 0) {
+        continue;
+      }
+      List<String> chain = new ArrayList<String>();
+      for (int n = node; n != 0; n = parents[n]) {
+        chain.add(name(n));
+      }
+      if (chain.isEmpty()) {
+        chain.add(name(0));
+      }
+      Collections.reverse(chain);
+      out.append(String.join(";", chain)).append(' ').append(self[node]).append('\n');
+    }
+    return out.toString();
+  }
+
+  /**
+   * Returns the top functions by instructions executed in them (self) and under them (total), and the
+   * top call edges by instructions executed under them. A recursive function's total counts its
+   * outermost activations only, and an edge likewise.
+   */
+  public String report(int top) {
+    long[] inclusive = Arrays.copyOf(self, nodeCount);
+    for (int node = nodeCount - 1; node > 0; node--) {
+      inclusive[parents[node]] += inclusive[node];
+    }
+
+    Map<String, long[]> byFunction = new HashMap<String, long[]>();
+    Map<String, long[]> byEdge = new HashMap<String, long[]>();
+    long all = 0;
+    for (int node = 0; node < nodeCount; node++) {
+      all += self[node];
+      long[] function = row(byFunction, name(node));
+      function[0] += self[node];
+      function[2] += calls[node];
+      if (node == 0) {
+        continue;
+      }
+      String caller = name(parents[node]);
+      long[] edge = row(byEdge, caller + " -> " + name(node));
+      edge[0] += calls[node];
+
+      boolean nestedFunction = false;
+      boolean nestedEdge = false;
+      for (int n = parents[node]; n != 0; n = parents[n]) {
+        nestedFunction |= nodeFunctions[n] == nodeFunctions[node];
+        nestedEdge |= nodeFunctions[n] == nodeFunctions[node] && name(parents[n]).equals(caller);
+      }
+      if (!nestedFunction) {
+        function[1] += inclusive[node];
+      }
+      if (!nestedEdge) {
+        edge[1] += inclusive[node];
+      }
+    }
+    row(byFunction, name(0))[1] = inclusive[0];
+
+    StringBuilder out = new StringBuilder();
+    out.append(String.format("%d instructions%n%n", all));
+    out.append(String.format("%-40s %14s %6s %14s %6s %10s%n", "function", "self", "%", "total", "%", "calls"));
+    for (Map.Entry<String, long[]> function : sorted(byFunction, 0, top)) {
+      long[] row = function.getValue();
+      out.append(String.format("%-40s %14d %6.2f %14d %6.2f %10d%n", function.getKey(), row[0], percent(row[0], all),
+          row[1], percent(row[1], all), row[2]));
+    }
+
+    out.append(String.format("%n%-56s %10s %14s %6s%n", "call edge", "calls", "total", "%"));
+    for (Map.Entry<String, long[]> edge : sorted(byEdge, 1, top)) {
+      long[] row = edge.getValue();
+      out.append(String.format("%-56s %10d %14d %6.2f%n", edge.getKey(), row[0], row[1], percent(row[1], all)));
+    }
+    return out.toString();
+  }
+
+  private static long[] row(Map<String, long[]> rows, String name) {
+    long[] row = rows.get(name);
+    if (row == null) {
+      row = new long[3];
+      rows.put(name, row);
+    }
+    return row;
+  }
+
+  private static List<Map.Entry<String, long[]>> sorted(Map<String, long[]> rows, int column, int top) {
+    List<Map.Entry<String, long[]>> entries = new ArrayList<Map.Entry<String, long[]>>(rows.entrySet());
+    entries.sort(new Comparator<Map.Entry<String, long[]>>() {
+      public int compare(Map.Entry<String, long[]> x, Map.Entry<String, long[]> y) {
+        int order = Long.compare(y.getValue()[column], x.getValue()[column]);
+        return order != 0 ? order : x.getKey().compareTo(y.getKey());
+      }
+    });
+    return entries.subList(0, Math.min(top, entries.size()));
+  }
+
+  private static double percent(long part, long all) {
+    return all == 0 ? 0 : 100.0 * part / all;
+  }
+
+  public static void main(String[] args) throws IOException {
+    long maxCycles = 100_000_000L;
+    int top = 20;
+    String folded = null;
+    File program = null;
+
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("-n") && i + 1 < args.length) {
+        maxCycles = Long.parseLong(args[++i]);
+      } else if (arg.equals("--top") && i + 1 < args.length) {
+        top = Integer.parseInt(args[++i]);
+      } else if (arg.equals("--folded") && i + 1 < args.length) {
+        folded = args[++i];
+      } else if (arg.startsWith("-") || program != null) {
+        program = null;
+        break;
+      } else {
+        program = new File(arg);
+      }
+    }
+
+    HackAssembler assembler = program == null ? null : HackEmulator.assembler(program);
+    if (assembler == null) {
+      System.out.println("use: java HackProfiler [-n cycles] [--top count] [--folded file] program");
+      System.out.println("program: .asm, .vm or a directory of .vm files");
+      return;
+    }
+
+    HackProfiler profiler = new HackProfiler(assembler.assemble(), assembler.labels());
+    long cycles = profiler.run(maxCycles);
+    System.out.println(String.format("%s: %d cycles, %s", program.getPath(), cycles,
+        profiler.halted() ? "halted" : "cycle limit reached"));
+    System.out.print(profiler.report(top));
+    if (folded != null) {
+      Files.write(new File(folded).toPath(), profiler.collapsedStacks().getBytes(StandardCharsets.UTF_8));
+      System.out.println("Collapsed stacks: " + folded);
+    }
+  }
+}
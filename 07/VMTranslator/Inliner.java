@@ -0,0 +1,278 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Replaces calls of small leaf functions by a copy of their body, at the VM level.
+ *
+ * A function is inlined when its body (without the function and return commands) has at most
+ * threshold commands, is straight-line (no label, goto, if-goto or call), does not use temp,
+ * and leaves exactly its return value on its working stack at the return.
+ *
+ * The inlined body runs in the caller's frame, with temp slots standing in for the callee's:
+ *  - the arguments are popped from the stack into the first nArgs slots and argument i becomes slot i
+ *  - the locals live in the next nVars slots and are set to 0 first
+ *  - if the body writes pointer 0 or 1, the caller's value is saved in the next slot and
+ *    pushed back after the body, below which the return value stays on the stack
+ * A real call of such a function leaves temp alone, so the slots are taken only among the temp slots that are dead
+ * after the call site: written again by the caller before any read, call or return, on every path (liveTemps).
+ * A call site is kept as a call when not enough slots are dead, when it passes fewer arguments than the body reads,
+ * or when the body uses static and lives in another file.
+ */
+public class Inliner {
+  public static final int DEFAULT_THRESHOLD = 8;
+  private static final int TEMP_SIZE = 8;
+  private static final int ALL_TEMPS = (1 << TEMP_SIZE) - 1;
+
+  private final VMProgram program;
+  private final CallGraph callGraph;
+  private final int threshold;
+
+  // per function: whether it can be inlined, and what its body needs
+  private final boolean[] inlinable;
+  private final int[] argumentsRead;
+  private final boolean[] writesPointer0;
+  private final boolean[] writesPointer1;
+  private final boolean[] usesStatic;
+
+  // per command: the temp slots that may be read after it
+  private final int[] liveTempsAfter;
+
+  private final Map<String, Integer> inlinedSites = new LinkedHashMap<String, Integer>();
+
+  public Inliner(VMProgram program, int threshold) {
+    this.program = program;
+    this.callGraph = new CallGraph(program);
+    this.threshold = threshold;
+
+    int functionCount = callGraph.functionCount();
+    inlinable = new boolean[functionCount];
+    argumentsRead = new int[functionCount];
+    writesPointer0 = new boolean[functionCount];
+    writesPointer1 = new boolean[functionCount];
+    usesStatic = new boolean[functionCount];
+
+    for (int f = 0; f < functionCount; f++) {
+      inlinable[f] = analyze(f);
+    }
+    liveTempsAfter = liveTemps();
+  }
+
+  private boolean analyze(int f) {
+    int bodyStart = callGraph.start(f) + 1;
+    int bodyEnd = callGraph.end(f) - 1;
+    if (bodyEnd < bodyStart || bodyEnd - bodyStart > threshold
+        || VMProgram.opcode(program.get(bodyEnd)) != Opcode.RETURN) {
+      return false;
+    }
+
+    int depth = 0;
+    for (int i = bodyStart; i < bodyEnd; i++) {
+      int command = program.get(i);
+      Opcode opcode = VMProgram.opcode(command);
+
+      switch (opcode.commandType()) {
+        case C_PUSH:
+        case C_POP:
+          Segment segment = VMProgram.segment(command);
+          int index = VMProgram.index(command);
+          if (segment == Segment.TEMP) {
+            return false;
+          }
+          if (segment == Segment.ARGUMENT) {
+            argumentsRead[f] = Math.max(argumentsRead[f], index + 1);
+          } else if (segment == Segment.STATIC) {
+            usesStatic[f] = true;
+          } else if (segment == Segment.LOCAL && index >= program.count(bodyStart - 1)) {
+            return false;
+          } else if (segment == Segment.POINTER && opcode == Opcode.POP) {
+            writesPointer0[f] |= index == 0;
+            writesPointer1[f] |= index == 1;
+          }
+          depth += opcode == Opcode.PUSH ? 1 : -1;
+          break;
+        case C_ARITHMETIC:
+          if (opcode != Opcode.NEG && opcode != Opcode.NOT) {
+            depth--;
+          }
+          break;
+        default:
+          return false;
+      }
+      if (depth < 0 || (depth == 0 && opcode.commandType() == CommandType.C_ARITHMETIC)) {
+        return false;
+      }
+    }
+    return depth == 1;
+  }
+
+  /**
+   * Returns a copy of the program with every call of an inlinable function replaced by its body.
+   * The functions themselves are kept; --dce removes the ones no longer called.
+   */
+  public VMProgram inline() {
+    VMProgram result = new VMProgram();
+
+    for (int file = 0; file < program.fileCount(); file++) {
+      result.beginFile(program.fileName(file));
+      for (int i = program.fileStart(file); i < program.fileEnd(file); i++) {
+        int command = program.get(i);
+        if (VMProgram.opcode(command) == Opcode.CALL
+            && inlineCall(result, i, file, ~liveTempsAfter[i] & ALL_TEMPS)) {
+          continue;
+        }
+        result.append(program, i, i + 1);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Computes, for every command, the temp slots whose value may still be read after it: by a later push temp in the
+   * same function, or by any code once the function calls, returns or runs off its end. Each function (and the
+   * commands before the first function of a file) is analyzed backwards to a fixpoint, starting with every slot
+   * live, so that a loop that never exits keeps its slots live: a halt loop leaves temp for the test script to read.
+   */
+  private int[] liveTemps() {
+    int[] liveAfter = new int[program.size()];
+    for (int file = 0; file < program.fileCount(); file++) {
+      int start = program.fileStart(file);
+      for (int i = start + 1; i <= program.fileEnd(file); i++) {
+        if (i == program.fileEnd(file) || VMProgram.opcode(program.get(i)) == Opcode.FUNCTION) {
+          liveTemps(start, i, liveAfter);
+          start = i;
+        }
+      }
+    }
+    return liveAfter;
+  }
+
+  private void liveTemps(int start, int end, int[] liveAfter) {
+    Map<Integer, Integer> labels = new HashMap<Integer, Integer>();
+    for (int i = start; i < end; i++) {
+      if (VMProgram.opcode(program.get(i)) == Opcode.LABEL) {
+        labels.putIfAbsent(VMProgram.nameId(program.get(i)), i - start);
+      }
+    }
+
+    int[] liveIn = new int[end - start];
+    Arrays.fill(liveIn, ALL_TEMPS);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = end - 1; i >= start; i--) {
+        int command = program.get(i);
+        Opcode opcode = VMProgram.opcode(command);
+        int next = i + 1 < end ? liveIn[i + 1 - start] : ALL_TEMPS;
+
+        int out = next;
+        if (opcode == Opcode.GOTO || opcode == Opcode.IF_GOTO) {
+          // a jump out of the function is not followed: every slot stays live
+          Integer target = labels.get(VMProgram.nameId(command));
+          out = (target == null ? ALL_TEMPS : liveIn[target]) | (opcode == Opcode.IF_GOTO ? next : 0);
+        } else if (opcode == Opcode.RETURN) {
+          out = ALL_TEMPS;
+        }
+        liveAfter[i] = out;
+
+        int in = out;
+        if (opcode == Opcode.CALL || opcode == Opcode.RETURN) {
+          in = ALL_TEMPS;
+        } else if (opcode.commandType() == CommandType.C_PUSH && VMProgram.segment(command) == Segment.TEMP) {
+          in = out | 1 << VMProgram.index(command);
+        } else if (opcode.commandType() == CommandType.C_POP && VMProgram.segment(command) == Segment.TEMP) {
+          in = out & ~(1 << VMProgram.index(command));
+        }
+        if (in != liveIn[i - start]) {
+          liveIn[i - start] = in;
+          changed = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Replaces the call at position site by the body of its function if it can be inlined using the temp slots in deadTemps.
+   */
+  private boolean inlineCall(VMProgram result, int site, int file, int deadTemps) {
+    int f = callGraph.functionOf(VMProgram.nameId(program.get(site)));
+    if (f == -1 || !inlinable[f]) {
+      return false;
+    }
+
+    int nArgs = program.count(site);
+    int nVars = program.count(callGraph.start(f));
+    int saved0 = nArgs + nVars;
+    int saved1 = saved0 + (writesPointer0[f] ? 1 : 0);
+    int tempUsed = saved1 + (writesPointer1[f] ? 1 : 0);
+    if (tempUsed > Integer.bitCount(deadTemps) || nArgs < argumentsRead[f]
+        || (usesStatic[f] && callGraph.file(f) != file)) {
+      return false;
+    }
+
+    // frame slot j is the j-th dead temp slot
+    int[] slots = new int[tempUsed];
+    for (int j = 0, slot = 0; j < tempUsed; slot++) {
+      if ((deadTemps & 1 << slot) != 0) {
+        slots[j++] = slot;
+      }
+    }
+
+    for (int arg = nArgs - 1; arg >= 0; arg--) {
+      result.add(VMProgram.encode(Opcode.POP, Segment.TEMP, slots[arg]));
+    }
+    for (int local = 0; local < nVars; local++) {
+      result.add(VMProgram.encode(Opcode.PUSH, Segment.CONSTANT, 0));
+      result.add(VMProgram.encode(Opcode.POP, Segment.TEMP, slots[nArgs + local]));
+    }
+    if (writesPointer0[f]) {
+      result.add(VMProgram.encode(Opcode.PUSH, Segment.POINTER, 0));
+      result.add(VMProgram.encode(Opcode.POP, Segment.TEMP, slots[saved0]));
+    }
+    if (writesPointer1[f]) {
+      result.add(VMProgram.encode(Opcode.PUSH, Segment.POINTER, 1));
+      result.add(VMProgram.encode(Opcode.POP, Segment.TEMP, slots[saved1]));
+    }
+
+    for (int i = callGraph.start(f) + 1; i < callGraph.end(f) - 1; i++) {
+      int command = program.get(i);
+      Opcode opcode = VMProgram.opcode(command);
+      if (opcode.commandType() == CommandType.C_PUSH || opcode.commandType() == CommandType.C_POP) {
+        Segment segment = VMProgram.segment(command);
+        if (segment == Segment.ARGUMENT) {
+          command = VMProgram.encode(opcode, Segment.TEMP, slots[VMProgram.index(command)]);
+        } else if (segment == Segment.LOCAL) {
+          command = VMProgram.encode(opcode, Segment.TEMP, slots[nArgs + VMProgram.index(command)]);
+        }
+      }
+      result.add(command);
+    }
+
+    if (writesPointer0[f]) {
+      result.add(VMProgram.encode(Opcode.PUSH, Segment.TEMP, slots[saved0]));
+      result.add(VMProgram.encode(Opcode.POP, Segment.POINTER, 0));
+    }
+    if (writesPointer1[f]) {
+      result.add(VMProgram.encode(Opcode.PUSH, Segment.TEMP, slots[saved1]));
+      result.add(VMProgram.encode(Opcode.POP, Segment.POINTER, 1));
+    }
+
+    inlinedSites.merge(program.name(VMProgram.nameId(program.get(site))), 1, Integer::sum);
+    return true;
+  }
+
+  /**
+   * Lists the functions that were inlined with their number of call sites.
+   */
+  public String report() {
+    int sites = 0;
+    StringBuilder rows = new StringBuilder();
+    for (Map.Entry<String, Integer> entry : inlinedSites.entrySet()) {
+      sites += entry.getValue();
+      rows.append(String.format("  %-40s %5d sites%n", entry.getKey(), entry.getValue()));
+    }
+    return String.format("Inlining: %d call sites of %d functions (threshold %d commands)%n",
+        sites, inlinedSites.size(), threshold) + rows;
+  }
+}
@@ -0,0 +1,65 @@
+/**
+ * Every command of the VM language, together with the CommandType it belongs to.
+ */
+public enum Opcode {
+  PUSH("push", CommandType.C_PUSH),
+  POP("pop", CommandType.C_POP),
+  ADD("add", CommandType.C_ARITHMETIC),
+  SUB("sub", CommandType.C_ARITHMETIC),
+  NEG("neg", CommandType.C_ARITHMETIC),
+  EQ("eq", CommandType.C_ARITHMETIC),
+  GT("gt", CommandType.C_ARITHMETIC),
+  LT("lt", CommandType.C_ARITHMETIC),
+  AND("and", CommandType.C_ARITHMETIC),
+  OR("or", CommandType.C_ARITHMETIC),
+  NOT("not", CommandType.C_ARITHMETIC),
+  LABEL("label", CommandType.C_LABEL),
+  GOTO("goto", CommandType.C_GOTO),
+  IF_GOTO("if-goto", CommandType.C_IF),
+  FUNCTION("function", CommandType.C_FUNCTION),
+  CALL("call", CommandType.C_CALL),
+  RETURN("return", CommandType.C_RETURN),
+  ;
+
+  private static final Opcode[] VALUES = values();
+
+  private final String mnemonic;
+  private final CommandType commandType;
+
+  Opcode(String mnemonic, CommandType commandType) {
+    this.mnemonic = mnemonic;
+    this.commandType = commandType;
+  }
+
+  public String mnemonic() {
+    return mnemonic;
+  }
+
+  public CommandType commandType() {
+    return commandType;
+  }
+
+  /**
+   * Returns the opcode spelled by the first length chars of word, or null if there is none.
+   */
+  public static Opcode lookup(char[] word, int length) {
+    for (Opcode opcode : VALUES) {
+      if (matches(opcode.mnemonic, word, length)) {
+        return opcode;
+      }
+    }
+    return null;
+  }
+
+  static boolean matches(String mnemonic, char[] word, int length) {
+    if (mnemonic.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (mnemonic.charAt(i) != word[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
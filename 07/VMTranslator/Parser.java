@@ -1,75 +1,240 @@
-import java.util.Scanner;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
+/**
+ * Reads a .vm source and breaks it into commands.
+ * Each line is scanned once, straight from the byte buffer, into reusable fields
+ * (opcode, segment, index and a name buffer), so advancing allocates nothing.
+ * Comments and white space are skipped.
+ */
 public class Parser {
-  private Scanner scanner;
-  private String currentCommand;
+  private final ByteBuffer buffer;
+  private char[] word = new char[64];
+  private int wordLength;
+  private char[] name = new char[64];
+  private int nameLength;
+  private int lineNumber = 1;
 
-  public Parser(Scanner scanner) {
-    this.scanner = scanner;
+  private Opcode opcode;
+  private Segment segment;
+  private int index;
+
+  public Parser(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  /**
+   * Maps the whole file into memory and gets ready to parse it.
+   * @param file
+   */
+  public Parser(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
   }
 
   public boolean hasMoreCommands() {
-    return scanner.hasNextLine();
+    skipBlankAndComments();
+    return buffer.hasRemaining();
   }
 
+  /**
+   * Reads the next command from the input and makes it the current command.
+   * This method should only be called if hasMoreCommands() is true.
+   */
   public void advance() {
-    if (hasMoreCommands()) {
-      currentCommand = scanner.nextLine();
+    if (!hasMoreCommands()) {
+      throw new IllegalStateException("No more commands");
+    }
 
-      if (isCommentOrEmptyLine(currentCommand)) {
-        advance();
-      }
-    } 
+    readWord();
+    opcode = Opcode.lookup(word, wordLength);
+    if (opcode == null) {
+      error("Unknown command");
+    }
+    segment = null;
+    index = 0;
+    nameLength = 0;
+
+    switch (opcode.commandType()) {
+      case C_PUSH:
+      case C_POP:
+        readWord();
+        segment = Segment.lookup(word, wordLength);
+        if (segment == null) {
+          error("Unknown segment");
+        }
+        index = readInt();
+        break;
+      case C_LABEL:
+      case C_GOTO:
+      case C_IF:
+        readName();
+        break;
+      case C_FUNCTION:
+      case C_CALL:
+        readName();
+        index = readInt();
+        break;
+      default:
+        break;
+    }
+
+    skipToEndOfLine();
   }
 
   public CommandType commandType() {
-    String command = currentCommand.split(" ")[0];
-      switch (command) {
-        case "push":
-          return CommandType.C_PUSH;
-        case "pop":
-          return CommandType.C_POP;
-        default:
-          return CommandType.C_ARITHMETIC;
-      }
+    return opcode.commandType();
   }
 
+  public Opcode opcode() {
+    return opcode;
+  }
+
+  public Segment segment() {
+    return segment;
+  }
+
+  /**
+   * Returns the first argument of the current command.
+   * For C_ARITHMETIC the command itself is returned, for C_RETURN there is no argument.
+   * Only labels and function names are turned into new Strings.
+   */
   public String arg1() {
-    if (commandType() == CommandType.C_RETURN) {
-      return null;
-    }
-    if (commandType() == CommandType.C_ARITHMETIC) {
-      return currentCommand;
+    switch (opcode.commandType()) {
+      case C_RETURN:
+        return null;
+      case C_ARITHMETIC:
+        return opcode.mnemonic();
+      case C_PUSH:
+      case C_POP:
+        return segment.mnemonic();
+      default:
+        return new String(name, 0, nameLength);
     }
-    return currentCommand.split(" ")[1];
   }
 
+  /**
+   * Returns the second argument of the current command (index, nVars or nArgs), 0 if it has none.
+   */
   public int arg2() {
-    if (commandHasSecondArg(commandType())) {
-      return Integer.valueOf(currentCommand.split(" ")[2]);
+    return index;
+  }
+
+  /**
+   * The label or function name of the current command is kept in nameBuffer()[0..nameLength()).
+   */
+  public char[] nameBuffer() {
+    return name;
+  }
+
+  public int nameLength() {
+    return nameLength;
+  }
+
+  public int lineNumber() {
+    return lineNumber;
+  }
+
+  private void skipBlankAndComments() {
+    while (buffer.hasRemaining()) {
+      int position = buffer.position();
+      byte b = buffer.get(position);
+
+      if (b == '\n') {
+        lineNumber++;
+        buffer.position(position + 1);
+      } else if (isSpace(b)) {
+        buffer.position(position + 1);
+      } else if (isCommentStart(position)) {
+        skipToEndOfLine();
+      } else {
+        return;
+      }
     }
-    return 0;
   }
 
-  public Boolean isCommentOrEmptyLine(String line) {
-    if (line.length() == 0) {
-      return true;
-    } else if (line.substring(0, 2).equals("//")) {
-      return true;
-    } else {
-      return false;
+  private void skipSpaces() {
+    while (buffer.hasRemaining() && isSpace(buffer.get(buffer.position()))) {
+      buffer.position(buffer.position() + 1);
     }
   }
 
-  public Boolean commandHasSecondArg(CommandType cmd) {
-    switch(cmd) {
-      case C_PUSH:
-      case C_POP:
-      case C_FUNCTION:
-      case C_CALL:
-        return true;
-      default:
-        return false;
+  /**
+   * Skips the rest of the current line, which may only hold white space or a comment.
+   */
+  private void skipToEndOfLine() {
+    skipSpaces();
+    if (buffer.hasRemaining() && !isCommentStart(buffer.position()) && buffer.get(buffer.position()) != '\n') {
+      error("Unexpected trailing input");
     }
+    while (buffer.hasRemaining() && buffer.get(buffer.position()) != '\n') {
+      buffer.position(buffer.position() + 1);
+    }
+  }
+
+  private void readWord() {
+    skipSpaces();
+    wordLength = 0;
+    while (buffer.hasRemaining()) {
+      byte b = buffer.get(buffer.position());
+      if (isSpace(b) || b == '\n' || isCommentStart(buffer.position())) {
+        break;
+      }
+      if (wordLength == word.length) {
+        word = grow(word);
+      }
+      word[wordLength++] = (char) (b & 0xFF);
+      buffer.position(buffer.position() + 1);
+    }
+    if (wordLength == 0) {
+      error("Missing argument");
+    }
+  }
+
+  private void readName() {
+    readWord();
+    if (name.length < word.length) {
+      name = new char[word.length];
+    }
+    System.arraycopy(word, 0, name, 0, wordLength);
+    nameLength = wordLength;
+  }
+
+  private int readInt() {
+    readWord();
+    int value = 0;
+    for (int i = 0; i < wordLength; i++) {
+      char c = word[i];
+      if (c < '0' || c > '9') {
+        error("Expected a non-negative integer");
+      }
+      value = value * 10 + (c - '0');
+      if (value > 32767) {
+        error("Integer out of range");
+      }
+    }
+    return value;
+  }
+
+  private boolean isCommentStart(int position) {
+    return buffer.get(position) == '/' && position + 1 < buffer.limit() && buffer.get(position + 1) == '/';
+  }
+
+  private static boolean isSpace(byte b) {
+    return b == ' ' || b == '\t' || b == '\r';
+  }
+
+  private static char[] grow(char[] chars) {
+    char[] bigger = new char[chars.length * 2];
+    System.arraycopy(chars, 0, bigger, 0, chars.length);
+    return bigger;
+  }
+
+  private void error(String message) {
+    throw new IllegalArgumentException(message + " at line " + lineNumber + ": " + new String(word, 0, wordLength));
   }
 }
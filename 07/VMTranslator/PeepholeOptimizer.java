@@ -0,0 +1,228 @@
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rewrites the Hack assembly emitted by the CodeWriter through a small sliding window before it reaches the output.
+ *
+ * Comments are carried along untouched and ignored by the rules. A label ends the window,
+ * since a jump may land on it with a different machine state.
+ * The rules, each one applied to the tail of the window until none matches:
+ *  1. @X, (C-instructions not writing A), @X      drop the second @X
+ *  2. M=M+1, M=M-1  (or M=M-1, M=M+1)              drop both
+ *  3. M=D, D=M                                     drop D=M
+ *  4. M=M-1, A=M                                   AM=M-1 (likewise M=M+1, and D=M giving MD=M+1 or MD=M-1)
+ *  5. @SP, A=M|AM=M+1|AM=M-1, (C-instructions not writing A), @SP, A=M|A=M-1
+ *                                                  A already holds RAM[SP]: drop @SP, A=M-1 becomes A=A-1
+ *  6. @SP, AM=M-1, X, @SP, M=M+1                   @SP, A=M-1, X  (X does not write A)
+ *  7. @0, A=D+A                                    A=D
+ *  8. A=X, D=A                                     AD=X  (just A=D when X is D)
+ *  9. A=X, @Y                                      @Y  (and AD=X, @Y becomes D=X, @Y)
+ */
+public class PeepholeOptimizer {
+  private static final int WINDOW = 16;
+
+  private final PrintWriter printWriter;
+  private final ArrayList<String> lines = new ArrayList<String>();
+  private int pendingInstructions;
+
+  private final Map<String, Integer> saved = new LinkedHashMap<String, Integer>();
+  private String unit = "";
+
+  public PeepholeOptimizer(PrintWriter printWriter) {
+    this.printWriter = printWriter;
+  }
+
+  /**
+   * Attributes the instructions saved from now on to the given unit (usually a file name).
+   */
+  public void beginUnit(String unitName) {
+    unit = unitName;
+  }
+
+  /**
+   * Returns the number of instructions saved per unit, in the order the units were begun.
+   */
+  public Map<String, Integer> savedPerUnit() {
+    return saved;
+  }
+
+  public void add(String line) {
+    if (isLabel(line)) {
+      flush();
+      printWriter.println(line);
+      return;
+    }
+
+    lines.add(line);
+
+    if (isComment(line)) {
+      return;
+    }
+
+    pendingInstructions++;
+    while (applyRules()) {
+      // keep rewriting the tail
+    }
+
+    while (pendingInstructions > WINDOW) {
+      String first = lines.remove(0);
+      if (!isComment(first)) {
+        pendingInstructions--;
+      }
+      printWriter.println(first);
+    }
+  }
+
+  public void flush() {
+    for (String line : lines) {
+      printWriter.println(line);
+    }
+    lines.clear();
+    pendingInstructions = 0;
+  }
+
+  private boolean applyRules() {
+    int[] t = tail(2);
+    if (t == null) {
+      return false;
+    }
+    String previous = lines.get(t[0]);
+    String last = lines.get(t[1]);
+
+    // 1
+    if (isAInstruction(last)) {
+      int[] all = tail(pendingInstructions);
+      for (int i = all.length - 2; i >= 0; i--) {
+        String line = lines.get(all[i]);
+        if (isAInstruction(line)) {
+          if (line.equals(last)) {
+            return replace(new int[] { t[1] });
+          }
+          break;
+        }
+        if (writesA(line)) {
+          break;
+        }
+      }
+    }
+
+    // 2
+    if ((previous.equals("M=M+1") && last.equals("M=M-1")) || (previous.equals("M=M-1") && last.equals("M=M+1"))) {
+      return replace(t);
+    }
+
+    // 3
+    if (previous.equals("M=D") && last.equals("D=M")) {
+      return replace(new int[] { t[1] });
+    }
+
+    // 4
+    if ((previous.equals("M=M-1") || previous.equals("M=M+1")) && (last.equals("A=M") || last.equals("D=M"))) {
+      return replace(t, (last.equals("A=M") ? "AM=" : "MD=") + previous.substring(2));
+    }
+
+    // 5
+    if (previous.equals("@SP") && (last.equals("A=M") || last.equals("A=M-1"))) {
+      int[] all = tail(pendingInstructions);
+      for (int i = all.length - 3; i >= 1; i--) {
+        String line = lines.get(all[i]);
+        if (line.equals("A=M") || line.equals("AM=M-1") || line.equals("AM=M+1")) {
+          if (lines.get(all[i - 1]).equals("@SP")) {
+            return last.equals("A=M") ? replace(t) : replace(t, "A=A-1");
+          }
+          break;
+        }
+        if (isAInstruction(line) || writesA(line)) {
+          break;
+        }
+      }
+    }
+
+    // 6
+    int[] five = tail(5);
+    if (five != null && last.equals("M=M+1") && previous.equals("@SP")
+        && lines.get(five[0]).equals("@SP") && lines.get(five[1]).equals("AM=M-1")) {
+      String x = lines.get(five[2]);
+      if (!isAInstruction(x) && !writesA(x) && !isJump(x)) {
+        return replace(five, "@SP", "A=M-1", x);
+      }
+    }
+
+    // 7
+    if (previous.equals("@0") && last.equals("A=D+A")) {
+      return replace(t, "A=D");
+    }
+
+    // 8
+    if (previous.startsWith("A=") && !isJump(previous) && last.equals("D=A")) {
+      return previous.equals("A=D") ? replace(new int[] { t[1] }) : replace(t, "AD=" + previous.substring(2));
+    }
+
+    // 9
+    if (isAInstruction(last) && previous.startsWith("A=") && !isJump(previous)) {
+      return replace(new int[] { t[0] });
+    }
+    if (isAInstruction(last) && previous.startsWith("AD=") && !isJump(previous)) {
+      lines.set(t[0], previous.substring(1));
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Returns the positions in lines of the last n instructions, or null if fewer are pending.
+   */
+  private int[] tail(int n) {
+    if (n > pendingInstructions || n == 0) {
+      return null;
+    }
+    int[] result = new int[n];
+    for (int i = lines.size() - 1; n > 0; i--) {
+      if (!isComment(lines.get(i))) {
+        result[--n] = i;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Removes the instructions at the given positions and puts the replacement where the first one was.
+   */
+  private boolean replace(int[] positions, String... replacement) {
+    for (int i = positions.length - 1; i >= 0; i--) {
+      lines.remove(positions[i]);
+    }
+    for (int i = 0; i < replacement.length; i++) {
+      lines.add(positions[0] + i, replacement[i]);
+    }
+
+    int delta = positions.length - replacement.length;
+    pendingInstructions -= delta;
+    saved.merge(unit, delta, Integer::sum);
+    return true;
+  }
+
+  private static boolean isComment(String line) {
+    return line.startsWith("//");
+  }
+
+  private static boolean isLabel(String line) {
+    return line.startsWith("(");
+  }
+
+  private static boolean isAInstruction(String line) {
+    return line.startsWith("@");
+  }
+
+  private static boolean isJump(String line) {
+    return line.indexOf(';') != -1;
+  }
+
+  private static boolean writesA(String line) {
+    int equals = line.indexOf('=');
+    return equals != -1 && line.substring(0, equals).indexOf('A') != -1;
+  }
+}
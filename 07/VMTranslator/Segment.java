@@ -0,0 +1,45 @@
+/**
+ * The virtual memory segments a push or pop command can address.
+ * Segments that live behind a base pointer know the name of that pointer.
+ */
+public enum Segment {
+  CONSTANT("constant", null),
+  LOCAL("local", "LCL"),
+  ARGUMENT("argument", "ARG"),
+  THIS("this", "THIS"),
+  THAT("that", "THAT"),
+  POINTER("pointer", null),
+  TEMP("temp", null),
+  STATIC("static", null),
+  ;
+
+  private static final Segment[] VALUES = values();
+
+  private final String mnemonic;
+  private final String basePointer;
+
+  Segment(String mnemonic, String basePointer) {
+    this.mnemonic = mnemonic;
+    this.basePointer = basePointer;
+  }
+
+  public String mnemonic() {
+    return mnemonic;
+  }
+
+  public String basePointer() {
+    return basePointer;
+  }
+
+  /**
+   * Returns the segment spelled by the first length chars of word, or null if there is none.
+   */
+  public static Segment lookup(char[] word, int length) {
+    for (Segment segment : VALUES) {
+      if (Opcode.matches(segment.mnemonic, word, length)) {
+        return segment;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,167 @@
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A String -> int map with open addressing: keys, their hashes and values in parallel arrays, linear probing,
+ * kept at most half full. Keys can be looked up by a range of a char[] without making a String, so the
+ * assembler only allocates a symbol the first time it sees it. Hashes are String.hashCode, so lookups by
+ * String use the hash the String caches.
+ *
+ * Values are not negative; MISSING stands for no value. Reads may run on many threads once the table is
+ * filled; writes may not.
+ */
+public class SymbolTable {
+  public static final int MISSING = -1;
+
+  private String[] keys;
+  private int[] hashes;
+  private int[] values;
+  private int size;
+
+  public SymbolTable(int capacity) {
+    int slots = Integer.highestOneBit(Math.max(capacity, 4) * 2 - 1) * 2;
+    keys = new String[slots];
+    hashes = new int[slots];
+    values = new int[slots];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the value of a key, MISSING if it is not in the table.
+   */
+  public int get(String key) {
+    int hash = key.hashCode();
+    int mask = keys.length - 1;
+    for (int slot = spread(hash) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+      if (hashes[slot] == hash && keys[slot].equals(key)) {
+        return values[slot];
+      }
+    }
+    return MISSING;
+  }
+
+  /**
+   * Returns the value of the key made of chars[offset .. offset + length - 1], MISSING if it is not in the table.
+   */
+  public int get(char[] chars, int offset, int length) {
+    return find(chars, offset, length, hash(chars, offset, length));
+  }
+
+  /**
+   * Adds a key; returns the value it already had, or MISSING if it is new.
+   */
+  public int putIfAbsent(String key, int value) {
+    int hash = key.hashCode();
+    int mask = keys.length - 1;
+    int slot = spread(hash) & mask;
+    for (; keys[slot] != null; slot = (slot + 1) & mask) {
+      if (hashes[slot] == hash && keys[slot].equals(key)) {
+        return values[slot];
+      }
+    }
+    insert(slot, key, hash, value);
+    return MISSING;
+  }
+
+  /**
+   * Adds the key made of chars[offset .. offset + length - 1]; returns the value it already had, or MISSING
+   * if it is new. A String is made only for a new key.
+   */
+  public int putIfAbsent(char[] chars, int offset, int length, int value) {
+    int hash = hash(chars, offset, length);
+    int existing = find(chars, offset, length, hash);
+    if (existing != MISSING) {
+      return existing;
+    }
+    int mask = keys.length - 1;
+    int slot = spread(hash) & mask;
+    while (keys[slot] != null) {
+      slot = (slot + 1) & mask;
+    }
+    insert(slot, new String(chars, offset, length), hash, value);
+    return MISSING;
+  }
+
+  /**
+   * Returns the contents as a read-only Map.
+   */
+  public Map<String, Integer> toMap() {
+    Map<String, Integer> map = new HashMap<String, Integer>();
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (keys[slot] != null) {
+        map.put(keys[slot], values[slot]);
+      }
+    }
+    return Collections.unmodifiableMap(map);
+  }
+
+  private int find(char[] chars, int offset, int length, int hash) {
+    int mask = keys.length - 1;
+    for (int slot = spread(hash) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+      if (hashes[slot] == hash && matches(keys[slot], chars, offset, length)) {
+        return values[slot];
+      }
+    }
+    return MISSING;
+  }
+
+  private void insert(int slot, String key, int hash, int value) {
+    keys[slot] = key;
+    hashes[slot] = hash;
+    values[slot] = value;
+    if (++size * 2 > keys.length) {
+      grow();
+    }
+  }
+
+  private void grow() {
+    String[] oldKeys = keys;
+    int[] oldHashes = hashes;
+    int[] oldValues = values;
+    keys = new String[oldKeys.length * 2];
+    hashes = new int[keys.length];
+    values = new int[keys.length];
+    int mask = keys.length - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != null) {
+        int slot = spread(oldHashes[i]) & mask;
+        while (keys[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = oldKeys[i];
+        hashes[slot] = oldHashes[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  private static boolean matches(String key, char[] chars, int offset, int length) {
+    if (key.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (key.charAt(i) != chars[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int hash(char[] chars, int offset, int length) {
+    int hash = 0;
+    for (int i = offset; i < offset + length; i++) {
+      hash = 31 * hash + chars[i];
+    }
+    return hash;
+  }
+
+  // String.hashCode of similar short keys (R0..R15, f$$ret.1..) differs only in the low bits
+  private static int spread(int hash) {
+    hash = (hash ^ (hash >>> 16)) * 0x9E3779B1;
+    return hash ^ (hash >>> 16);
+  }
+}
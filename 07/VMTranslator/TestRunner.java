@@ -0,0 +1,89 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs every course test script (.tst) found under the given directories, concurrently on a fork-join pool,
+ * and prints one result line per script in path order, then a summary. Exits with status 1 if a test failed.
+ *
+ * Translator options (-O, --tos, --inline...) are used for the scripts that run translated .vm files,
+ * so a single pass checks a code generation mode against the course's compare files.
+ */
+public class TestRunner {
+
+  public static void main(String[] args) throws Exception {
+    List<String> flags = new ArrayList<String>();
+    List<File> roots = new ArrayList<File>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-j") && i + 1 < args.length) {
+        flags.add(args[i]);
+        flags.add(args[++i]);
+      } else if (args[i].startsWith("-")) {
+        flags.add(args[i]);
+      } else {
+        roots.add(new File(args[i]));
+      }
+    }
+    flags.add(".");
+
+    TranslatorOptions options = TranslatorOptions.parse(flags.toArray(new String[0]));
+    if (options == null || options.cacheDirectory != null || options.costReport != null) {
+      System.out.println("use: java TestRunner [-O] [--tos] [--shared-compare] [--dce] [--inline[=size]] [-j threads] [directory...]");
+      return;
+    }
+    if (roots.isEmpty()) {
+      roots.add(new File("."));
+    }
+
+    List<File> scripts = new ArrayList<File>();
+    for (File root : roots) {
+      findScripts(root, scripts);
+    }
+
+    // the tests run in parallel, each translation on its own thread
+    int threads = options.threads;
+    options.threads = 1;
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    long start = System.nanoTime();
+
+    List<ForkJoinTask<String>> results = new ArrayList<ForkJoinTask<String>>();
+    for (File script : scripts) {
+      results.add(pool.submit(new Callable<String>() {
+        public String call() {
+          return new TestScript(script, options).run();
+        }
+      }));
+    }
+
+    int[] counts = new int[4];
+    List<String> statuses = Arrays.asList(TestScript.PASS, TestScript.FAIL, TestScript.SKIP, TestScript.ERROR);
+    for (ForkJoinTask<String> result : results) {
+      String line = result.join();
+      System.out.println(line);
+      counts[statuses.indexOf(line.substring(0, line.indexOf(' ')))]++;
+    }
+    pool.shutdown();
+
+    System.out.println(String.format("%d scripts: %d passed, %d failed, %d skipped, %d errors in %.2f s", scripts.size(),
+        counts[0], counts[1], counts[2], counts[3], (System.nanoTime() - start) / 1e9));
+    if (counts[1] + counts[3] > 0) {
+      System.exit(1);
+    }
+  }
+
+  private static void findScripts(File file, List<File> scripts) {
+    if (file.isDirectory()) {
+      File[] children = file.listFiles();
+      Arrays.sort(children);
+      for (File child : children) {
+        findScripts(child, scripts);
+      }
+    } else if (file.getName().endsWith(".tst")) {
+      scripts.add(file);
+    }
+  }
+}
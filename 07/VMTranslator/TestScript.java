@@ -0,0 +1,483 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One course test script (.tst) run headless: the CPU emulator's scripts drive a HackEmulator, the VM
+ * emulator's scripts (loading .vm files or a directory) a VMInterpreter, and every output line is compared
+ * with the next line of the compare file as soon as it is produced; the first difference fails the test.
+ *
+ * A CPU script loads X.asm, the output of the translator; when the script's directory has .vm files they are
+ * translated in memory with the runner's options instead, so the test checks the translator as it is now.
+ * Lines are compared ignoring spaces, as the column layout of the course's tools is not part of what they test.
+ * output-file is not written. Scripts for the hardware simulator (loading .hdl) are skipped.
+ */
+public class TestScript {
+  public static final String PASS = "PASS";
+  public static final String FAIL = "FAIL";
+  public static final String SKIP = "SKIP";
+  public static final String ERROR = "ERROR";
+
+  /**
+   * The machine a script drives.
+   */
+  private interface Target {
+    int get(String variable);
+
+    void set(String variable, int value);
+
+    /**
+     * Executes up to steps clock cycles or VM commands, or until the program halts.
+     */
+    void run(long steps);
+  }
+
+  /**
+   * A command of the script; repeat and while have a body.
+   */
+  private static class Command {
+    final List<String> words = new ArrayList<String>();
+    List<Command> body;
+  }
+
+  /**
+   * Thrown when an output line differs from the compare file.
+   */
+  private static class Mismatch extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Mismatch(String message) {
+      super(message);
+    }
+  }
+
+  private static class Skip extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Skip(String message) {
+      super(message);
+    }
+  }
+
+  private final File script;
+  private final File directory;
+  private final TranslatorOptions options;
+
+  private Target target;
+  private BufferedReader compare;
+  private final List<String[]> outputList = new ArrayList<String[]>();
+  private int lines;
+
+  public TestScript(File script, TranslatorOptions options) {
+    this.script = script;
+    this.directory = script.getAbsoluteFile().getParentFile();
+    this.options = options;
+  }
+
+  /**
+   * Runs the script; returns its status (PASS, FAIL, SKIP or ERROR) followed by the script's path and details.
+   */
+  public String run() {
+    try {
+      List<String> tokens = tokenize(new String(Files.readAllBytes(script.toPath()), StandardCharsets.UTF_8));
+      execute(parse(tokens, new int[1]));
+      if (compare != null && compare.readLine() != null) {
+        return FAIL + " " + script.getPath() + ": compare file has more lines than the " + lines + " output";
+      }
+      return PASS + " " + script.getPath() + " (" + lines + " lines)";
+    } catch (Mismatch e) {
+      return FAIL + " " + script.getPath() + ": " + e.getMessage();
+    } catch (Skip e) {
+      return SKIP + " " + script.getPath() + ": " + e.getMessage();
+    } catch (IOException | RuntimeException e) {
+      return ERROR + " " + script.getPath() + ": " + e;
+    } finally {
+      if (compare != null) {
+        try {
+          compare.close();
+        } catch (IOException e) {
+          // nothing was written
+        }
+      }
+    }
+  }
+
+  private static List<String> tokenize(String text) {
+    List<String> tokens = new ArrayList<String>();
+    StringBuilder word = new StringBuilder();
+    int i = 0;
+
+    while (i < text.length()) {
+      char c = text.charAt(i);
+      if (text.startsWith("//", i)) {
+        while (i < text.length() && text.charAt(i) != '\n') {
+          i++;
+        }
+        continue;
+      }
+      if (text.startsWith("/*", i)) {
+        int end = text.indexOf("*/", i + 2);
+        i = end == -1 ? text.length() : end + 2;
+        continue;
+      }
+
+      if (c == '"') {
+        int end = text.indexOf('"', i + 1);
+        end = end == -1 ? text.length() : end + 1;
+        word.append(text, i, end);
+        i = end;
+        continue;
+      }
+
+      if (Character.isWhitespace(c) || ",;!{}".indexOf(c) != -1) {
+        if (word.length() > 0) {
+          tokens.add(word.toString());
+          word.setLength(0);
+        }
+        if (!Character.isWhitespace(c)) {
+          tokens.add(String.valueOf(c));
+        }
+      } else {
+        word.append(c);
+      }
+      i++;
+    }
+    if (word.length() > 0) {
+      tokens.add(word.toString());
+    }
+    return tokens;
+  }
+
+  /**
+   * Parses commands from tokens[position[0]] up to a closing brace or the end.
+   */
+  private static List<Command> parse(List<String> tokens, int[] position) {
+    List<Command> commands = new ArrayList<Command>();
+    Command command = new Command();
+
+    while (position[0] < tokens.size()) {
+      String token = tokens.get(position[0]++);
+      if (token.equals("}")) {
+        break;
+      }
+      if (token.equals(",") || token.equals(";") || token.equals("!")) {
+        if (!command.words.isEmpty()) {
+          commands.add(command);
+        }
+        command = new Command();
+      } else if (token.equals("{")) {
+        command.body = parse(tokens, position);
+        commands.add(command);
+        command = new Command();
+      } else {
+        command.words.add(token);
+      }
+    }
+    if (!command.words.isEmpty()) {
+      commands.add(command);
+    }
+    return commands;
+  }
+
+  private void execute(List<Command> commands) throws IOException {
+    for (Command command : commands) {
+      execute(command);
+    }
+  }
+
+  private void execute(Command command) throws IOException {
+    List<String> words = command.words;
+    String name = words.get(0);
+
+    if (command.body != null) {
+      if (name.equals("repeat")) {
+        long count = words.size() > 1 ? Long.parseLong(words.get(1)) : Long.MAX_VALUE;
+        if (command.body.size() == 1 && isStep(command.body.get(0))) {
+          target().run(count);
+          return;
+        }
+        for (long i = 0; i < count; i++) {
+          execute(command.body);
+        }
+      } else if (name.equals("while")) {
+        while (condition(words)) {
+          execute(command.body);
+        }
+      } else {
+        throw new IllegalArgumentException("Unknown block: " + name);
+      }
+      return;
+    }
+
+    switch (name) {
+      case "load":
+        load(words.size() > 1 ? words.get(1) : null);
+        break;
+      case "compare-to":
+        compare = Files.newBufferedReader(new File(directory, words.get(1)).toPath(), StandardCharsets.UTF_8);
+        break;
+      case "output-list":
+        outputList.clear();
+        for (int i = 1; i < words.size(); i++) {
+          outputList.add(column(words.get(i)));
+        }
+        output(true);
+        break;
+      case "output":
+        output(false);
+        break;
+      case "set":
+        target().set(words.get(1), value(words.get(2)));
+        break;
+      case "ticktock":
+      case "tock":
+      case "vmstep":
+        target().run(1);
+        break;
+      case "tick":
+      case "output-file":
+      case "echo":
+      case "clear-echo":
+      case "breakpoint":
+      case "clear-breakpoints":
+        break;
+      case "eval":
+        throw new Skip("needs the hardware simulator");
+      default:
+        throw new IllegalArgumentException("Unknown command: " + name);
+    }
+  }
+
+  private static boolean isStep(Command command) {
+    String name = command.words.get(0);
+    return command.body == null && (name.equals("ticktock") || name.equals("vmstep"));
+  }
+
+  private boolean condition(List<String> words) {
+    int left = target().get(words.get(1));
+    int right = value(words.get(3));
+    switch (words.get(2)) {
+      case "=": return left == right;
+      case "<>": return left != right;
+      case "<": return left < right;
+      case ">": return left > right;
+      case "<=": return left <= right;
+      case ">=": return left >= right;
+      default: throw new IllegalArgumentException("Unknown comparison: " + words.get(2));
+    }
+  }
+
+  private Target target() {
+    if (target == null) {
+      throw new IllegalStateException("No program loaded");
+    }
+    return target;
+  }
+
+  private void load(String name) throws IOException {
+    if (name != null && name.endsWith(".hdl")) {
+      throw new Skip("needs the hardware simulator");
+    }
+
+    Map<String, String> sources = new LinkedHashMap<String, String>();
+    for (File file : VMTranslator.sourceFiles(directory)) {
+      sources.put(VMTranslator.withoutVmExtension(file.getName()), new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+    }
+
+    if (name == null || name.endsWith(".vm")) {
+      File path = name == null ? directory : new File(directory, name);
+      target = new VMTarget(new VMInterpreter(VMInterpreter.load(path)));
+    } else if (name.endsWith(".asm") && !sources.isEmpty()) {
+      target = new CPUTarget(new HackEmulator(VMTranslator.assemble(sources, options, null)));
+    } else {
+      target = new CPUTarget(new HackEmulator(HackEmulator.load(new File(directory, name))));
+    }
+  }
+
+  /**
+   * Splits name%Fl.w.r into name, format letter, left padding, width and right padding.
+   */
+  private static String[] column(String spec) {
+    int percent = spec.indexOf('%');
+    if (percent == -1) {
+      return new String[] { spec, "D", "1", "6", "1" };
+    }
+    String[] sizes = spec.substring(percent + 2).split("\\.");
+    return new String[] { spec.substring(0, percent), spec.substring(percent + 1, percent + 2), sizes[0], sizes[1],
+        sizes[2] };
+  }
+
+  private void output(boolean header) throws IOException {
+    StringBuilder line = new StringBuilder("|");
+    for (String[] column : outputList) {
+      int left = Integer.parseInt(column[2]);
+      int width = Integer.parseInt(column[3]);
+      int right = Integer.parseInt(column[4]);
+
+      String text;
+      if (header) {
+        width += left + right;
+        left = 0;
+        right = 0;
+        text = column[0].length() > width ? column[0].substring(0, width) : column[0];
+        int before = (width - text.length()) / 2;
+        text = spaces(before) + text + spaces(width - text.length() - before);
+      } else {
+        text = format(target().get(column[0]), column[1].charAt(0), width);
+      }
+      line.append(spaces(left)).append(text).append(spaces(right)).append('|');
+    }
+    lines++;
+
+    if (compare != null) {
+      String expected = compare.readLine();
+      if (expected == null) {
+        throw new Mismatch("line " + lines + ": compare file ends, output " + line);
+      }
+      if (!expected.replace(" ", "").equals(line.toString().replace(" ", ""))) {
+        throw new Mismatch("line " + lines + ": expected " + expected.trim() + ", output " + line);
+      }
+    }
+  }
+
+  private static String format(int value, char format, int width) {
+    String text;
+    switch (format) {
+      case 'B':
+        text = Integer.toBinaryString(0x10000 | (value & 0xFFFF)).substring(1);
+        return text.substring(Math.max(0, text.length() - width));
+      case 'X':
+        text = Integer.toHexString(0x10000 | (value & 0xFFFF)).substring(1).toUpperCase();
+        return text.substring(Math.max(0, text.length() - width));
+      case 'S':
+        text = String.valueOf(value);
+        return text + spaces(width - text.length());
+      default:
+        text = String.valueOf((short) value);
+        return spaces(width - text.length()) + text;
+    }
+  }
+
+  private static String spaces(int count) {
+    StringBuilder spaces = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      spaces.append(' ');
+    }
+    return spaces.toString();
+  }
+
+  /**
+   * Parses a number: decimal, or %B, %X, %D followed by digits.
+   */
+  private static int value(String text) {
+    if (text.startsWith("%B")) {
+      return (short) Integer.parseInt(text.substring(2), 2);
+    }
+    if (text.startsWith("%X")) {
+      return (short) Integer.parseInt(text.substring(2), 16);
+    }
+    if (text.startsWith("%D")) {
+      return Integer.parseInt(text.substring(2));
+    }
+    return Integer.parseInt(text);
+  }
+
+  /**
+   * Returns i for a variable named prefix[i], -1 if the variable has another name.
+   */
+  private static int index(String variable, String prefix) {
+    if (!variable.startsWith(prefix + "[") || !variable.endsWith("]")) {
+      return -1;
+    }
+    return Integer.parseInt(variable.substring(prefix.length() + 1, variable.length() - 1));
+  }
+
+  private static class CPUTarget implements Target {
+    private final HackEmulator emulator;
+
+    CPUTarget(HackEmulator emulator) {
+      this.emulator = emulator;
+    }
+
+    public int get(String variable) {
+      switch (variable) {
+        case "PC": return emulator.pc();
+        case "A": return emulator.a();
+        case "D": return emulator.d();
+        default: return emulator.ram()[address(variable)];
+      }
+    }
+
+    public void set(String variable, int value) {
+      switch (variable) {
+        case "PC": emulator.setRegisters(value, emulator.a(), emulator.d()); break;
+        case "A": emulator.setRegisters(emulator.pc(), value, emulator.d()); break;
+        case "D": emulator.setRegisters(emulator.pc(), emulator.a(), value); break;
+        default: emulator.ram()[address(variable)] = (short) value; break;
+      }
+    }
+
+    public void run(long steps) {
+      emulator.run(steps);
+    }
+
+    private static int address(String variable) {
+      int address = index(variable, "RAM");
+      if (address == -1) {
+        throw new IllegalArgumentException("Unknown variable: " + variable);
+      }
+      return address;
+    }
+  }
+
+  private static class VMTarget implements Target {
+    private static final String[] POINTERS = { "sp", "local", "argument", "this", "that" };
+
+    private final VMInterpreter interpreter;
+
+    VMTarget(VMInterpreter interpreter) {
+      this.interpreter = interpreter;
+    }
+
+    public int get(String variable) {
+      return interpreter.memory()[address(variable)];
+    }
+
+    public void set(String variable, int value) {
+      interpreter.memory()[address(variable)] = value;
+    }
+
+    public void run(long steps) {
+      interpreter.run(steps);
+    }
+
+    private int address(String variable) {
+      int[] memory = interpreter.memory();
+      for (int pointer = 0; pointer < POINTERS.length; pointer++) {
+        if (variable.equals(POINTERS[pointer])) {
+          return pointer;
+        }
+        int index = index(variable, POINTERS[pointer]);
+        if (index != -1 && pointer > 0) {
+          return memory[pointer] + index;
+        }
+      }
+      if (index(variable, "RAM") != -1) {
+        return index(variable, "RAM");
+      }
+      if (index(variable, "temp") != -1) {
+        return 5 + index(variable, "temp");
+      }
+      if (index(variable, "pointer") != -1) {
+        return 3 + index(variable, "pointer");
+      }
+      throw new IllegalArgumentException("Unknown variable: " + variable);
+    }
+  }
+}
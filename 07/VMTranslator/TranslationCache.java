@@ -0,0 +1,126 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * On-disk cache of the assembly translated for each source file.
+ *
+ * A fragment is keyed by the SHA-256 of the translator version, the code generation options, the file name
+ * and the file's commands as they reach the CodeWriter (after inlining and dead function elimination),
+ * so a fragment is reused exactly when translating the file again would give the same text.
+ * Fragments are relocatable as they are: generated labels are namespaced by function or file name,
+ * and statics by file name.
+ *
+ * A fragment file starts with one header line naming the shared routines it jumps to and the
+ * instructions the peephole optimizer saved, followed by the assembly.
+ */
+public class TranslationCache {
+  private static final String VERSION = "VMTranslator 11";
+  private static final String HEADER = "// vmcache ";
+
+  /**
+   * The translation of one file.
+   */
+  public static class Fragment {
+    public final String assembly;
+    public final String routines;
+    // peephole savings, null if the optimizer was off or saved nothing
+    public final Integer saved;
+
+    public Fragment(String assembly, String routines, Integer saved) {
+      this.assembly = assembly;
+      this.routines = routines;
+      this.saved = saved;
+    }
+  }
+
+  private final File directory;
+
+  public TranslationCache(File directory) {
+    this.directory = directory;
+  }
+
+  public String key(VMProgram program, int file, TranslatorOptions options) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+
+    digest.update((VERSION + "\n" + options.peephole + " " + options.tosCaching + " " + options.sharedComparisons
+        + "\n" + program.fileName(file) + "\n").getBytes(StandardCharsets.UTF_8));
+
+    ByteBuffer buffer = ByteBuffer.allocate(4096);
+    for (int i = program.fileStart(file); i < program.fileEnd(file); i++) {
+      int command = program.get(i);
+      if (buffer.remaining() < 4) {
+        digest.update(buffer.array(), 0, buffer.position());
+        buffer.clear();
+      }
+      buffer.putInt(command);
+
+      switch (VMProgram.opcode(command).commandType()) {
+        case C_LABEL:
+        case C_GOTO:
+        case C_IF:
+        case C_FUNCTION:
+        case C_CALL:
+          digest.update(buffer.array(), 0, buffer.position());
+          buffer.clear();
+          digest.update(program.name(VMProgram.nameId(command)).getBytes(StandardCharsets.UTF_8));
+          digest.update((byte) 0);
+          break;
+        default:
+          break;
+      }
+    }
+    digest.update(buffer.array(), 0, buffer.position());
+
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Returns the cached fragment, null if there is none.
+   */
+  public Fragment load(String key) throws IOException {
+    File file = new File(directory, key + ".asm");
+    if (!file.isFile()) {
+      return null;
+    }
+
+    String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    int newline = text.indexOf('\n');
+    if (newline == -1 || !text.startsWith(HEADER)) {
+      return null;
+    }
+
+    String[] fields = text.substring(HEADER.length(), newline).split(";", -1);
+    if (fields.length != 2) {
+      return null;
+    }
+    Integer saved = fields[1].isEmpty() ? null : Integer.valueOf(fields[1]);
+    return new Fragment(text.substring(newline + 1), fields[0], saved);
+  }
+
+  /**
+   * Stores the fragment; it is written to a temporary file first so concurrent readers never see half of it.
+   */
+  public void store(String key, Fragment fragment) throws IOException {
+    Files.createDirectories(directory.toPath());
+    File temporary = File.createTempFile(key, ".tmp", directory);
+    String header = HEADER + fragment.routines + ";" + (fragment.saved == null ? "" : fragment.saved) + "\n";
+    Files.write(temporary.toPath(), (header + fragment.assembly).getBytes(StandardCharsets.UTF_8));
+    Files.move(temporary.toPath(), new File(directory, key + ".asm").toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+}
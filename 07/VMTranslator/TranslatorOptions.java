@@ -0,0 +1,80 @@
+/**
+ * Command line options of the VMTranslator.
+ */
+public class TranslatorOptions {
+  public static final String USAGE =
+      "use: java VMTranslator [-O] [--tos] [--shared-compare] [--compare-report] [--dce] [--inline[=size]] [--hack|--bin] [--cache[=directory]] [--cost-report=file.csv|file.json] [-j threads] [filename|directory]";
+
+  public boolean peephole = false;
+  public boolean tosCaching = false;
+  public boolean sharedComparisons = false;
+  public boolean comparisonReport = false;
+  public boolean deadFunctions = false;
+  public int inlineThreshold = 0;
+  // asm, or hack/bin to assemble the output in process
+  public String output = "asm";
+  // where translated files are cached, "" for .vmcache next to the sources, null for no cache
+  public String cacheDirectory = null;
+  // where the ROM cost report goes, null for none
+  public String costReport = null;
+  public int threads = Runtime.getRuntime().availableProcessors();
+  public String path = null;
+
+  /**
+   * Parses the arguments; returns null if they are not valid.
+   */
+  public static TranslatorOptions parse(String[] args) {
+    TranslatorOptions options = new TranslatorOptions();
+
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("-O")) {
+        options.peephole = true;
+      } else if (arg.equals("--tos")) {
+        options.tosCaching = true;
+      } else if (arg.equals("--shared-compare")) {
+        options.sharedComparisons = true;
+      } else if (arg.equals("--compare-report")) {
+        options.comparisonReport = true;
+      } else if (arg.equals("--dce")) {
+        options.deadFunctions = true;
+      } else if (arg.equals("--inline")) {
+        options.inlineThreshold = Inliner.DEFAULT_THRESHOLD;
+      } else if (arg.startsWith("--inline=")) {
+        options.inlineThreshold = Integer.parseInt(arg.substring("--inline=".length()));
+      } else if (arg.equals("--hack") || arg.equals("--bin")) {
+        options.output = arg.substring(2);
+      } else if (arg.equals("--cache")) {
+        options.cacheDirectory = "";
+      } else if (arg.startsWith("--cache=")) {
+        options.cacheDirectory = arg.substring("--cache=".length());
+      } else if (arg.startsWith("--cost-report=")) {
+        options.costReport = arg.substring("--cost-report=".length());
+      } else if (arg.equals("-j") && i + 1 < args.length) {
+        options.threads = Math.max(1, Integer.parseInt(args[++i]));
+      } else if (arg.startsWith("-") || options.path != null) {
+        return null;
+      } else {
+        options.path = arg;
+      }
+    }
+
+    return options.path == null ? null : options;
+  }
+
+  /**
+   * Turns on the code generation modes selected by these options.
+   */
+  public CodeWriter configure(CodeWriter codeWriter) {
+    if (peephole) {
+      codeWriter.enablePeephole();
+    }
+    if (tosCaching) {
+      codeWriter.enableTosCaching();
+    }
+    if (sharedComparisons) {
+      codeWriter.enableSharedComparisons();
+    }
+    return codeWriter;
+  }
+}
@@ -0,0 +1,469 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a VM program directly, without translating it to Hack.
+ *
+ * At load time every command is decoded into an instruction of three int arrays (operation, x, y, z):
+ * labels disappear, goto, if-goto and call hold the index of their target, static, temp and pointer
+ * become absolute addresses, and common sequences are fused into superinstructions:
+ *  push constant k, add|sub                   ADD_CONSTANT
+ *  push local|argument|this|that n,
+ *    push constant k, add|sub                 PUSH_SEGMENT_ADD_CONSTANT
+ *  eq|gt|lt [not], if-goto L                  IF_EQ, IF_GT, IF_LT, IF_NE, IF_LE, IF_GE
+ *  not, if-goto L                             IF_NOT
+ *  pop pointer 1, push that 0                 LOAD_THAT
+ * The run loop is one switch over the operation array, so fused commands cost one dispatch.
+ *
+ * Memory is laid out as on the Hack platform (SP, LCL, ARG, THIS, THAT, temp, statics from 16, stack from 256,
+ * screen and keyboard), 16-bit values kept in an int[], and call frames are the ones the translator builds,
+ * so programs that inspect memory see what they would see on Hack. Statics get consecutive addresses per file,
+ * which need not be the addresses the assembler would choose. While running, SP is held in a local and
+ * stored to RAM[0] at every call, return and at the end of the run.
+ * "label L, goto L", the end of the program and a return from Sys.init halt the run.
+ */
+public class VMInterpreter {
+  public static final int RAM_SIZE = 32768;
+
+  private static final int PUSH_CONSTANT = 0;
+  private static final int PUSH_SEGMENT = 1;
+  private static final int PUSH_ADDRESS = 2;
+  private static final int POP_SEGMENT = 3;
+  private static final int POP_ADDRESS = 4;
+  private static final int ADD = 5;
+  private static final int SUB = 6;
+  private static final int NEG = 7;
+  private static final int EQ = 8;
+  private static final int GT = 9;
+  private static final int LT = 10;
+  private static final int AND = 11;
+  private static final int OR = 12;
+  private static final int NOT = 13;
+  private static final int GOTO = 14;
+  private static final int IF_GOTO = 15;
+  private static final int CALL = 16;
+  private static final int FUNCTION = 17;
+  private static final int RETURN = 18;
+  private static final int HALT = 19;
+  private static final int ADD_CONSTANT = 20;
+  private static final int PUSH_SEGMENT_ADD_CONSTANT = 21;
+  private static final int IF_EQ = 22;
+  private static final int IF_GT = 23;
+  private static final int IF_LT = 24;
+  private static final int IF_NE = 25;
+  private static final int IF_LE = 26;
+  private static final int IF_GE = 27;
+  private static final int IF_NOT = 28;
+  private static final int LOAD_THAT = 29;
+
+  private static final int SP = 0;
+  private static final int LCL = 1;
+  private static final int ARG = 2;
+  private static final int THIS = 3;
+  private static final int THAT = 4;
+  private static final int TEMP = 5;
+  private static final int STATIC = 16;
+
+  private int[] operations = new int[256];
+  private int[] x = new int[256];
+  private int[] y = new int[256];
+  private int[] z = new int[256];
+  private int size;
+  private int commands;
+
+  private final List<String> functionNames = new ArrayList<String>();
+  private final List<Integer> functionStarts = new ArrayList<Integer>();
+
+  private final int[] memory = new int[RAM_SIZE];
+  private int pc;
+  private boolean halted;
+
+  public VMInterpreter(VMProgram program) {
+    Map<String, Integer> labels = new HashMap<String, Integer>();
+    Map<String, Integer> functions = new HashMap<String, Integer>();
+    // instructions whose x is the index of a label or function, and that name
+    Map<Integer, String> jumps = new HashMap<Integer, String>();
+    int staticBase = STATIC;
+
+    for (int file = 0; file < program.fileCount(); file++) {
+      int end = program.fileEnd(file);
+      int statics = 0;
+      String function = "";
+
+      for (int i = program.fileStart(file); i < end; i++) {
+        int command = program.get(i);
+        Opcode opcode = VMProgram.opcode(command);
+        commands++;
+
+        int fused = fuse(program, i, end, staticBase);
+        if (fused > 0) {
+          if (operations[size - 1] >= IF_EQ && operations[size - 1] <= IF_NOT) {
+            jumps.put(size - 1, function + "$" + program.name(VMProgram.nameId(program.get(i + fused))));
+          }
+          commands += fused;
+          i += fused;
+          continue;
+        }
+
+        switch (opcode) {
+          case PUSH:
+          case POP: {
+            Segment segment = VMProgram.segment(command);
+            int index = VMProgram.index(command);
+            if (segment == Segment.STATIC) {
+              statics = Math.max(statics, index + 1);
+            }
+            if (segment == Segment.CONSTANT) {
+              if (opcode == Opcode.POP) {
+                throw new IllegalArgumentException("pop constant in " + function);
+              }
+              emit(PUSH_CONSTANT, (short) index, 0, 0);
+            } else if (segment.basePointer() != null) {
+              emit(opcode == Opcode.PUSH ? PUSH_SEGMENT : POP_SEGMENT, basePointer(segment), index, 0);
+            } else {
+              emit(opcode == Opcode.PUSH ? PUSH_ADDRESS : POP_ADDRESS, address(segment, index, staticBase), 0, 0);
+            }
+            break;
+          }
+          case ADD: emit(ADD, 0, 0, 0); break;
+          case SUB: emit(SUB, 0, 0, 0); break;
+          case NEG: emit(NEG, 0, 0, 0); break;
+          case EQ: emit(EQ, 0, 0, 0); break;
+          case GT: emit(GT, 0, 0, 0); break;
+          case LT: emit(LT, 0, 0, 0); break;
+          case AND: emit(AND, 0, 0, 0); break;
+          case OR: emit(OR, 0, 0, 0); break;
+          case NOT: emit(NOT, 0, 0, 0); break;
+          case LABEL:
+            labels.put(function + "$" + program.name(VMProgram.nameId(command)), size);
+            break;
+          case GOTO:
+          case IF_GOTO:
+            jumps.put(size, function + "$" + program.name(VMProgram.nameId(command)));
+            emit(opcode == Opcode.GOTO ? GOTO : IF_GOTO, 0, 0, 0);
+            break;
+          case FUNCTION:
+            function = program.name(VMProgram.nameId(command));
+            functions.put(function, size);
+            functionNames.add(function);
+            functionStarts.add(size);
+            emit(FUNCTION, program.count(i), 0, 0);
+            break;
+          case CALL:
+            jumps.put(size, program.name(VMProgram.nameId(command)));
+            emit(CALL, 0, program.count(i), 0);
+            break;
+          case RETURN:
+            emit(RETURN, 0, 0, 0);
+            break;
+        }
+      }
+      staticBase += statics;
+    }
+    // the end of the program, and where Sys.init returns to
+    emit(HALT, 0, 0, 0);
+
+    for (Map.Entry<Integer, String> jump : jumps.entrySet()) {
+      int instruction = jump.getKey();
+      Integer target = operations[instruction] == CALL ? functions.get(jump.getValue()) : labels.get(jump.getValue());
+      if (target == null) {
+        throw new IllegalArgumentException((operations[instruction] == CALL ? "Unknown function: " : "Unknown label: ")
+            + jump.getValue());
+      }
+      x[instruction] = target;
+      if (operations[instruction] == GOTO && target == instruction) {
+        operations[instruction] = HALT;
+      }
+    }
+
+    Integer init = functions.get("Sys.init");
+    if (init != null) {
+      // the translator's bootstrap: SP=256, call Sys.init 0
+      memory[SP] = 256 + 5;
+      memory[256] = size - 1;
+      memory[ARG] = 256;
+      memory[LCL] = 256 + 5;
+      pc = init;
+    }
+  }
+
+  /**
+   * Emits a superinstruction if one starts at command i of the program; returns the number of
+   * commands it covers beyond the first, 0 if none does.
+   */
+  private int fuse(VMProgram program, int i, int end, int staticBase) {
+    Opcode first = VMProgram.opcode(program.get(i));
+    Opcode second = i + 1 < end ? VMProgram.opcode(program.get(i + 1)) : null;
+    Opcode third = i + 2 < end ? VMProgram.opcode(program.get(i + 2)) : null;
+
+    if (first == Opcode.PUSH && VMProgram.segment(program.get(i)) == Segment.CONSTANT
+        && (second == Opcode.ADD || second == Opcode.SUB)) {
+      int k = VMProgram.index(program.get(i));
+      emit(ADD_CONSTANT, second == Opcode.ADD ? k : -k, 0, 0);
+      return 1;
+    }
+    if (first == Opcode.PUSH && VMProgram.segment(program.get(i)).basePointer() != null
+        && second == Opcode.PUSH && VMProgram.segment(program.get(i + 1)) == Segment.CONSTANT
+        && (third == Opcode.ADD || third == Opcode.SUB)) {
+      int k = VMProgram.index(program.get(i + 1));
+      emit(PUSH_SEGMENT_ADD_CONSTANT, basePointer(VMProgram.segment(program.get(i))), VMProgram.index(program.get(i)),
+          third == Opcode.ADD ? k : -k);
+      return 2;
+    }
+    if (first == Opcode.EQ || first == Opcode.GT || first == Opcode.LT) {
+      int offset = first == Opcode.EQ ? 0 : first == Opcode.GT ? 1 : 2;
+      if (second == Opcode.IF_GOTO) {
+        emit(IF_EQ + offset, 0, 0, 0);
+        return 1;
+      }
+      if (second == Opcode.NOT && third == Opcode.IF_GOTO) {
+        emit(IF_NE + offset, 0, 0, 0);
+        return 2;
+      }
+    }
+    if (first == Opcode.NOT && second == Opcode.IF_GOTO) {
+      emit(IF_NOT, 0, 0, 0);
+      return 1;
+    }
+    if (first == Opcode.POP && VMProgram.segment(program.get(i)) == Segment.POINTER && VMProgram.index(program.get(i)) == 1
+        && second == Opcode.PUSH && VMProgram.segment(program.get(i + 1)) == Segment.THAT
+        && VMProgram.index(program.get(i + 1)) == 0) {
+      emit(LOAD_THAT, 0, 0, 0);
+      return 1;
+    }
+    return 0;
+  }
+
+  private static int basePointer(Segment segment) {
+    switch (segment) {
+      case LOCAL: return LCL;
+      case ARGUMENT: return ARG;
+      case THIS: return THIS;
+      default: return THAT;
+    }
+  }
+
+  private static int address(Segment segment, int index, int staticBase) {
+    switch (segment) {
+      case POINTER:
+        if (index > 1) {
+          throw new IllegalArgumentException("pointer index out of range: " + index);
+        }
+        return THIS + index;
+      case TEMP:
+        if (index > 7) {
+          throw new IllegalArgumentException("temp index out of range: " + index);
+        }
+        return TEMP + index;
+      default:
+        return staticBase + index;
+    }
+  }
+
+  private void emit(int operation, int x, int y, int z) {
+    if (size == operations.length) {
+      operations = Arrays.copyOf(operations, size * 2);
+      this.x = Arrays.copyOf(this.x, size * 2);
+      this.y = Arrays.copyOf(this.y, size * 2);
+      this.z = Arrays.copyOf(this.z, size * 2);
+    }
+    operations[size] = operation;
+    this.x[size] = x;
+    this.y[size] = y;
+    this.z[size] = z;
+    size++;
+  }
+
+  public int[] memory() {
+    return memory;
+  }
+
+  /**
+   * Returns the number of VM commands loaded, labels included.
+   */
+  public int commands() {
+    return commands;
+  }
+
+  /**
+   * Returns the number of instructions they were decoded into.
+   */
+  public int instructions() {
+    return size;
+  }
+
+  public boolean halted() {
+    return halted;
+  }
+
+  /**
+   * Executes at most maxSteps instructions (a superinstruction is one step); returns the number executed.
+   */
+  public long run(long maxSteps) {
+    final int[] operations = this.operations;
+    final int[] x = this.x;
+    final int[] y = this.y;
+    final int[] z = this.z;
+    final int[] m = memory;
+    int pc = this.pc;
+    int sp = m[SP];
+    long steps = 0;
+
+    try {
+      loop:
+      while (steps < maxSteps) {
+        steps++;
+        switch (operations[pc]) {
+          case PUSH_CONSTANT: m[sp++] = x[pc]; pc++; break;
+          case PUSH_SEGMENT: m[sp++] = m[m[x[pc]] + y[pc]]; pc++; break;
+          case PUSH_ADDRESS: m[sp++] = m[x[pc]]; pc++; break;
+          case POP_SEGMENT: m[m[x[pc]] + y[pc]] = m[--sp]; pc++; break;
+          case POP_ADDRESS: m[x[pc]] = m[--sp]; pc++; break;
+          case ADD: sp--; m[sp - 1] = (short) (m[sp - 1] + m[sp]); pc++; break;
+          case SUB: sp--; m[sp - 1] = (short) (m[sp - 1] - m[sp]); pc++; break;
+          case NEG: m[sp - 1] = (short) -m[sp - 1]; pc++; break;
+          case EQ: sp--; m[sp - 1] = m[sp - 1] == m[sp] ? -1 : 0; pc++; break;
+          case GT: sp--; m[sp - 1] = m[sp - 1] > m[sp] ? -1 : 0; pc++; break;
+          case LT: sp--; m[sp - 1] = m[sp - 1] < m[sp] ? -1 : 0; pc++; break;
+          case AND: sp--; m[sp - 1] &= m[sp]; pc++; break;
+          case OR: sp--; m[sp - 1] |= m[sp]; pc++; break;
+          case NOT: m[sp - 1] = ~m[sp - 1]; pc++; break;
+          case GOTO: pc = x[pc]; break;
+          case IF_GOTO: pc = m[--sp] != 0 ? x[pc] : pc + 1; break;
+          case CALL: {
+            m[sp] = pc + 1;
+            m[sp + 1] = m[LCL];
+            m[sp + 2] = m[ARG];
+            m[sp + 3] = m[THIS];
+            m[sp + 4] = m[THAT];
+            m[ARG] = sp - y[pc];
+            sp += 5;
+            m[LCL] = sp;
+            m[SP] = sp;
+            pc = x[pc];
+            break;
+          }
+          case FUNCTION:
+            for (int i = x[pc]; i > 0; i--) {
+              m[sp++] = 0;
+            }
+            pc++;
+            break;
+          case RETURN: {
+            int frame = m[LCL];
+            int returnAddress = m[frame - 5];
+            m[m[ARG]] = m[sp - 1];
+            sp = m[ARG] + 1;
+            m[THAT] = m[frame - 1];
+            m[THIS] = m[frame - 2];
+            m[ARG] = m[frame - 3];
+            m[LCL] = m[frame - 4];
+            m[SP] = sp;
+            pc = returnAddress;
+            break;
+          }
+          case HALT:
+            steps--;
+            halted = true;
+            break loop;
+          case ADD_CONSTANT: m[sp - 1] = (short) (m[sp - 1] + x[pc]); pc++; break;
+          case PUSH_SEGMENT_ADD_CONSTANT: m[sp++] = (short) (m[m[x[pc]] + y[pc]] + z[pc]); pc++; break;
+          case IF_EQ: sp -= 2; pc = m[sp] == m[sp + 1] ? x[pc] : pc + 1; break;
+          case IF_GT: sp -= 2; pc = m[sp] > m[sp + 1] ? x[pc] : pc + 1; break;
+          case IF_LT: sp -= 2; pc = m[sp] < m[sp + 1] ? x[pc] : pc + 1; break;
+          case IF_NE: sp -= 2; pc = m[sp] != m[sp + 1] ? x[pc] : pc + 1; break;
+          case IF_LE: sp -= 2; pc = m[sp] <= m[sp + 1] ? x[pc] : pc + 1; break;
+          case IF_GE: sp -= 2; pc = m[sp] >= m[sp + 1] ? x[pc] : pc + 1; break;
+          case IF_NOT: pc = m[--sp] == 0 ? x[pc] : pc + 1; break;
+          case LOAD_THAT: m[THAT] = m[sp - 1]; m[sp - 1] = m[m[THAT]]; pc++; break;
+          default:
+            throw new IllegalStateException("Invalid instruction " + operations[pc]);
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      this.pc = pc;
+      m[SP] = sp;
+      throw new IllegalStateException("Memory access out of range in " + functionAt(pc) + ": " + e.getMessage());
+    }
+
+    this.pc = pc;
+    m[SP] = sp;
+    return steps;
+  }
+
+  private String functionAt(int instruction) {
+    String function = "(no function)";
+    for (int i = 0; i < functionStarts.size() && functionStarts.get(i) <= instruction; i++) {
+      function = functionNames.get(i);
+    }
+    return function;
+  }
+
+  /**
+   * Parses a .vm file, or all .vm files of a directory, into one program.
+   */
+  public static VMProgram load(File path) throws IOException {
+    VMProgram program = new VMProgram();
+    for (File file : VMTranslator.sourceFiles(path)) {
+      program.append(VMTranslator.parse(VMTranslator.withoutVmExtension(file.getName()), new Parser(file)));
+    }
+    return program;
+  }
+
+  public static void main(String[] args) throws IOException {
+    long maxSteps = 1_000_000_000L;
+    List<int[]> settings = new ArrayList<int[]>();
+    List<int[]> prints = new ArrayList<int[]>();
+    File path = null;
+
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("-n") && i + 1 < args.length) {
+        maxSteps = Long.parseLong(args[++i]);
+      } else if (arg.equals("-s") && i + 1 < args.length) {
+        String[] setting = args[++i].split("=");
+        settings.add(new int[] { Integer.parseInt(setting[0]), Integer.parseInt(setting[1]) });
+      } else if (arg.equals("-p") && i + 1 < args.length) {
+        String[] range = args[++i].split("\\.\\.");
+        int from = Integer.parseInt(range[0]);
+        prints.add(new int[] { from, range.length > 1 ? Integer.parseInt(range[1]) : from });
+      } else if (arg.startsWith("-") || path != null) {
+        path = null;
+        break;
+      } else {
+        path = new File(arg);
+      }
+    }
+
+    if (path == null) {
+      System.out.println("use: java VMInterpreter [-n steps] [-s address=value]... [-p address[..address]]... path");
+      System.out.println("path: a .vm file or a directory of .vm files");
+      return;
+    }
+
+    VMInterpreter interpreter = new VMInterpreter(load(path));
+    for (int[] setting : settings) {
+      interpreter.memory()[setting[0]] = setting[1];
+    }
+
+    long start = System.nanoTime();
+    long steps = interpreter.run(maxSteps);
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    System.out.println(String.format("%s: %d commands in %d instructions, %d steps, %s, %.3f s, %.0f M steps/s",
+        path.getPath(), interpreter.commands(), interpreter.instructions(), steps,
+        interpreter.halted() ? "halted" : "step limit reached", seconds, steps / seconds / 1e6));
+    for (int[] range : prints) {
+      StringBuilder line = new StringBuilder();
+      for (int address = range[0]; address <= range[1]; address++) {
+        line.append(String.format("RAM[%d]=%d ", address, interpreter.memory()[address]));
+      }
+      System.out.println("  " + line.toString().trim());
+    }
+  }
+}
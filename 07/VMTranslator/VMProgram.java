@@ -0,0 +1,302 @@
+import java.util.Arrays;
+
+/**
+ * Compact intermediate representation of a whole VM program, sitting between the Parser and the CodeWriter.
+ *
+ * Every command is packed into a single int of one flat array:
+ *  bits 0..4   opcode ordinal
+ *  bits 5..7   segment ordinal (push/pop only)
+ *  bits 8..31  operand: the index of push/pop, or the name id of label/goto/if-goto
+ * function and call split the operand: bits 8..23 hold the name id, bits 24..31 nVars/nArgs;
+ * a count of 255 or more is stored as 255 and the real count kept in a side array at the same position.
+ *
+ * Labels and function names are interned once into a name table; the program also remembers
+ * which range of commands came from which source file, so that static symbols can be named per file.
+ */
+public class VMProgram {
+  private static final Opcode[] OPCODES = Opcode.values();
+  private static final Segment[] SEGMENTS = Segment.values();
+
+  private static final int MAX_OPERAND = (1 << 24) - 1;
+  private static final int MAX_NAMES = 1 << 16;
+  private static final int LARGE_COUNT = 255;
+
+  private int[] code = new int[1024];
+  private int size;
+  private int[] largeCounts = new int[0];
+
+  private String[] names = new String[64];
+  private int nameCount;
+  private int[] nameSlots = new int[128];
+
+  private String[] fileNames = new String[8];
+  private int[] fileStarts = new int[8];
+  private int fileCount;
+
+  public static Opcode opcode(int command) {
+    return OPCODES[command & 0x1F];
+  }
+
+  public static Segment segment(int command) {
+    return SEGMENTS[(command >>> 5) & 0x7];
+  }
+
+  /**
+   * Returns the index of a push/pop command.
+   */
+  public static int index(int command) {
+    return command >>> 8;
+  }
+
+  /**
+   * Returns the name id of a label, goto, if-goto, function or call command.
+   */
+  public static int nameId(int command) {
+    switch (opcode(command)) {
+      case FUNCTION:
+      case CALL:
+        return (command >>> 8) & 0xFFFF;
+      default:
+        return command >>> 8;
+    }
+  }
+
+  /**
+   * Returns nVars of the function command or nArgs of the call command at position i.
+   */
+  public int count(int i) {
+    int count = code[i] >>> 24;
+    return count == LARGE_COUNT ? largeCounts[i] : count;
+  }
+
+  public static int encode(Opcode opcode, Segment segment, int index) {
+    if (index > MAX_OPERAND) {
+      throw new IllegalArgumentException("Operand out of range: " + index);
+    }
+    return opcode.ordinal() | (segment == null ? 0 : segment.ordinal() << 5) | index << 8;
+  }
+
+  /**
+   * Appends a function or call command.
+   */
+  public void add(Opcode opcode, int nameId, int count) {
+    add(opcode.ordinal() | nameId << 8 | Math.min(count, LARGE_COUNT) << 24);
+    if (count >= LARGE_COUNT) {
+      if (largeCounts.length < code.length) {
+        largeCounts = Arrays.copyOf(largeCounts, code.length);
+      }
+      largeCounts[size - 1] = count;
+    }
+  }
+
+  /**
+   * Starts a new source file; the commands added from now on belong to it.
+   * @param fileName name of the source file without the .vm extension
+   */
+  public void beginFile(String fileName) {
+    if (fileCount == fileNames.length) {
+      fileNames = Arrays.copyOf(fileNames, fileCount * 2);
+      fileStarts = Arrays.copyOf(fileStarts, fileCount * 2);
+    }
+    fileNames[fileCount] = fileName;
+    fileStarts[fileCount] = size;
+    fileCount++;
+  }
+
+  /**
+   * Encodes the parser's current command and appends it.
+   */
+  public void add(Parser parser) {
+    Opcode opcode = parser.opcode();
+
+    switch (opcode.commandType()) {
+      case C_PUSH:
+      case C_POP:
+        add(encode(opcode, parser.segment(), parser.arg2()));
+        break;
+      case C_LABEL:
+      case C_GOTO:
+      case C_IF:
+        add(encode(opcode, null, intern(parser.nameBuffer(), parser.nameLength())));
+        break;
+      case C_FUNCTION:
+      case C_CALL:
+        add(opcode, intern(parser.nameBuffer(), parser.nameLength()), parser.arg2());
+        break;
+      default:
+        add(encode(opcode, null, 0));
+    }
+  }
+
+  /**
+   * Appends all files of another program, re-interning its names into this program's name table.
+   */
+  public void append(VMProgram other) {
+    int[] nameIds = new int[other.nameCount];
+    for (int id = 0; id < other.nameCount; id++) {
+      nameIds[id] = intern(other.names[id]);
+    }
+
+    for (int file = 0; file < other.fileCount; file++) {
+      beginFile(other.fileNames[file]);
+      for (int i = other.fileStart(file); i < other.fileEnd(file); i++) {
+        int command = other.code[i];
+        Opcode opcode = opcode(command);
+        switch (opcode.commandType()) {
+          case C_LABEL:
+          case C_GOTO:
+          case C_IF:
+            add(encode(opcode, null, nameIds[nameId(command)]));
+            break;
+          case C_FUNCTION:
+          case C_CALL:
+            add(opcode, nameIds[nameId(command)], other.count(i));
+            break;
+          default:
+            add(command);
+        }
+      }
+    }
+  }
+
+  /**
+   * Appends the commands from..to-1 of another program to the current file, re-interning their names.
+   */
+  public void append(VMProgram other, int from, int to) {
+    for (int i = from; i < to; i++) {
+      int command = other.code[i];
+      Opcode opcode = opcode(command);
+      switch (opcode.commandType()) {
+        case C_LABEL:
+        case C_GOTO:
+        case C_IF:
+          add(encode(opcode, null, intern(other.names[nameId(command)])));
+          break;
+        case C_FUNCTION:
+        case C_CALL:
+          add(opcode, intern(other.names[nameId(command)]), other.count(i));
+          break;
+        default:
+          add(command);
+      }
+    }
+  }
+
+  public void add(int command) {
+    if (fileCount == 0) {
+      throw new IllegalStateException("beginFile() must be called before adding commands");
+    }
+    if (size == code.length) {
+      code = Arrays.copyOf(code, size * 2);
+    }
+    code[size++] = command;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int get(int i) {
+    return code[i];
+  }
+
+  public String name(int nameId) {
+    return names[nameId];
+  }
+
+  public int nameCount() {
+    return nameCount;
+  }
+
+  public int fileCount() {
+    return fileCount;
+  }
+
+  public String fileName(int file) {
+    return fileNames[file];
+  }
+
+  public int fileStart(int file) {
+    return fileStarts[file];
+  }
+
+  public int fileEnd(int file) {
+    return file + 1 < fileCount ? fileStarts[file + 1] : size;
+  }
+
+  /**
+   * Returns the position of the function command declaring the given function, -1 if there is none.
+   */
+  public int findFunction(String functionName) {
+    for (int i = 0; i < size; i++) {
+      if (opcode(code[i]) == Opcode.FUNCTION && names[nameId(code[i])].equals(functionName)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the id of the given name, adding it to the name table if it is new.
+   */
+  public int intern(String name) {
+    return intern(name.toCharArray(), name.length());
+  }
+
+  /**
+   * Same as intern(String) but only builds a String the first time a name is seen.
+   */
+  public int intern(char[] chars, int length) {
+    int hash = 0;
+    for (int i = 0; i < length; i++) {
+      hash = 31 * hash + chars[i];
+    }
+
+    int mask = nameSlots.length - 1;
+    for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+      int id = nameSlots[slot] - 1;
+      if (id < 0) {
+        break;
+      }
+      if (Opcode.matches(names[id], chars, length)) {
+        return id;
+      }
+    }
+
+    if (nameCount == MAX_NAMES) {
+      throw new IllegalStateException("Too many distinct labels and function names");
+    }
+    if (nameCount == names.length) {
+      names = Arrays.copyOf(names, nameCount * 2);
+    }
+    names[nameCount] = new String(chars, 0, length);
+    nameCount++;
+
+    if (nameCount * 2 > nameSlots.length) {
+      rehash();
+    } else {
+      insertSlot(nameCount - 1, hash);
+    }
+    return nameCount - 1;
+  }
+
+  private void rehash() {
+    nameSlots = new int[nameSlots.length * 2];
+    for (int id = 0; id < nameCount; id++) {
+      insertSlot(id, names[id].hashCode());
+    }
+  }
+
+  private void insertSlot(int id, int hash) {
+    int mask = nameSlots.length - 1;
+    int slot = mix(hash) & mask;
+    while (nameSlots[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    nameSlots[slot] = id + 1;
+  }
+
+  private static int mix(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+}
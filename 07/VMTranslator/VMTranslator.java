@@ -1,59 +1,365 @@
-import java.util.Scanner;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.io.FileNotFoundException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Translates a .vm file, or all .vm files of a directory, into one .asm file.
+ *
+ * Files are parsed and translated as independent tasks on a thread pool (-j sets its size).
+ * Each file is translated by its own CodeWriter into its own buffer, and the buffers are written
+ * in file name order between the bootstrap and the shared routines, so the output does not
+ * depend on the number of threads.
+ */
 public class VMTranslator {
-  private static CodeWriter codeWriter;
 
   public static void main(String[] args) throws IOException {
-    File inputFile = new File(args[0]);
-    codeWriter = new CodeWriter(inputFile);
+    if (args.length == 2 && args[0].equals("--daemon")) {
+      Daemon.serve(Paths.get(args[1]), new Daemon.Job() {
+        public void run(String[] jobArgs, File workingDirectory, PrintStream out) throws IOException {
+          VMTranslator.run(jobArgs, workingDirectory, out);
+        }
+      });
+      return;
+    }
+    run(args, new File(System.getProperty("user.dir")), System.out);
+  }
 
-    if (inputFile.isDirectory()) {
-      iterateFiles(inputFile.listFiles());
-    } else {
-      translate(inputFile);
+  /**
+   * Runs one translation as main would, with relative paths taken from workingDirectory and reports written to out.
+   */
+  public static void run(String[] args, File workingDirectory, PrintStream out) throws IOException {
+    TranslatorOptions options = TranslatorOptions.parse(args);
+    if (options == null) {
+      out.println(TranslatorOptions.USAGE);
+      return;
     }
+
+    File inputFile = resolve(workingDirectory, options.path);
+    List<File> files = sourceFiles(inputFile);
+
+    if (options.cacheDirectory != null) {
+      options.cacheDirectory = options.cacheDirectory.isEmpty()
+          ? new File(inputFile.isDirectory() ? inputFile : inputFile.getParentFile(), ".vmcache").getPath()
+          : resolve(workingDirectory, options.cacheDirectory).getPath();
+    }
+    if (options.costReport != null) {
+      options.costReport = resolve(workingDirectory, options.costReport).getPath();
+    }
+
+    ExecutorService pool = newPool(options, files.size());
+    try {
+      List<Future<VMProgram>> parts = new ArrayList<Future<VMProgram>>();
+      for (File file : files) {
+        parts.add(submit(pool, new Callable<VMProgram>() {
+          public VMProgram call() throws IOException {
+            return parse(withoutVmExtension(file.getName()), new Parser(file));
+          }
+        }));
+      }
+
+      HackAssembler assembler = options.output.equals("asm") ? null : new HackAssembler();
+      CodeWriter codeWriter = assembler == null ? new CodeWriter(inputFile) : new CodeWriter(assembler);
+      generate(merge(parts), codeWriter, options, pool, out);
+
+      if (assembler != null) {
+        writeRom(assembler.assemble(), inputFile, options.output);
+      }
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Translates VM code held in memory into Hack assembly written to out, without files on disk
+   * (unless options.cacheDirectory is set; options.path and options.output are ignored).
+   * sources maps file names, without .vm, to their text; files are translated in the map's order,
+   * a TreeMap gives the order of the command line tool. The reports selected by the options go to reports, if not null.
+   * Calls share no state, so any number of threads may translate at once.
+   */
+  public static void translate(Map<String, ? extends CharSequence> sources, TranslatorOptions options, Writer out,
+      PrintStream reports) throws IOException {
+    ExecutorService pool = newPool(options, sources.size());
+    try {
+      List<Future<VMProgram>> parts = new ArrayList<Future<VMProgram>>();
+      for (Map.Entry<String, ? extends CharSequence> source : sources.entrySet()) {
+        parts.add(submit(pool, new Callable<VMProgram>() {
+          public VMProgram call() {
+            ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(source.getValue()));
+            return parse(source.getKey(), new Parser(bytes));
+          }
+        }));
+      }
+      generate(merge(parts), new CodeWriter(out), options, pool,
+          reports == null ? new PrintStream(OutputStream.nullOutputStream()) : reports);
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Same as translate(), but returns the assembled ROM image.
+   */
+  public static short[] assemble(Map<String, ? extends CharSequence> sources, TranslatorOptions options,
+      PrintStream reports) throws IOException {
+    HackAssembler assembler = new HackAssembler();
+    translate(sources, options, assembler, reports);
+    return assembler.assemble();
+  }
+
+  /**
+   * Runs the whole-program passes selected by the options, translates the program through codeWriter
+   * and closes it, then prints the reports.
+   */
+  private static void generate(VMProgram program, CodeWriter codeWriter, TranslatorOptions options,
+      ExecutorService pool, PrintStream out) throws IOException {
+    VMProgram source = program;
+    if (options.inlineThreshold > 0) {
+      Inliner inliner = new Inliner(program, options.inlineThreshold);
+      program = inliner.inline();
+      out.print(inliner.report());
+    }
+    if (options.deadFunctions) {
+      CallGraph callGraph = new CallGraph(program);
+      if (callGraph.markReachable("Sys.init")) {
+        out.print(callGraph.report(options));
+        program = callGraph.prune();
+      } else {
+        out.println("Dead functions: no Sys.init, every function is kept");
+      }
+    }
+
+    options.configure(codeWriter);
+    Map<String, Integer> savings = translate(program, codeWriter, options, pool, out);
     codeWriter.close();
+
+    if (options.peephole) {
+      for (Map.Entry<String, Integer> entry : savings.entrySet()) {
+        out.println("Peephole: " + entry.getKey() + ": " + entry.getValue() + " instructions saved");
+      }
+    }
+    if (options.comparisonReport) {
+      out.print(ComparisonReport.build(program, options.peephole, options.tosCaching));
+    }
+    if (options.costReport != null) {
+      CostReport report = new CostReport(source, program, options);
+      Files.write(Paths.get(options.costReport),
+          (options.costReport.endsWith(".json") ? report.json() : report.csv()).getBytes(StandardCharsets.UTF_8));
+      out.println("Cost report: " + options.costReport);
+    }
+  }
+
+  /**
+   * Writes the ROM next to where the .asm file would go, as Foo.hack text or a Foo.bin image.
+   */
+  private static void writeRom(short[] rom, File inputFile, String format) throws IOException {
+    File outputFile = new File(withoutVmExtension(inputFile.getAbsolutePath()) + "." + format);
+    if (format.equals("hack")) {
+      try (Writer writer = new BufferedWriter(new FileWriter(outputFile))) {
+        HackAssembler.writeHack(rom, writer);
+      }
+    } else {
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile))) {
+        HackAssembler.writeBinary(rom, out);
+      }
+    }
+  }
+
+  private static File resolve(File workingDirectory, String path) {
+    File file = new File(path);
+    return file.isAbsolute() ? file : new File(workingDirectory, path);
   }
 
-  private static void iterateFiles(File[] files) {
+  /**
+   * Returns a file name or path without its .vm extension; names without one are returned as they are.
+   * Output files and static symbols are named after it.
+   */
+  static String withoutVmExtension(String name) {
+    return name.endsWith(".vm") ? name.substring(0, name.length() - ".vm".length()) : name;
+  }
+
+  /**
+   * Returns the .vm file itself, or the .vm files found in the directory and its subdirectories, sorted by path.
+   */
+  static List<File> sourceFiles(File input) {
+    List<File> files = new ArrayList<File>();
+    if (input.isDirectory()) {
+      iterateFiles(input.listFiles(), files);
+    } else {
+      files.add(input);
+    }
+    return files;
+  }
+
+  private static void iterateFiles(File[] files, List<File> result) {
+    Arrays.sort(files);
+
     for (File file : files) {
       if (file.isDirectory()) {
-        iterateFiles(file.listFiles());
+        iterateFiles(file.listFiles(), result);
       } else {
         if (file.getName().endsWith(".vm")) {
-          translate(file);
+          result.add(file);
         }
       }
     }
   }
 
-  private static void translate(File file) {
-    File outputFile = new File(file.getName().split(".vm")[0] + ".asm");
-    Scanner inputScanner = null;
-
-    try {
-      inputScanner = new Scanner(file);
-    } catch (FileNotFoundException e) {
-      e.printStackTrace();
+  /**
+   * Appends the separately parsed files into one program, in order.
+   */
+  private static VMProgram merge(List<Future<VMProgram>> parts) throws IOException {
+    VMProgram program = new VMProgram();
+    for (Future<VMProgram> part : parts) {
+      program.append(await(part));
     }
+    return program;
+  }
 
-    Parser parser = new Parser(inputScanner);
-    codeWriter.setFileName(outputFile.getName());
+  static VMProgram parse(String fileName, Parser parser) {
+    VMProgram program = new VMProgram();
+    program.beginFile(fileName);
 
     while (parser.hasMoreCommands()) {
       parser.advance();
-      switch (parser.commandType()) {
-        case C_PUSH:
-        case C_POP:
-          codeWriter.writePushPop(parser.commandType(), parser.arg1(), parser.arg2());
-          break;
-        case C_ARITHMETIC:
-          codeWriter.writeArithmetic(parser.arg1());
-          break;
+      program.add(parser);
+    }
+    return program;
+  }
+
+  /**
+   * Writes the bootstrap, the translation of every file and the shared routines to codeWriter;
+   * returns the peephole savings per file.
+   */
+  private static Map<String, Integer> translate(VMProgram program, CodeWriter codeWriter, TranslatorOptions options,
+      ExecutorService pool, PrintStream out) throws IOException {
+    TranslationCache cache = options.cacheDirectory == null ? null : new TranslationCache(new File(options.cacheDirectory));
+    AtomicInteger reused = new AtomicInteger();
+    List<Future<TranslationCache.Fragment>> fragments = new ArrayList<Future<TranslationCache.Fragment>>();
+
+    for (int i = 0; i < program.fileCount(); i++) {
+      int file = i;
+      fragments.add(submit(pool, new Callable<TranslationCache.Fragment>() {
+        public TranslationCache.Fragment call() throws IOException {
+          if (cache == null) {
+            return translate(program, file, options);
+          }
+          String key = cache.key(program, file, options);
+          TranslationCache.Fragment fragment = cache.load(key);
+          if (fragment != null) {
+            reused.incrementAndGet();
+            return fragment;
+          }
+          fragment = translate(program, file, options);
+          cache.store(key, fragment);
+          return fragment;
+        }
+      }));
+    }
+
+    Map<String, Integer> savings = new LinkedHashMap<String, Integer>();
+
+    if (program.findFunction("Sys.init") != -1) {
+      codeWriter.writeInit();
+    }
+    for (int i = 0; i < fragments.size(); i++) {
+      TranslationCache.Fragment fragment = await(fragments.get(i));
+      codeWriter.append(fragment.assembly);
+      codeWriter.includeSharedRoutines(fragment.routines);
+      if (fragment.saved != null) {
+        savings.put(program.fileName(i), fragment.saved);
+      }
+    }
+    codeWriter.writeSharedRoutines();
+
+    if (cache != null) {
+      out.println("Cache: " + reused.get() + " of " + program.fileCount() + " files reused");
+    }
+    if (options.peephole) {
+      // bootstrap, files, shared routines
+      Map<String, Integer> total = new LinkedHashMap<String, Integer>(codeWriter.peepholeSavings());
+      Integer shared = total.remove("(shared routines)");
+      total.putAll(savings);
+      if (shared != null) {
+        total.put("(shared routines)", shared);
+      }
+      return total;
+    }
+    return savings;
+  }
+
+  /**
+   * Translates one file of the program with its own CodeWriter.
+   */
+  private static TranslationCache.Fragment translate(VMProgram program, int file, TranslatorOptions options) {
+    StringWriter buffer = new StringWriter();
+    CodeWriter fileWriter = options.configure(new CodeWriter(buffer));
+    fileWriter.writeFile(program, file);
+    fileWriter.close();
+
+    Integer saved = options.peephole ? fileWriter.peepholeSavings().get(program.fileName(file)) : null;
+    return new TranslationCache.Fragment(buffer.toString(), fileWriter.sharedRoutinesUsed(), saved);
+  }
+
+  /**
+   * Returns the pool for the parallel tasks, or null when they should run on the calling thread.
+   */
+  private static ExecutorService newPool(TranslatorOptions options, int files) {
+    return options.threads > 1 && files > 1 ? Executors.newFixedThreadPool(Math.min(options.threads, files)) : null;
+  }
+
+  private static <T> Future<T> submit(ExecutorService pool, Callable<T> task) {
+    FutureTask<T> future = new FutureTask<T>(task);
+    if (pool == null) {
+      future.run();
+    } else {
+      pool.execute(future);
+    }
+    return future;
+  }
+
+  private static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
       }
+      throw new IllegalStateException(cause);
     }
   }
 }
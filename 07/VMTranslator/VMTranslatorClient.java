@@ -0,0 +1,18 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * Thin client of a VMTranslator daemon (java VMTranslator --daemon socket).
+ * Takes the same arguments as VMTranslator and runs them in the daemon listening on $VMTRANSLATOR_SOCKET,
+ * /tmp/vmtranslator.sock by default; --stop shuts the daemon down.
+ */
+public class VMTranslatorClient {
+
+  public static void main(String[] args) throws IOException {
+    String socket = System.getenv().getOrDefault("VMTRANSLATOR_SOCKET", "/tmp/vmtranslator.sock");
+    int status = Daemon.request(Paths.get(socket), args);
+    if (status != 0) {
+      System.exit(status);
+    }
+  }
+}
@@ -1,4 +1,5 @@
 import java.io.File;
+import java.io.Writer;
 
 /**
  * This class does the compilation itself.
@@ -25,6 +26,15 @@ public class CompilationEngine {
     symbolTable = new SymbolTable();
   }
 
+  /**
+   * Compiles Jack source read from memory (a Reader, a CharBuffer...) into out, which compileClass() closes.
+   */
+  public CompilationEngine(Readable source, Writer out) {
+    tokenizer = new JackTokenizer(source);
+    vmWriter = new VMWriter(out);
+    symbolTable = new SymbolTable();
+  }
+
   private String currentFunction(){
     if (currentClass.length() != 0 && currentSubroutine.length() != 0) {
       return currentClass + "." + currentSubroutine;
@@ -53,40 +63,41 @@ public class CompilationEngine {
   }
 
   public void compileClass() {
-    //'class'
-    tokenizer.advance();
+    try {
+      //'class'
+      tokenizer.advance();
 
-    if (tokenizer.tokenType() != JackTokenizer.TYPE.KEYWORD || tokenizer.keyWord() != JackTokenizer.KEYWORD.CLASS) {
-      System.out.println(tokenizer.getCurrentToken());
-      error("class");
-    }
+      if (tokenizer.tokenType() != JackTokenizer.TYPE.KEYWORD || tokenizer.keyWord() != JackTokenizer.KEYWORD.CLASS) {
+        error("class");
+      }
 
-    //className
-    tokenizer.advance();
+      //className
+      tokenizer.advance();
 
-    if (tokenizer.tokenType() != JackTokenizer.TYPE.IDENTIFIER) {
-      error("className");
-    }
+      if (tokenizer.tokenType() != JackTokenizer.TYPE.IDENTIFIER) {
+        error("className");
+      }
 
-    //classname does not need to be put in symbol table
-    currentClass = tokenizer.identifier();
+      //classname does not need to be put in symbol table
+      currentClass = tokenizer.identifier();
 
-    //'{'
-    requireSymbol('{');
+      //'{'
+      requireSymbol('{');
 
-    //classVarDec* subroutineDec*
-    compileClassVarDec();
-    compileSubroutine();
+      //classVarDec* subroutineDec*
+      compileClassVarDec();
+      compileSubroutine();
 
-    //'}'
-    requireSymbol('}');
+      //'}'
+      requireSymbol('}');
 
-    if (tokenizer.hasMoreTokens()) {
-      throw new IllegalStateException("Unexpected tokens");
+      if (tokenizer.hasMoreTokens()) {
+        throw new IllegalStateException("Unexpected tokens");
+      }
+    } finally {
+      //save file, or what was compiled before an error
+      vmWriter.close();
     }
-
-    //save file
-    vmWriter.close();
   }
 
 
@@ -133,7 +144,7 @@ public class CompilationEngine {
     }
 
     //type
-    compileType();
+    type = compileType();
 
     do {
       //varName
@@ -316,7 +327,7 @@ public class CompilationEngine {
     tokenizer.pointerBack();
     do {
       //type
-      compileType();
+      type = compileType();
 
       //varName
       tokenizer.advance();
@@ -810,7 +821,8 @@ public class CompilationEngine {
    * @param val
    */
   private void error(String val) {
-    throw new IllegalStateException("Expected token missing : " + val + " Current token:" + tokenizer.getCurrentToken());
+    throw new IllegalStateException("Expected token missing : " + val + " Current token:" + tokenizer.getCurrentToken()
+        + " (line " + tokenizer.lineNumber() + ")");
   }
 
   /**
@@ -819,7 +831,7 @@ public class CompilationEngine {
    */
   private void requireSymbol(char symbol) {
     tokenizer.advance();
-    if (tokenizer.tokenType() == JackTokenizer.TYPE.SYMBOL || tokenizer.symbol() != symbol) {
+    if (tokenizer.tokenType() != JackTokenizer.TYPE.SYMBOL || tokenizer.symbol() != symbol) {
       error("'" + symbol + "'");
     }
   }
@@ -1,5 +1,19 @@
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * Top-level driver that sets up and invokes the other modules.
@@ -13,15 +27,45 @@ import java.util.ArrayList;
 
 public class JackCompiler {
 
-  public static void main(String[] args) {
-    if (args.length != 1) {
-      System.out.println("use: java JackAnalyzer [filename|directory]");
+  public static void main(String[] args) throws IOException {
+    if (args.length == 2 && args[0].equals("--daemon")) {
+      Daemon.serve(Paths.get(args[1]), new Daemon.Job() {
+        public void run(String[] jobArgs, File workingDirectory, PrintStream out) {
+          JackCompiler.run(jobArgs, workingDirectory, out);
+        }
+      });
+      return;
+    }
+    run(args, new File(System.getProperty("user.dir")), System.out);
+  }
+
+  /**
+   * Compiles as main would, with a relative source path taken from workingDirectory and messages written to out.
+   * The files of a directory are compiled at once on -j threads (default: one per processor), each with its own
+   * CompilationEngine; messages and errors are reported per file in name order whatever the number of threads.
+   */
+  public static void run(String[] args, File workingDirectory, PrintStream out) {
+    int threads = Runtime.getRuntime().availableProcessors();
+    String path = null;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-j") && i + 1 < args.length) {
+        threads = Math.max(1, Integer.parseInt(args[++i]));
+      } else if (path == null && !args[i].startsWith("-")) {
+        path = args[i];
+      } else {
+        path = null;
+        break;
+      }
+    }
+
+    if (path == null) {
+      out.println("use: java JackCompiler [-j threads] [filename|directory]");
     } else {
-      File inputFile = new File(args[0]);
-      File fileOut;
+      File inputFile = new File(path);
+      if (!inputFile.isAbsolute()) {
+        inputFile = new File(workingDirectory, path);
+      }
       ArrayList<File> jackFiles = new ArrayList<File>();
-      String fileOutPath = "";
-
 
       if (inputFile.isDirectory()) {
         jackFiles = iterateFiles(inputFile.listFiles());
@@ -30,26 +74,77 @@ public class JackCompiler {
           throw new IllegalArgumentException("There are no jack files in this directory");
         }
       } else {
-        String path = inputFile.getAbsolutePath();
+        String inputPath = inputFile.getAbsolutePath();
 
-        if (!path.endsWith(".jack")) {
+        if (!inputPath.endsWith(".jack")) {
           throw new IllegalArgumentException(".jack file is required!");
         }
         jackFiles.add(inputFile);
       }
 
-      for (File f: jackFiles) {
-        fileOutPath = f.getAbsolutePath().substring(0, f.getAbsolutePath().lastIndexOf(".")) + ".vm";
-        fileOut = new File(fileOutPath);
-
-        CompilationEngine compilationEngine = new CompilationEngine(f,fileOut);
-        compilationEngine.compileClass();
+      ExecutorService pool = threads > 1 && jackFiles.size() > 1
+          ? Executors.newFixedThreadPool(Math.min(threads, jackFiles.size())) : null;
+      try {
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (File f : jackFiles) {
+          FutureTask<String> result = new FutureTask<String>(new Callable<String>() {
+            public String call() {
+              String fileOutPath = f.getAbsolutePath().substring(0, f.getAbsolutePath().lastIndexOf(".")) + ".vm";
+              CompilationEngine compilationEngine = new CompilationEngine(f, new File(fileOutPath));
+              compilationEngine.compileClass();
+              return fileOutPath;
+            }
+          });
+          if (pool == null) {
+            result.run();
+          } else {
+            pool.execute(result);
+          }
+          results.add(result);
+        }
 
-        System.out.println("File created : " + fileOutPath);
+        int failed = 0;
+        for (int i = 0; i < jackFiles.size(); i++) {
+          try {
+            out.println("File created : " + results.get(i).get());
+          } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            out.println(jackFiles.get(i).getName() + ": "
+                + (cause.getMessage() != null ? cause.getMessage() : cause.toString()));
+            failed++;
+          }
+        }
+        if (failed > 0) {
+          throw new IllegalStateException(failed + " of " + jackFiles.size() + " files failed to compile");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted", e);
+      } finally {
+        if (pool != null) {
+          pool.shutdown();
+        }
       }
     }
   }
 
+  /**
+   * Compiles one class from memory into out, which is closed afterwards.
+   * Nothing is shared between calls, so any number of threads may compile at once.
+   */
+  public static void compile(Readable source, Writer out) {
+    new CompilationEngine(source, out).compileClass();
+  }
+
+  /**
+   * Returns the VM code of one class given as Jack source text.
+   */
+  public static String compile(CharSequence source) {
+    StringWriter out = new StringWriter();
+    compile(CharBuffer.wrap(source), out);
+    return out.toString();
+  }
+
   private static ArrayList<File> iterateFiles(File[] files) {
     ArrayList<File> result = new ArrayList<File>();
 
@@ -62,6 +157,7 @@ public class JackCompiler {
         result.add(f);
       }
     }
+    Collections.sort(result);
 
     return result;
   }
@@ -0,0 +1,18 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * Thin client of a JackCompiler daemon (java JackCompiler --daemon socket).
+ * Takes the same arguments as JackCompiler and runs them in the daemon listening on $JACKCOMPILER_SOCKET,
+ * /tmp/jackcompiler.sock by default; --stop shuts the daemon down.
+ */
+public class JackCompilerClient {
+
+  public static void main(String[] args) throws IOException {
+    String socket = System.getenv().getOrDefault("JACKCOMPILER_SOCKET", "/tmp/jackcompiler.sock");
+    int status = Daemon.request(Paths.get(socket), args);
+    if (status != 0) {
+      System.exit(status);
+    }
+  }
+}
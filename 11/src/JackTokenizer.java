@@ -1,16 +1,24 @@
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Tokenizer
  * 1.Removes all comments and white space from the input stream.
  * 2.Breaks it into Jack-language tokens, as specified by the Jack grammar.
+ *
+ * The source is read into a char[] and scanned once by a state machine driven by the class of each char:
+ * comments and string constants are skipped or taken as they are met, and every token is classified when it is cut.
+ * Tokens are kept in parallel arrays over the source (type, code, start, length), 13 bytes a token; the code is the
+ * keyword, the symbol char, the integer value or the identifier's name number. An identifier's String is made the
+ * first time identifier() is called on one of its tokens, and shared by all of them. advance() and pointerBack() only
+ * move an index.
  */
 public class JackTokenizer {
   public static enum TYPE {
@@ -28,33 +36,66 @@ public class JackTokenizer {
     RETURN, TRUE, FALSE, NULL, THIS
   };
 
-  private String currentToken;
-  private TYPE currentTokenType;
-  private int pointer;
-  private ArrayList<String> tokens;
-
-  private static Pattern tokenPatterns;
-  private static String keyWordReg;
-  private static String symbolReg;
-  private static String intReg;
-  private static String strReg;
-  private static String idReg;
+  private static final TYPE[] typeValues = TYPE.values();
+  private static final KEYWORD[] keyWordValues = KEYWORD.values();
 
-  private static HashMap<String, KEYWORD> keyWordMap = new HashMap<String, KEYWORD>();
-  private static HashSet<Character> opSet = new HashSet<Character>();
+  private char[] chars;
+  private int pointer;
+  private int current;   // index of the current token, -1 before the first advance()
+
+  // the tokens
+  private int tokenCount;
+  private byte[] types;
+  private int[] codes;
+  private int[] starts;
+  private int[] lengths;
+
+  // identifier names: open addressing from their chars to a name number, the String made on first use
+  private int[] nameSlots;     // name number + 1, 0 for an empty slot
+  private int[] nameHashes;
+  private int[] nameStarts;    // where the name first occurs in chars
+  private int[] nameLengths;
+  private String[] names;
+  private int nameCount;
+
+  private static final HashSet<Character> opSet = new HashSet<Character>();
+
+  // classes of the chars the scanner looks at; anything else (above 127 too) is OTHER
+  private static final byte OTHER = 0, SPACE = 1, LETTER = 2, DIGIT = 3, SYMBOL = 4, QUOTE = 5, SLASH = 6;
+  private static final byte[] charClass = new byte[128];
+  // the keywords by the hash of their chars, with linear probing
+  private static final KEYWORD[] keyWordSlots = new KEYWORD[64];
 
   static {
-    keyWordMap.put("class",  KEYWORD.CLASS); keyWordMap.put("constructor", KEYWORD.CONSTRUCTOR); keyWordMap.put("function", KEYWORD.FUNCTION);
-    keyWordMap.put("method", KEYWORD.METHOD); keyWordMap.put("field", KEYWORD.FIELD); keyWordMap.put("static", KEYWORD.STATIC);
-    keyWordMap.put("var", KEYWORD.VAR); keyWordMap.put("int", KEYWORD.INT); keyWordMap.put("char", KEYWORD.CHAR);
-    keyWordMap.put("boolean", KEYWORD.BOOLEAN); keyWordMap.put("void", KEYWORD.VOID); keyWordMap.put("true", KEYWORD.TRUE);
-    keyWordMap.put("false", KEYWORD.FALSE); keyWordMap.put("null", KEYWORD.NULL); keyWordMap.put("this", KEYWORD.THIS);
-    keyWordMap.put("let", KEYWORD.LET); keyWordMap.put("do", KEYWORD.DO); keyWordMap.put("if", KEYWORD.IF);
-    keyWordMap.put("else", KEYWORD.ELSE); keyWordMap.put("while", KEYWORD.WHILE); keyWordMap.put("return", KEYWORD.RETURN);
-
     opSet.add('+'); opSet.add('-'); opSet.add('*');
     opSet.add('/'); opSet.add('&'); opSet.add('|');
     opSet.add('<'); opSet.add('>'); opSet.add('=');
+
+    for (char c = 0; c <= ' '; c++) {
+      charClass[c] = SPACE;
+    }
+    for (char c = 'a'; c <= 'z'; c++) {
+      charClass[c] = LETTER;
+      charClass[Character.toUpperCase(c)] = LETTER;
+    }
+    charClass['_'] = LETTER;
+    for (char c = '0'; c <= '9'; c++) {
+      charClass[c] = DIGIT;
+    }
+    for (char c : "{}()[].,;+-*&|<>=~".toCharArray()) {
+      charClass[c] = SYMBOL;
+    }
+    charClass['"'] = QUOTE;
+    charClass['/'] = SLASH;
+
+    for (KEYWORD keyWord : keyWordValues) {
+      char[] name = keyWord.name().toLowerCase().toCharArray();
+      int slot = hash(name, 0, name.length) & (keyWordSlots.length - 1);
+      while (keyWordSlots[slot] != null) {
+        slot = (slot + 1) & (keyWordSlots.length - 1);
+      }
+      keyWordSlots[slot] = keyWord;
+    }
   }
 
   /**
@@ -62,55 +103,236 @@ public class JackTokenizer {
    * @param inFile
    */
   public JackTokenizer(File inFile) {
+    try (Reader reader = new FileReader(inFile)) {
+      tokenize(reader);
+    } catch (FileNotFoundException e) {
+      e.printStackTrace();
+      scan(new char[0], 0);
+      current = -1;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Tokenizes source held in memory, e.g. a StringReader or a CharBuffer
+   * @param source
+   */
+  public JackTokenizer(Readable source) {
     try {
-      Scanner scanner = new Scanner(inFile);
-      String preprocessed = "";
-      String line = "";
-
-      while(scanner.hasNext()) {
-        line = removeComments(scanner.nextLine()).trim();
-        if (line.length() > 0) {
-          preprocessed += line + "\n";
-        }
-      }
+      tokenize(source);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
 
-      preprocessed = removeBlockComments(preprocessed).trim();
+  private void tokenize(Readable source) throws IOException {
+    CharBuffer buffer = CharBuffer.allocate(8192);
+    while (source.read(buffer) != -1) {
+      if (!buffer.hasRemaining()) {
+        buffer = CharBuffer.wrap(Arrays.copyOf(buffer.array(), buffer.capacity() * 2), buffer.position(), buffer.capacity());
+      }
+    }
+    scan(buffer.array(), buffer.position());
+    pointer = 0;
+    current = -1;
+  }
 
-      initRegs();
+  /**
+   * Cuts chars[0 .. length - 1] into tokens.
+   */
+  private void scan(char[] chars, int length) {
+    this.chars = chars;
+    int capacity = length / 4 + 16;
+    types = new byte[capacity];
+    codes = new int[capacity];
+    starts = new int[capacity];
+    lengths = new int[capacity];
+    nameSlots = new int[256];
+    nameHashes = new int[256];
+    nameStarts = new int[128];
+    nameLengths = new int[128];
+    names = new String[128];
+
+    int i = 0;
+    while (i < length) {
+      char c = chars[i];
+      int start = i;
+      switch (c < 128 ? charClass[c] : OTHER) {
+        case SPACE:
+          i++;
+          break;
+        case LETTER:
+          do {
+            i++;
+          } while (i < length && chars[i] < 128 && (charClass[chars[i]] == LETTER || charClass[chars[i]] == DIGIT));
+          KEYWORD keyWord = keyWord(chars, start, i - start);
+          if (keyWord != null) {
+            add(TYPE.KEYWORD, keyWord.ordinal(), start, i);
+          } else {
+            add(TYPE.IDENTIFIER, name(start, i - start), start, i);
+          }
+          break;
+        case DIGIT:
+          long value = 0;
+          do {
+            value = Math.min(value * 10 + chars[i] - '0', Integer.MAX_VALUE + 1L);
+            i++;
+          } while (i < length && chars[i] >= '0' && chars[i] <= '9');
+          // a constant too big for an int is kept as -1 so that intVal() fails on it as parseInt did
+          add(TYPE.INT_CONST, value > Integer.MAX_VALUE ? -1 : (int) value, start, i);
+          break;
+        case QUOTE:
+          do {
+            i++;
+            if (i == length || chars[i] == '\n') {
+              throw new IllegalArgumentException("Unterminated string constant on line " + line(start));
+            }
+          } while (chars[i] != '"');
+          i++;
+          add(TYPE.STRING_CONST, 0, start, i);
+          break;
+        case SLASH:
+          if (i + 1 < length && chars[i + 1] == '/') {
+            while (i < length && chars[i] != '\n') {
+              i++;
+            }
+          } else if (i + 1 < length && chars[i + 1] == '*') {
+            // an unterminated block comment runs to the end of the file
+            i += 2;
+            while (i < length && !(chars[i] == '*' && i + 1 < length && chars[i + 1] == '/')) {
+              i++;
+            }
+            i = Math.min(i + 2, length);
+          } else {
+            i++;
+            add(TYPE.SYMBOL, c, start, i);
+          }
+          break;
+        case SYMBOL:
+          i++;
+          add(TYPE.SYMBOL, c, start, i);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown character '" + c + "' on line " + line(start));
+      }
+    }
+  }
 
-      Matcher m = tokenPatterns.matcher(preprocessed);
-      tokens = new ArrayList<String>();
-      pointer = 0;
+  private void add(TYPE type, int code, int start, int end) {
+    if (tokenCount == types.length) {
+      int capacity = tokenCount * 2;
+      types = Arrays.copyOf(types, capacity);
+      codes = Arrays.copyOf(codes, capacity);
+      starts = Arrays.copyOf(starts, capacity);
+      lengths = Arrays.copyOf(lengths, capacity);
+    }
+    types[tokenCount] = (byte) type.ordinal();
+    codes[tokenCount] = code;
+    starts[tokenCount] = start;
+    lengths[tokenCount] = end - start;
+    tokenCount++;
+  }
 
-      while (m.find()) {
-        tokens.add(m.group());
+  private static KEYWORD keyWord(char[] chars, int start, int length) {
+    int mask = keyWordSlots.length - 1;
+    for (int slot = hash(chars, start, length) & mask; keyWordSlots[slot] != null; slot = (slot + 1) & mask) {
+      String name = keyWordSlots[slot].name();
+      if (name.length() == length && equalsLowerCase(name, chars, start)) {
+        return keyWordSlots[slot];
       }
+    }
+    return null;
+  }
 
-    } catch (FileNotFoundException e) {
-      e.printStackTrace();
+  private static boolean equalsLowerCase(String upperCase, char[] chars, int start) {
+    for (int i = 0; i < upperCase.length(); i++) {
+      if (upperCase.charAt(i) + ('a' - 'A') != chars[start + i]) {
+        return false;
+      }
     }
+    return true;
+  }
 
-    currentToken = "";
-    currentTokenType = TYPE.NONE;
+  /**
+   * Returns the number of the identifier chars[start .. start + length - 1], numbering it if it is new.
+   */
+  private int name(int start, int length) {
+    int hash = hash(chars, start, length);
+    int mask = nameSlots.length - 1;
+    int slot = hash & mask;
+    for (; nameSlots[slot] != 0; slot = (slot + 1) & mask) {
+      int name = nameSlots[slot] - 1;
+      if (nameHashes[slot] == hash && nameLengths[name] == length
+          && Arrays.equals(chars, nameStarts[name], nameStarts[name] + length, chars, start, start + length)) {
+        return name;
+      }
+    }
+    if (nameCount == names.length) {
+      nameStarts = Arrays.copyOf(nameStarts, nameCount * 2);
+      nameLengths = Arrays.copyOf(nameLengths, nameCount * 2);
+      names = Arrays.copyOf(names, nameCount * 2);
+    }
+    nameStarts[nameCount] = start;
+    nameLengths[nameCount] = length;
+    nameSlots[slot] = nameCount + 1;
+    nameHashes[slot] = hash;
+    nameCount++;
+    if (nameCount * 2 > nameSlots.length) {
+      growNames();
+    }
+    return nameCount - 1;
   }
 
-  private void initRegs() {
-    keyWordReg = "";
+  private void growNames() {
+    int[] oldSlots = nameSlots;
+    int[] oldHashes = nameHashes;
+    nameSlots = new int[oldSlots.length * 2];
+    nameHashes = new int[nameSlots.length];
+    int mask = nameSlots.length - 1;
+    for (int i = 0; i < oldSlots.length; i++) {
+      if (oldSlots[i] != 0) {
+        int slot = oldHashes[i] & mask;
+        while (nameSlots[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        nameSlots[slot] = oldSlots[i];
+        nameHashes[slot] = oldHashes[i];
+      }
+    }
+  }
 
-    for (String seg: keyWordMap.keySet()) {
-      keyWordReg += seg + "|";
+  private static int hash(char[] chars, int start, int length) {
+    int hash = 0;
+    for (int i = start; i < start + length; i++) {
+      hash = 31 * hash + chars[i];
     }
+    hash *= 0x9E3779B1;
+    return hash ^ (hash >>> 16);
+  }
 
-    symbolReg = "[\\&\\*\\+\\(\\)\\.\\/\\,\\-\\]\\;\\~\\}\\|\\{\\>\\=\\[\\<]";
-    intReg = "[0-9]+";
-    strReg = "\"[^\"\n]*\"";
-    idReg = "[a-zA-Z_]\\w*";
+  /**
+   * Returns the line of the source the char at offset is on, counting from 1.
+   */
+  private int line(int offset) {
+    int line = 1;
+    for (int i = 0; i < offset; i++) {
+      if (chars[i] == '\n') {
+        line++;
+      }
+    }
+    return line;
+  }
 
-    tokenPatterns = Pattern.compile(idReg + "|" + keyWordReg + symbolReg + "|" + intReg + "|" + strReg);
+  /**
+   * Returns the line the current token is on, counting from 1.
+   */
+  public int lineNumber() {
+    return current < 0 ? 0 : line(starts[current]);
   }
 
   public Boolean hasMoreTokens() {
-    return pointer < tokens.size();
+    return pointer < tokenCount;
   }
 
   /**
@@ -120,33 +342,25 @@ public class JackTokenizer {
    */
   public void advance() {
     if (hasMoreTokens()) {
-      currentToken = tokens.get(pointer);
+      current = pointer;
       pointer++;
     } else {
       throw new IllegalStateException("No more tokens");
     }
-
-    if (currentToken.matches(keyWordReg)) {
-      currentTokenType = TYPE.KEYWORD;
-    } else if (currentToken.matches(symbolReg)) {
-      currentTokenType = TYPE.SYMBOL;
-    } else if (currentToken.matches(intReg)) {
-      currentTokenType = TYPE.INT_CONST;
-    } else if (currentToken.matches(strReg)) {
-      currentTokenType = TYPE.STRING_CONST;
-    } else if (currentToken.matches(idReg)) {
-      currentTokenType = TYPE.IDENTIFIER;
-    } else {
-      throw new IllegalArgumentException("Unknown token:" + currentToken);
-    }
   }
 
   public String getCurrentToken() {
-    return currentToken;
+    if (current < 0) {
+      return "";
+    }
+    if (types[current] == TYPE.IDENTIFIER.ordinal()) {
+      return identifier();
+    }
+    return new String(chars, starts[current], lengths[current]);
   }
 
   public TYPE tokenType() {
-    return currentTokenType;
+    return current < 0 ? TYPE.NONE : typeValues[types[current]];
   }
 
   /**
@@ -154,8 +368,8 @@ public class JackTokenizer {
    * @return
    */
   public KEYWORD keyWord() {
-    if (currentTokenType == TYPE.KEYWORD) {
-      return keyWordMap.get(currentToken);
+    if (tokenType() == TYPE.KEYWORD) {
+      return keyWordValues[codes[current]];
     } else {
       throw new IllegalStateException("Current token is not a keyword!");
     }
@@ -166,8 +380,8 @@ public class JackTokenizer {
    * @return
    */
   public char symbol() {
-    if (currentTokenType == TYPE.SYMBOL) {
-      return currentToken.charAt(0);
+    if (tokenType() == TYPE.SYMBOL) {
+      return (char) codes[current];
     } else {
       throw new IllegalStateException("Current token is not a symbol!");
     }
@@ -178,8 +392,12 @@ public class JackTokenizer {
    * @return
    */
   public String identifier() {
-    if (currentTokenType == TYPE.IDENTIFIER) {
-      return currentToken;
+    if (tokenType() == TYPE.IDENTIFIER) {
+      int name = codes[current];
+      if (names[name] == null) {
+        names[name] = new String(chars, nameStarts[name], nameLengths[name]);
+      }
+      return names[name];
     } else {
       throw new IllegalStateException("Current token is not an identifier!");
     }
@@ -190,8 +408,11 @@ public class JackTokenizer {
    * @return
    */
   public int intVal() {
-    if (currentTokenType == TYPE.INT_CONST) {
-      return Integer.parseInt(currentToken);
+    if (tokenType() == TYPE.INT_CONST) {
+      if (codes[current] < 0) {
+        throw new NumberFormatException("For input string: \"" + getCurrentToken() + "\"");
+      }
+      return codes[current];
     } else {
       throw new IllegalStateException("Current token is not an integer constant!");
     }
@@ -202,8 +423,8 @@ public class JackTokenizer {
    * @return
    */
   public String stringVal() {
-    if (currentTokenType == TYPE.STRING_CONST) {
-      return currentToken.substring(1, currentToken.length() - 1);
+    if (tokenType() == TYPE.STRING_CONST) {
+      return new String(chars, starts[current] + 1, lengths[current] - 2);
     } else {
       throw new IllegalStateException("Current token is not a string constant!");
     }
@@ -218,32 +439,4 @@ public class JackTokenizer {
   public boolean isOp() {
     return opSet.contains(symbol());
   }
-
-  public static String removeComments(String strIn) {
-    int position = strIn.indexOf("//");
-    if (position != -1){
-      strIn = strIn.substring(0, position);
-    }
-    return strIn;
-  }
-
-  public static String removeBlockComments(String strIn) {
-    int startIndex = strIn.indexOf("/*");
-    if (startIndex == -1) {
-      return strIn;
-    }
-
-    String result = strIn;
-    int endIndex = strIn.indexOf("*/");
-
-    while(startIndex != -1) {
-      if (endIndex == -1) {
-        return strIn.substring(0,startIndex - 1);
-      }
-      result = result.substring(0,startIndex) + result.substring(endIndex + 2);
-      startIndex = result.indexOf("/*");
-      endIndex = result.indexOf("*/");
-    }
-    return result;
-  }
 }
@@ -1,14 +1,15 @@
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.util.HashMap;
 
 public class VMWriter {
   public static enum SEGMENT { CONST, ARG, LOCAL, STATIC, THIS, THAT, POINTER, TEMP, NONE };
   public static enum COMMAND { ADD, SUB, NEG, EQ, GT, LT, AND, OR, NOT };
 
-  private static HashMap<SEGMENT, String> segmentStringHashMap = new HashMap<SEGMENT, String>();
-  private static HashMap<COMMAND, String> commandStringHashMap = new HashMap<COMMAND, String>();
+  private static final HashMap<SEGMENT, String> segmentStringHashMap = new HashMap<SEGMENT, String>();
+  private static final HashMap<COMMAND, String> commandStringHashMap = new HashMap<COMMAND, String>();
   private PrintWriter printWriter;
 
   static {
@@ -40,6 +41,10 @@ public class VMWriter {
     }
   }
 
+  public VMWriter(Writer out) {
+    printWriter = new PrintWriter(out);
+  }
+
   public void writePush(SEGMENT segment, int index) {
     writeCommand("push", segmentStringHashMap.get(segment), String.valueOf(index));
   }